@@ -0,0 +1,211 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.cache;
+
+import org.apache.log4j.Logger;
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.SimpleValueWrapper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache with a maximum number of entries and an optional maximum total weight.
+ * Values implementing {@link Weighted} weigh their approximate size, others {@link #DEFAULT_WEIGHT}.
+ * Hits, misses and evictions are counted and logged every {@code statisticsLogInterval} lookups.
+ */
+public class BoundedCache implements Cache {
+
+    private static Logger logger = Logger.getLogger(BoundedCache.class);
+
+    public static final long DEFAULT_WEIGHT = 1024;
+
+    private final String name;
+
+    private final int maxEntries;
+
+    private final long maxWeight;
+
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private long statisticsLogInterval = 10000;
+
+    /**
+     * @param name Name of the cache.
+     * @param maxEntries Maximum number of entries.
+     * @param maxWeight Maximum total weight in bytes, or 0 for no limit.
+     */
+    public BoundedCache(String name, int maxEntries, long maxWeight) {
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Object getNativeCache() {
+        return entries;
+    }
+
+    @Override
+    public ValueWrapper get(Object key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        recordLookup(entry != null);
+        return entry == null ? null : new SimpleValueWrapper(entry.value);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Class<T> type) {
+        ValueWrapper wrapper = get(key);
+        if (wrapper == null) {
+            return null;
+        }
+        Object value = wrapper.get();
+        if (value != null && type != null && ! type.isInstance(value)) {
+            throw new IllegalStateException("Cached value is not of required type [" + type.getName() + "]: " + value);
+        }
+        return (T) value;
+    }
+
+    @Override
+    public synchronized void put(Object key, Object value) {
+        Entry entry = new Entry(value);
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        weight += entry.weight;
+        evictIfNeeded();
+    }
+
+    @Override
+    public synchronized ValueWrapper putIfAbsent(Object key, Object value) {
+        Entry existing = entries.get(key);
+        if (existing != null) {
+            return new SimpleValueWrapper(existing.value);
+        }
+        put(key, value);
+        return null;
+    }
+
+    @Override
+    public synchronized void evict(Object key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return Hits, misses, evictions and hit rate, for the logs.
+     */
+    public String getStatistics() {
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        double hitRate = lookups == 0 ? 0 : (double) hitCount / lookups;
+        return String.format("Cache %s: %d entries, ~%d KB, %d hits, %d misses, %d evictions, hit rate %.2f",
+                name, size(), getWeight() / 1024, hitCount, misses.get(), evictions.get(), hitRate);
+    }
+
+    /**
+     * @param statisticsLogInterval Number of lookups between two statistics log lines, or 0 to disable them.
+     */
+    public void setStatisticsLogInterval(long statisticsLogInterval) {
+        this.statisticsLogInterval = statisticsLogInterval;
+    }
+
+    private void recordLookup(boolean hit) {
+        long lookups = (hit ? hits.incrementAndGet() + misses.get() : misses.incrementAndGet() + hits.get());
+        if (statisticsLogInterval > 0 && lookups % statisticsLogInterval == 0) {
+            logger.info(getStatistics());
+        }
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<Object, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext() && isOverLimit()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            weight -= eldest.weight;
+            evictions.incrementAndGet();
+        }
+    }
+
+    private boolean isOverLimit() {
+        if (entries.size() > maxEntries) {
+            return true;
+        }
+        return maxWeight > 0 && weight > maxWeight && entries.size() > 1;
+    }
+
+    private static class Entry {
+
+        private final Object value;
+
+        private final long weight;
+
+        Entry(Object value) {
+            this.value = value;
+            this.weight = value instanceof Weighted ? ((Weighted) value).getApproximateSize() : DEFAULT_WEIGHT;
+        }
+    }
+
+}
@@ -16,20 +16,67 @@
 
 package uk.ac.kcl.iop.brc.core.pipeline.common.data;
 
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.log4j.Logger;
 import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.exception.GenericJDBCException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.orm.hibernate4.SessionFactoryUtils;
 import org.springframework.stereotype.Repository;
 
-import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
+/**
+ * Base class of the DAOs. Every unit of work runs in its own session, which is closed
+ * when the work is done so that its connection goes back to the pool.
+ * Hot queries that need no entity management can skip the session and run as plain JDBC
+ * statements on a pooled connection; see {@link #inSourceConnection(JdbcWork)}.
+ */
 @Repository
 public class BaseDao {
 
+    private static Logger logger = Logger.getLogger(BaseDao.class);
+
+    /**
+     * Sessions and JDBC connections opened through the DAOs and not closed yet.
+     */
+    private static final AtomicInteger openSessions = new AtomicInteger();
+
+    private static final AtomicInteger peakOpenSessions = new AtomicInteger();
+
+    /**
+     * Parsed SQL by query string. Query strings carry parameters instead of values,
+     * so there is one entry per query, or per table and column for queries on coordinates.
+     */
+    private static final Map<String, NamedParameterSql> parsedQueries = new ConcurrentHashMap<>();
+
+    /**
+     * SQL of the named queries by session factory and query name, read once from a session.
+     */
+    private static final Map<List<Object>, String> queryStrings = new ConcurrentHashMap<>();
+
+    /**
+     * Sizes that lists of values bound to IN (...) are padded to, so that there are only a few
+     * variants of each query for the pool of prepared statements and the plan cache of the DB.
+     */
+    private static final int[] IN_LIST_BUCKETS = {1, 10, 50, 100, 250, 500};
+
     @Autowired
     @Qualifier("sourceSessionFactory")
     private SessionFactory sourceSessionFactory;
@@ -38,12 +85,11 @@ public class BaseDao {
     @Qualifier("targetSessionFactory")
     private SessionFactory targetSessionFactory;
 
-    private Session session;
-
-    @PostConstruct
-    public void init() {
-        session = getCurrentSourceSession();
-    }
+    /**
+     * Number of rows fetched per round trip by {@link #queryForList}.
+     */
+    @Value("${queryFetchSize:100}")
+    private int queryFetchSize = 100;
 
     public SessionFactory getSourceSessionFactory() {
         return sourceSessionFactory;
@@ -53,20 +99,233 @@ public class BaseDao {
         this.sourceSessionFactory = sourceSessionFactory;
     }
 
-    public void useSourceSession() {
-        session = getCurrentSourceSession();
+    /**
+     * Opens a new session of the source DB. The caller must close it with {@link #closeSession(Session)};
+     * prefer {@link #inSourceSession(Function)}, which does that.
+     *
+     * @return A new session of the source DB.
+     */
+    public Session getCurrentSourceSession() {
+        return openSession(sourceSessionFactory);
     }
 
-    public void useTargetSession() {
-        session = getCurrentTargetSession();
+    /**
+     * Opens a new session of the target DB. The caller must close it with {@link #closeSession(Session)};
+     * prefer {@link #inTargetSession(Function)}, which does that.
+     *
+     * @return A new session of the target DB.
+     */
+    public Session getCurrentTargetSession() {
+        return openSession(targetSessionFactory);
     }
 
-    public Session getCurrentSourceSession() {
-        return sourceSessionFactory.openSession();
+    /**
+     * Runs the given unit of work in a new session of the source DB and closes the session afterwards.
+     *
+     * @param work Work to run with the session.
+     * @param <T> Type of the result of the work.
+     * @return Result of the work.
+     */
+    public <T> T inSourceSession(Function<Session, T> work) {
+        return inSession(sourceSessionFactory, work);
     }
 
-    public Session getCurrentTargetSession() {
-        return targetSessionFactory.openSession();
+    /**
+     * Runs the given unit of work in a new session of the target DB and closes the session afterwards.
+     *
+     * @param work Work to run with the session.
+     * @param <T> Type of the result of the work.
+     * @return Result of the work.
+     */
+    public <T> T inTargetSession(Function<Session, T> work) {
+        return inSession(targetSessionFactory, work);
+    }
+
+    private <T> T inSession(SessionFactory sessionFactory, Function<Session, T> work) {
+        Session session = openSession(sessionFactory);
+        try {
+            return work.apply(session);
+        } finally {
+            closeSession(session);
+        }
+    }
+
+    private Session openSession(SessionFactory sessionFactory) {
+        Session session = sessionFactory.openSession();
+        peakOpenSessions.accumulateAndGet(openSessions.incrementAndGet(), Math::max);
+        return session;
+    }
+
+    /**
+     * Runs the given unit of work with a pooled JDBC connection of the source DB, without a Hibernate session,
+     * and gives the connection back to the pool afterwards.
+     *
+     * @param work Work to run with the connection.
+     * @param <T> Type of the result of the work.
+     * @return Result of the work.
+     */
+    public <T> T inSourceConnection(JdbcWork<T> work) {
+        return inConnection(sourceSessionFactory, work);
+    }
+
+    /**
+     * Runs the given unit of work with a pooled JDBC connection of the target DB, without a Hibernate session,
+     * and gives the connection back to the pool afterwards.
+     *
+     * @param work Work to run with the connection.
+     * @param <T> Type of the result of the work.
+     * @return Result of the work.
+     */
+    public <T> T inTargetConnection(JdbcWork<T> work) {
+        return inConnection(targetSessionFactory, work);
+    }
+
+    /**
+     * Takes the connection from the DataSource of the session factory, which Spring looks up without
+     * depending on the SPI of the Hibernate version. Falls back to the connection of a session.
+     */
+    private <T> T inConnection(SessionFactory sessionFactory, JdbcWork<T> work) {
+        DataSource dataSource = getDataSource(sessionFactory);
+        if (dataSource == null) {
+            return inSession(sessionFactory, session -> session.doReturningWork(work::execute));
+        }
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            peakOpenSessions.accumulateAndGet(openSessions.incrementAndGet(), Math::max);
+            return work.execute(connection);
+        } catch (SQLException ex) {
+            throw new GenericJDBCException("Could not run JDBC work: " + ex.getMessage(), ex);
+        } finally {
+            if (connection != null) {
+                closeConnection(connection);
+            }
+        }
+    }
+
+    private void closeConnection(Connection connection) {
+        openSessions.decrementAndGet();
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            logger.warn("Could not give the connection back to the pool. " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Runs a query whose parameters are given by name, as in the named queries, and maps every row of the result.
+     * Statements are prepared on the given connection, so the pool can reuse them for the same SQL.
+     * Values must be given as parameters, never put in the SQL, as the parsed SQL is cached by its text.
+     * A collection value is bound as a list of values, e.g. for {@code IN (:ids)}.
+     *
+     * @param connection Connection to run the query with.
+     * @param sql Query with :name parameters.
+     * @param parameters Values of the parameters by name.
+     * @param rowMapper Maps a row to an object.
+     * @param <T> Type of the mapped rows.
+     * @return Mapped rows.
+     * @throws SQLException if the query fails or a parameter has no value.
+     */
+    public <T> List<T> queryForList(Connection connection, String sql, Map<String, ?> parameters,
+                                    RowMapper<T> rowMapper) throws SQLException {
+        NamedParameterSql namedSql = parsedQueries.computeIfAbsent(sql, NamedParameterSql::parse);
+        try (PreparedStatement statement = connection.prepareStatement(namedSql.getSql(parameters))) {
+            namedSql.bind(statement, parameters);
+            statement.setFetchSize(queryFetchSize);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                List<T> rows = new ArrayList<>();
+                while (resultSet.next()) {
+                    rows.add(rowMapper.mapRow(resultSet));
+                }
+                return rows;
+            }
+        }
+    }
+
+    /**
+     * Pads the values to the next of a few fixed sizes by repeating the last one, which does not change
+     * the result of an IN (...) condition. Lists longer than the largest size are padded to a multiple of it.
+     *
+     * @param values Values to be bound to an IN (...) list, not empty.
+     * @param <T> Type of the values.
+     * @return The values, padded.
+     */
+    public static <T> List<T> padInList(List<T> values) {
+        int largest = IN_LIST_BUCKETS[IN_LIST_BUCKETS.length - 1];
+        int size = (values.size() + largest - 1) / largest * largest;
+        for (int bucket : IN_LIST_BUCKETS) {
+            if (bucket >= values.size()) {
+                size = bucket;
+                break;
+            }
+        }
+        if (size == values.size()) {
+            return values;
+        }
+        List<T> padded = new ArrayList<>(size);
+        padded.addAll(values);
+        T last = values.get(values.size() - 1);
+        while (padded.size() < size) {
+            padded.add(last);
+        }
+        return padded;
+    }
+
+    /**
+     * @param queryName Name of a named SQL query of the source DB.
+     * @return SQL of the query.
+     */
+    public String getSourceQueryString(String queryName) {
+        return getQueryString(sourceSessionFactory, queryName);
+    }
+
+    /**
+     * @param queryName Name of a named SQL query of the target DB.
+     * @return SQL of the query.
+     */
+    public String getTargetQueryString(String queryName) {
+        return getQueryString(targetSessionFactory, queryName);
+    }
+
+    private String getQueryString(SessionFactory sessionFactory, String queryName) {
+        return queryStrings.computeIfAbsent(Arrays.asList(sessionFactory, queryName),
+                key -> inSession(sessionFactory, session -> session.getNamedQuery(queryName).getQueryString()));
+    }
+
+    /**
+     * Closes a session opened by this DAO and releases its connection.
+     *
+     * @param session Session to close, may be null.
+     */
+    public void closeSession(Session session) {
+        if (session != null && session.isOpen()) {
+            session.close();
+            openSessions.decrementAndGet();
+        }
+    }
+
+    /**
+     * Opens a stateless session of the source DB, e.g. to stream the rows of a long query.
+     * The caller must close it once with {@link #closeStatelessSession(StatelessSession)}.
+     *
+     * @return A new stateless session of the source DB.
+     */
+    public StatelessSession openSourceStatelessSession() {
+        StatelessSession session = sourceSessionFactory.openStatelessSession();
+        peakOpenSessions.accumulateAndGet(openSessions.incrementAndGet(), Math::max);
+        return session;
+    }
+
+    /**
+     * Closes a stateless session opened by {@link #openSourceStatelessSession()} and releases its connection.
+     *
+     * @param session Session to close, may be null.
+     */
+    public void closeStatelessSession(StatelessSession session) {
+        if (session != null) {
+            openSessions.decrementAndGet();
+            session.close();
+        }
     }
 
     public SessionFactory getTargetSessionFactory() {
@@ -78,30 +337,72 @@ public class BaseDao {
     }
 
     public Session createSourceSession() {
-        return sourceSessionFactory.openSession();
+        return getCurrentSourceSession();
     }
 
     public void executeSQLQueryForSource(String sqlQuery) {
-        Query query = getCurrentSourceSession().createSQLQuery(sqlQuery);
-        query.executeUpdate();
+        inSourceSession(session -> session.createSQLQuery(sqlQuery).executeUpdate());
     }
 
     public void executeSQLQueryForTarget(String sqlQuery) {
-        Query query = getCurrentTargetSession().createSQLQuery(sqlQuery);
-        query.executeUpdate();
+        inTargetSession(session -> session.createSQLQuery(sqlQuery).executeUpdate());
     }
 
     public List getSQLResultFromSource(String sqlQuery) {
-        Query query = getCurrentSourceSession().createSQLQuery(sqlQuery);
-        return query.list();
+        return inSourceSession(session -> {
+            Query query = session.createSQLQuery(sqlQuery);
+            return query.list();
+        });
     }
 
     public List getSQLResultFromTarget(String sqlQuery) {
-        Query query = getCurrentTargetSession().createSQLQuery(sqlQuery);
-        return query.list();
+        return inTargetSession(session -> {
+            Query query = session.createSQLQuery(sqlQuery);
+            return query.list();
+        });
     }
 
-    public Session getSession() {
-        return session;
+    /**
+     * @return Number of sessions and JDBC connections opened through the DAOs and not closed yet.
+     */
+    public static int getOpenSessionCount() {
+        return openSessions.get();
+    }
+
+    /**
+     * @return Highest number of sessions and JDBC connections that were open at the same time.
+     */
+    public static int getPeakOpenSessionCount() {
+        return peakOpenSessions.get();
+    }
+
+    /**
+     * @return Open sessions and the usage of the connection pools of the source and target DBs.
+     */
+    public String getPoolUsage() {
+        return "Open sessions: " + getOpenSessionCount() + " (peak " + getPeakOpenSessionCount() + ")"
+                + ", source pool: " + getPoolUsage(sourceSessionFactory)
+                + ", target pool: " + getPoolUsage(targetSessionFactory);
+    }
+
+    public void logPoolUsage() {
+        logger.info(getPoolUsage());
+    }
+
+    private String getPoolUsage(SessionFactory sessionFactory) {
+        DataSource dataSource = getDataSource(sessionFactory);
+        if (! (dataSource instanceof BasicDataSource)) {
+            return "unknown";
+        }
+        BasicDataSource pool = (BasicDataSource) dataSource;
+        return pool.getNumActive() + " active, " + pool.getNumIdle() + " idle of " + pool.getMaxActive();
+    }
+
+    private DataSource getDataSource(SessionFactory sessionFactory) {
+        return sessionFactory == null ? null : SessionFactoryUtils.getDataSource(sessionFactory);
+    }
+
+    public void setQueryFetchSize(int queryFetchSize) {
+        this.queryFetchSize = queryFetchSize;
     }
 }
@@ -0,0 +1,147 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.data;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SQL of a named query with its :name parameters replaced by JDBC placeholders.
+ * Colons in quoted text and in :: casts are left as they are.
+ * A parameter whose value is a collection, as in {@code IN (:ids)}, gets one placeholder per element.
+ */
+class NamedParameterSql {
+
+    private final String sql;
+
+    private final List<String> parameterNames;
+
+    /**
+     * Parts of the SQL before, between and after the placeholders.
+     */
+    private final List<String> fragments;
+
+    private NamedParameterSql(String sql, List<String> parameterNames, List<String> fragments) {
+        this.sql = sql;
+        this.parameterNames = parameterNames;
+        this.fragments = fragments;
+    }
+
+    static NamedParameterSql parse(String namedSql) {
+        StringBuilder sql = new StringBuilder(namedSql.length());
+        List<String> parameterNames = new ArrayList<>();
+        List<String> fragments = new ArrayList<>();
+        int fragmentStart = 0;
+        char quote = 0;
+        int i = 0;
+        while (i < namedSql.length()) {
+            char c = namedSql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == ':' && i + 1 < namedSql.length()) {
+                char next = namedSql.charAt(i + 1);
+                if (next == ':') {
+                    sql.append("::");
+                    i += 2;
+                    continue;
+                }
+                if (Character.isJavaIdentifierStart(next)) {
+                    int end = i + 1;
+                    while (end < namedSql.length() && Character.isJavaIdentifierPart(namedSql.charAt(end))) {
+                        end++;
+                    }
+                    parameterNames.add(namedSql.substring(i + 1, end));
+                    fragments.add(sql.substring(fragmentStart));
+                    sql.append('?');
+                    fragmentStart = sql.length();
+                    i = end;
+                    continue;
+                }
+            }
+            sql.append(c);
+            i++;
+        }
+        fragments.add(sql.substring(fragmentStart));
+        return new NamedParameterSql(sql.toString(), Collections.unmodifiableList(parameterNames),
+                Collections.unmodifiableList(fragments));
+    }
+
+    String getSql() {
+        return sql;
+    }
+
+    List<String> getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * @return The SQL with as many placeholders for each collection parameter as it has elements.
+     * @throws SQLException if a parameter has no value or an empty collection.
+     */
+    String getSql(Map<String, ?> parameters) throws SQLException {
+        if (parameters.values().stream().noneMatch(value -> value instanceof Collection)) {
+            return sql;
+        }
+        StringBuilder expandedSql = new StringBuilder(fragments.get(0));
+        for (int i = 0; i < parameterNames.size(); i++) {
+            Object value = getValue(parameters, parameterNames.get(i));
+            int placeholders = value instanceof Collection ? ((Collection<?>) value).size() : 1;
+            for (int p = 0; p < placeholders; p++) {
+                expandedSql.append(p == 0 ? "?" : ", ?");
+            }
+            expandedSql.append(fragments.get(i + 1));
+        }
+        return expandedSql.toString();
+    }
+
+    /**
+     * Binds the values to the placeholders of {@link #getSql(Map)}.
+     */
+    void bind(PreparedStatement statement, Map<String, ?> parameters) throws SQLException {
+        int index = 1;
+        for (String name : parameterNames) {
+            Object value = getValue(parameters, name);
+            if (value instanceof Collection) {
+                for (Object element : (Collection<?>) value) {
+                    statement.setObject(index++, element);
+                }
+            } else {
+                statement.setObject(index++, value);
+            }
+        }
+    }
+
+    private Object getValue(Map<String, ?> parameters, String name) throws SQLException {
+        if (! parameters.containsKey(name)) {
+            throw new SQLException("No value given for parameter :" + name);
+        }
+        Object value = parameters.get(name);
+        if (value instanceof Collection && ((Collection<?>) value).isEmpty()) {
+            throw new SQLException("Empty list given for parameter :" + name);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.data;
+
+import java.util.regex.Pattern;
+
+/**
+ * Checks table and column names before they are put in SQL text, where they can not be bound as parameters.
+ * A name is made of one or more parts separated by dots, as in {@code DBAdmin.dbo.tblpatient}.
+ * Each part is a plain identifier of letters, digits, _, $, # and @, or a bracketed or double-quoted
+ * identifier without its closing character inside.
+ */
+public class SqlIdentifier {
+
+    private static final String PART = "(?:[A-Za-z_#@][A-Za-z0-9_$#@]*|\\[[^\\]]+\\]|\"[^\"]+\")";
+
+    private static final Pattern IDENTIFIER = Pattern.compile(PART + "(?:\\." + PART + ")*");
+
+    private SqlIdentifier() {
+    }
+
+    public static boolean isValid(String identifier) {
+        return identifier != null && IDENTIFIER.matcher(identifier).matches();
+    }
+
+    /**
+     * @param identifier Table or column name.
+     * @return The given name.
+     * @throws IllegalArgumentException if the name is not a valid identifier.
+     */
+    public static String requireValid(String identifier) {
+        if (! isValid(identifier)) {
+            throw new IllegalArgumentException("Invalid SQL identifier: " + identifier);
+        }
+        return identifier;
+    }
+}
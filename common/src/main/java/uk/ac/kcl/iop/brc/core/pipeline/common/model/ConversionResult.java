@@ -0,0 +1,88 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.model;
+
+import org.jsoup.nodes.Document;
+
+/**
+ * Outcome of converting a binary document in a single parse: the converted text, or the DOM
+ * when HTML is requested, and the number of visible characters in the body of the document.
+ */
+public class ConversionResult {
+
+    private final String text;
+
+    private final Document document;
+
+    private final int contentLength;
+
+    private final boolean parsed;
+
+    private ConversionResult(String text, Document document, int contentLength, boolean parsed) {
+        this.text = text;
+        this.document = document;
+        this.contentLength = contentLength;
+        this.parsed = parsed;
+    }
+
+    public static ConversionResult ofText(String text, int contentLength) {
+        return new ConversionResult(text, null, contentLength, true);
+    }
+
+    public static ConversionResult ofDocument(Document document, int contentLength) {
+        return new ConversionResult(null, document, contentLength, true);
+    }
+
+    /**
+     * @return Result of a document that could not be parsed.
+     */
+    public static ConversionResult failed() {
+        return new ConversionResult("", null, 0, false);
+    }
+
+    /**
+     * @return The converted text, serialised from the DOM for HTML conversions.
+     */
+    public String getText() {
+        if (document != null) {
+            return document.toString();
+        }
+        return text;
+    }
+
+    /**
+     * @return The DOM of an HTML conversion, or null for plain text conversions.
+     */
+    public Document getDocument() {
+        return document;
+    }
+
+    /**
+     * @return Number of non-whitespace characters in the body of the document.
+     */
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return true if the document was parsed but has no text in its body, as with scanned PDFs.
+     */
+    public boolean hasNoContent() {
+        return parsed && contentLength == 0;
+    }
+
+}
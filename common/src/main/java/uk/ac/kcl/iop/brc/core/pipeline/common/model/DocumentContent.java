@@ -0,0 +1,169 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Content of a binary document. Documents up to the spill threshold are kept in memory;
+ * larger ones are written to a temporary file as they are read, so that a worker holds at most
+ * one threshold of a document in memory. The temporary file is deleted when the content is closed
+ * by all of its owners.
+ */
+public class DocumentContent implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final byte[] bytes;
+
+    private final File file;
+
+    private final long length;
+
+    private final AtomicInteger owners = new AtomicInteger(1);
+
+    private DocumentContent(byte[] bytes, File file, long length) {
+        this.bytes = bytes;
+        this.file = file;
+        this.length = length;
+    }
+
+    public static DocumentContent of(byte[] bytes) {
+        return new DocumentContent(bytes, null, bytes.length);
+    }
+
+    /**
+     * Reads the stream to its end and closes it.
+     *
+     * @param stream Stream of the document.
+     * @param maxLength Largest document that is accepted, in bytes.
+     * @param spillThreshold Size in bytes above which the document is written to a temporary file.
+     * @return Content of the document.
+     * @throws IOException if the stream can not be read or the document is larger than maxLength.
+     */
+    public static DocumentContent read(InputStream stream, long maxLength, int spillThreshold) throws IOException {
+        try (InputStream input = stream) {
+            ByteArrayOutputStream memory = new ByteArrayOutputStream(Math.min(spillThreshold, BUFFER_SIZE));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long length = 0;
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                length += read;
+                checkLength(length, maxLength);
+                if (length > spillThreshold) {
+                    return spill(memory, buffer, read, input, length, maxLength);
+                }
+                memory.write(buffer, 0, read);
+            }
+            return of(memory.toByteArray());
+        }
+    }
+
+    private static DocumentContent spill(ByteArrayOutputStream memory, byte[] buffer, int read, InputStream input,
+                                         long length, long maxLength) throws IOException {
+        File file = File.createTempFile("document-", ".tmp");
+        try (OutputStream output = new FileOutputStream(file)) {
+            memory.writeTo(output);
+            output.write(buffer, 0, read);
+            while ((read = input.read(buffer)) != -1) {
+                length += read;
+                checkLength(length, maxLength);
+                output.write(buffer, 0, read);
+            }
+        } catch (IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+        return new DocumentContent(null, file, length);
+    }
+
+    private static void checkLength(long length, long maxLength) throws IOException {
+        if (length > maxLength) {
+            throw new IOException("Document is larger than the limit of " + maxLength + " bytes.");
+        }
+    }
+
+    /**
+     * @return A new stream of the content. The caller must close it.
+     */
+    public InputStream openStream() throws IOException {
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+
+    /**
+     * @param maxLength Number of bytes to read.
+     * @return The first bytes of the content, for detecting its type.
+     */
+    public byte[] getHead(int maxLength) throws IOException {
+        if (file == null) {
+            return bytes.length <= maxLength ? bytes : Arrays.copyOf(bytes, maxLength);
+        }
+        byte[] head = new byte[(int) Math.min(maxLength, length)];
+        try (InputStream stream = openStream()) {
+            int offset = 0;
+            int read;
+            while (offset < head.length && (read = stream.read(head, offset, head.length - offset)) != -1) {
+                offset += read;
+            }
+            return offset == head.length ? head : Arrays.copyOf(head, offset);
+        }
+    }
+
+    /**
+     * @return The temporary file of the content, or null if the content is in memory.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Adds an owner of the content, e.g. a second coordinate of the same row. Each owner closes it once.
+     * @return This content.
+     */
+    public DocumentContent share() {
+        owners.incrementAndGet();
+        return this;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    @Override
+    public void close() {
+        if (owners.decrementAndGet() == 0 && file != null) {
+            file.delete();
+        }
+    }
+}
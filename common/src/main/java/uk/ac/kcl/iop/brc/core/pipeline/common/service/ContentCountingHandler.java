@@ -0,0 +1,61 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.service;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Counts the non-whitespace characters in the body of an XHTML document while it is parsed.
+ */
+class ContentCountingHandler extends DefaultHandler {
+
+    private int bodyDepth = 0;
+
+    private int contentLength = 0;
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        if (bodyDepth > 0 || "body".equals(localName)) {
+            bodyDepth++;
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if (bodyDepth > 0) {
+            bodyDepth--;
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (bodyDepth == 0) {
+            return;
+        }
+        for (int i = start; i < start + length; i++) {
+            if (! Character.isWhitespace(ch[i])) {
+                contentLength++;
+            }
+        }
+    }
+
+    public int getContentLength() {
+        return contentLength;
+    }
+
+}
@@ -17,58 +17,297 @@
 package uk.ac.kcl.iop.brc.core.pipeline.common.service;
 
 import net.sourceforge.tess4j.Tesseract;
-import net.sourceforge.tess4j.TesseractException;
-import org.apache.commons.lang.math.RandomUtils;
+import org.apache.log4j.Logger;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.io.RandomAccessFile;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.microsoft.OfficeParser;
+import org.apache.tika.parser.microsoft.ooxml.OOXMLParser;
+import org.apache.tika.parser.pdf.PDFParser;
+import org.apache.tika.parser.rtf.RTFParser;
+import org.apache.tika.parser.txt.TXTParser;
 import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.TeeContentHandler;
 import org.apache.tika.sax.ToXMLContentHandler;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.helpers.DefaultHandler;
+import uk.ac.kcl.iop.brc.core.pipeline.common.model.ConversionResult;
+import uk.ac.kcl.iop.brc.core.pipeline.common.model.DocumentContent;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.awt.image.BufferedImage;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 public class DocumentConversionService {
 
-    private Tesseract tesseract = new Tesseract();
+    private static Logger logger = Logger.getLogger(DocumentConversionService.class);
+
+    /**
+     * Resolution the pages of scanned PDFs are rendered at for OCR.
+     */
+    private static final int OCR_RESOLUTION = 300;
+
+    /**
+     * Tesseract instances are not thread-safe, so each OCR worker has its own.
+     */
+    private final ThreadLocal<Tesseract> tesseract = ThreadLocal.withInitial(Tesseract::new);
+
+    /**
+     * Number of OCR workers. 0 uses one per available processor.
+     */
+    @Value("${ocrEngines:0}")
+    private int ocrEngines = 0;
+
+    private ExecutorService ocrExecutor;
+
+    /**
+     * Pages rendered for OCR and not yet read, across all documents. Bounded by the number of OCR
+     * workers, so that at most one image per worker waits in memory whatever the number of documents.
+     */
+    private Semaphore renderedPages;
+
+    /**
+     * When true, only the parsers of the document types in the DB (PDF, DOC, DOCX, RTF and plain text)
+     * are loaded instead of the whole Tika registry. Documents of other types convert to empty text.
+     */
+    @Value("${restrictedParsers:false}")
+    private boolean restrictedParsers = false;
+
+    /**
+     * AutoDetectParser is thread-safe, so a single one is shared by all conversions.
+     */
+    private volatile AutoDetectParser parser;
+
+    /**
+     * Loads the parsers at startup rather than on the first document.
+     */
+    @PostConstruct
+    public void init() {
+        getParser();
+    }
+
+    private AutoDetectParser getParser() {
+        AutoDetectParser sharedParser = parser;
+        if (sharedParser == null) {
+            synchronized (this) {
+                if (parser == null) {
+                    parser = createParser();
+                }
+                sharedParser = parser;
+            }
+        }
+        return sharedParser;
+    }
+
+    private AutoDetectParser createParser() {
+        if (! restrictedParsers) {
+            return new AutoDetectParser();
+        }
+        logger.info("Loading only PDF, DOC, DOCX, RTF and text parsers.");
+        return new AutoDetectParser(new PDFParser(), new OfficeParser(), new OOXMLParser(), new RTFParser(), new TXTParser());
+    }
+
+    public void setRestrictedParsers(boolean restrictedParsers) {
+        this.restrictedParsers = restrictedParsers;
+        parser = null;
+    }
 
     public String convertToText(byte[] data) {
-        return convertWithHandler(data, new BodyContentHandler(-1));
+        return convertWithHandler(DocumentContent.of(data), new BodyContentHandler(-1));
     }
 
     public String convertToXHTML(byte[] data) {
-        return convertWithHandler(data, new ToXMLContentHandler());
+        return convertWithHandler(DocumentContent.of(data), new ToXMLContentHandler());
     }
 
-    private String convertWithHandler(byte[] data, DefaultHandler handler) {
-        AutoDetectParser parser = new AutoDetectParser();
-        Metadata metadata = new Metadata();
-        try (InputStream stream = new ByteArrayInputStream(data)) {
-            parser.parse(stream, handler, metadata);
+    public ConversionResult convert(byte[] data, boolean html) {
+        return convert(DocumentContent.of(data), html);
+    }
+
+    /**
+     * Converts the document in a single parse. The visible characters of the body are counted
+     * during the parse, so it is known without parsing the output again whether the document has any text.
+     * @param html true to get the DOM of the XHTML, false to get plain text.
+     */
+    public ConversionResult convert(DocumentContent data, boolean html) {
+        ContentCountingHandler contentCounter = new ContentCountingHandler();
+        if (html) {
+            JsoupDocumentHandler documentBuilder = new JsoupDocumentHandler();
+            if (! parse(data, new TeeContentHandler(contentCounter, documentBuilder))) {
+                return ConversionResult.failed();
+            }
+            return ConversionResult.ofDocument(documentBuilder.getDocument(), contentCounter.getContentLength());
+        }
+        BodyContentHandler textHandler = new BodyContentHandler(-1);
+        if (! parse(data, new TeeContentHandler(contentCounter, textHandler))) {
+            return ConversionResult.failed();
+        }
+        return ConversionResult.ofText(textHandler.toString(), contentCounter.getContentLength());
+    }
+
+    private String convertWithHandler(DocumentContent data, DefaultHandler handler) {
+        if (parse(data, handler)) {
             return handler.toString();
+        }
+        return "";
+    }
+
+    /**
+     * Documents spilled to a temporary file are given to Tika as the file, which parsers can read
+     * without copying it into memory.
+     */
+    private boolean parse(DocumentContent data, ContentHandler handler) {
+        Metadata metadata = new Metadata();
+        try (InputStream stream = data.isInMemory() ? data.openStream() : TikaInputStream.get(data.getFile())) {
+            getParser().parse(stream, handler, metadata);
+            return true;
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.error("Could not parse document of " + data.getLength() + " bytes"
+                    + (data.isInMemory() ? "" : " in " + data.getFile())
+                    + ", detected type " + metadata.get(Metadata.CONTENT_TYPE) + ". " + e.getMessage(), e);
         }
+        return false;
+    }
 
-        return "";
+    /**
+     * Applies OCR to each page of a scanned PDF. The pages are rendered in memory one at a time
+     * and recognised in parallel by the OCR workers, each of which has its own Tesseract instance.
+     * At most one page per OCR worker is rendered ahead, to bound the memory used by large scans.
+     */
+    public String getContentFromImagePDF(byte[] bytes) throws IOException {
+        return getContentFromImagePDF(DocumentContent.of(bytes));
     }
 
-    public synchronized String getContentFromImagePDF(byte[] bytes) throws IOException {
-        String tempFileName = "tempForOCR" + RandomUtils.nextInt();
-        File file = File.createTempFile(tempFileName, ".pdf");
-        file.deleteOnExit();
-        FileOutputStream fos = new FileOutputStream(file);
-        fos.write(bytes);
-        fos.close();
+    /**
+     * Applies OCR to each page of a scanned PDF, as {@link #getContentFromImagePDF(byte[])} does.
+     * PDFs spilled to a temporary file are loaded from the file, with the streams of the PDF
+     * buffered in a scratch file instead of memory.
+     */
+    public String getContentFromImagePDF(DocumentContent content) throws IOException {
+        if (content.isInMemory()) {
+            try (InputStream stream = content.openStream()) {
+                return getContentFromImagePDF(PDDocument.load(stream));
+            }
+        }
+        File scratchFile = File.createTempFile("ocr-scratch-", ".tmp");
+        try (RandomAccessFile scratch = new RandomAccessFile(scratchFile, "rw")) {
+            return getContentFromImagePDF(PDDocument.load(content.getFile(), scratch));
+        } finally {
+            scratchFile.delete();
+        }
+    }
 
-        try {
-            return tesseract.doOCR(file);
-        } catch (TesseractException e) {
-            e.printStackTrace();
+    private String getContentFromImagePDF(PDDocument pdf) throws IOException {
+        ExecutorService ocrExecutor = getOcrExecutor();
+        Semaphore renderedPages = this.renderedPages;
+        List<PageOcr> pageTexts = new ArrayList<>();
+        try (PDDocument document = pdf) {
+            for (Object page : document.getDocumentCatalog().getAllPages()) {
+                renderedPages.acquire();
+                BufferedImage image;
+                try {
+                    image = ((PDPage) page).convertToImage(BufferedImage.TYPE_BYTE_GRAY, OCR_RESOLUTION);
+                } catch (IOException | RuntimeException e) {
+                    renderedPages.release();
+                    throw e;
+                }
+                pageTexts.add(new PageOcr(ocrExecutor, renderedPages, image));
+            }
+            StringBuilder text = new StringBuilder();
+            for (PageOcr pageText : pageTexts) {
+                text.append(getPageText(pageText));
+            }
+            return text.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while applying OCR.");
         } finally {
-            file.delete();
+            pageTexts.forEach(PageOcr::cancel);
         }
-        return "";
     }
+
+    private String getPageText(PageOcr pageText) throws InterruptedException {
+        try {
+            return pageText.text.get();
+        } catch (ExecutionException e) {
+            logger.error("Could not apply OCR to page. " + e.getCause().getMessage());
+            return "";
+        }
+    }
+
+    private int getOcrEngineCount() {
+        return ocrEngines > 0 ? ocrEngines : Runtime.getRuntime().availableProcessors();
+    }
+
+    private synchronized ExecutorService getOcrExecutor() {
+        if (ocrExecutor == null) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            ocrExecutor = Executors.newFixedThreadPool(getOcrEngineCount(), runnable -> {
+                Thread thread = new Thread(runnable, "ocr-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            renderedPages = new Semaphore(getOcrEngineCount());
+        }
+        return ocrExecutor;
+    }
+
+    public void setOcrEngines(int ocrEngines) {
+        this.ocrEngines = ocrEngines;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (ocrExecutor != null) {
+            ocrExecutor.shutdownNow();
+            ocrExecutor = null;
+        }
+    }
+
+    /**
+     * OCR of a rendered page. The permit of the page is given back once, either by the OCR worker
+     * or, if the page is cancelled before a worker takes it, by cancel().
+     */
+    private class PageOcr {
+
+        private final AtomicBoolean started = new AtomicBoolean(false);
+
+        private final Semaphore renderedPages;
+
+        private final Future<String> text;
+
+        private PageOcr(ExecutorService ocrExecutor, Semaphore renderedPages, BufferedImage image) {
+            this.renderedPages = renderedPages;
+            this.text = ocrExecutor.submit(() -> {
+                if (! started.compareAndSet(false, true)) {
+                    return "";
+                }
+                try {
+                    return tesseract.get().doOCR(image);
+                } finally {
+                    renderedPages.release();
+                }
+            });
+        }
+
+        private void cancel() {
+            text.cancel(true);
+            if (started.compareAndSet(false, true)) {
+                renderedPages.release();
+            }
+        }
+    }
+
 }
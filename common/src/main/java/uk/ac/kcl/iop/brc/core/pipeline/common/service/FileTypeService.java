@@ -1,20 +1,95 @@
 package uk.ac.kcl.iop.brc.core.pipeline.common.service;
 
 import net.sf.jmimemagic.*;
+import org.apache.log4j.Logger;
 import org.springframework.stereotype.Service;
+import uk.ac.kcl.iop.brc.core.pipeline.common.model.DocumentContent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 @Service
 public class FileTypeService {
 
+    private static Logger logger = Logger.getLogger(FileTypeService.class);
+
+    private static final String UNKNOWN_TYPE = "unknown";
+
+    /**
+     * Number of leading bytes the type of a {@link DocumentContent} is detected from.
+     */
+    private static final int HEAD_LENGTH = 64 * 1024;
+
+    /**
+     * Leading bytes of the formats stored in the DB. A ZIP signature is all a DOCX file shows in its first bytes.
+     */
+    private static final Signature[] SIGNATURES = {
+            new Signature("application/pdf", "%PDF-".getBytes(StandardCharsets.US_ASCII)),
+            new Signature("application/msword", bytes(0xD0, 0xCF, 0x11, 0xE0, 0xA1, 0xB1, 0x1A, 0xE1)),
+            new Signature("application/zip", bytes(0x50, 0x4B, 0x03, 0x04)),
+            new Signature("application/rtf", "{\\rtf".getBytes(StandardCharsets.US_ASCII)),
+            new Signature("image/tiff", bytes(0x49, 0x49, 0x2A, 0x00)),
+            new Signature("image/tiff", bytes(0x4D, 0x4D, 0x00, 0x2A)),
+            new Signature("image/jpeg", bytes(0xFF, 0xD8, 0xFF)),
+            new Signature("image/png", bytes(0x89, 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A))
+    };
+
+    private final Map<String, LongAdder> typeCounts = new ConcurrentHashMap<>();
+
+    /**
+     * Detects the type from the first bytes of the data, and only falls back to jmimemagic,
+     * which matches the whole data against all its rules, when the signature is not known.
+     */
     public String getType(byte[] data) throws MagicParseException, MagicException, MagicMatchNotFoundException {
-        MagicMatch match = Magic.getMagicMatch(data);
-        return match.getMimeType();
+        String type = sniffType(data);
+        if (type == null) {
+            try {
+                type = Magic.getMagicMatch(data).getMimeType();
+            } catch (MagicParseException | MagicException | MagicMatchNotFoundException e) {
+                count(UNKNOWN_TYPE);
+                throw e;
+            }
+        }
+        count(type);
+        return type;
+    }
+
+    /**
+     * @return The type with a known signature at the start of the data, or null.
+     */
+    String sniffType(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        for (Signature signature : SIGNATURES) {
+            if (signature.matches(data)) {
+                return signature.type;
+            }
+        }
+        return null;
     }
 
     public boolean isPDF(byte[] data) {
         return isDataTypeEqualTo(data, "application/pdf");
     }
 
+    /**
+     * Detects the type from the first {@value #HEAD_LENGTH} bytes only, so that documents
+     * spilled to a temporary file are not read into memory.
+     */
+    public boolean isPDF(DocumentContent content) {
+        try {
+            return isPDF(content.getHead(HEAD_LENGTH));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
     private boolean isDataTypeEqualTo(byte[] data, String type) {
         try {
             return getType(data).equalsIgnoreCase(type);
@@ -24,6 +99,56 @@ public class FileTypeService {
         return false;
     }
 
+    private void count(String type) {
+        typeCounts.computeIfAbsent(type, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * @return Number of documents of each detected type so far.
+     */
+    public Map<String, Long> getTypeCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        typeCounts.forEach((type, count) -> counts.put(type, count.sum()));
+        return counts;
+    }
+
+    public void logTypeCounts() {
+        Map<String, Long> counts = getTypeCounts();
+        if (! counts.isEmpty()) {
+            logger.info("Detected file types: " + counts);
+        }
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static class Signature {
+
+        private final String type;
+
+        private final byte[] prefix;
 
+        private Signature(String type, byte[] prefix) {
+            this.type = type;
+            this.prefix = prefix;
+        }
+
+        private boolean matches(byte[] data) {
+            if (data.length < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (data[i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 
 }
@@ -0,0 +1,82 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.service;
+
+import org.apache.commons.lang.StringUtils;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.Tag;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Builds a Jsoup DOM from the XHTML events of a Tika parse, so that the XHTML does not need
+ * to be serialised and parsed again. Consecutive characters are joined into a single text node.
+ */
+class JsoupDocumentHandler extends DefaultHandler {
+
+    private final Document document = new Document("");
+
+    private Element current = document;
+
+    private final StringBuilder text = new StringBuilder();
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        flushText();
+        org.jsoup.nodes.Attributes elementAttributes = new org.jsoup.nodes.Attributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            String name = StringUtils.defaultIfEmpty(attributes.getLocalName(i), attributes.getQName(i));
+            elementAttributes.put(name, attributes.getValue(i));
+        }
+        Element element = new Element(Tag.valueOf(StringUtils.defaultIfEmpty(localName, qName)), "", elementAttributes);
+        current.appendChild(element);
+        current = element;
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        flushText();
+        if (current != document) {
+            current = current.parent();
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        text.append(ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+        text.append(ch, start, length);
+    }
+
+    private void flushText() {
+        if (text.length() > 0) {
+            current.appendChild(new TextNode(text.toString(), ""));
+            text.setLength(0);
+        }
+    }
+
+    public Document getDocument() {
+        flushText();
+        return document;
+    }
+
+}
@@ -0,0 +1,276 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton that replaces a set of literals in a single pass over a text.
+ * Literals are matched ignoring ASCII case, the same way {@code (?i)\Q...\E} does, and can
+ * optionally be required to start and end on a word boundary as with {@code \b}.
+ * When several literals match at the same position the longest one wins; if they
+ * have the same length, the one added first wins. Matches do not overlap.
+ */
+public class MultiLiteralMatcher {
+
+    private final List<Literal> literals;
+
+    private final List<State> states = new ArrayList<>();
+
+    /**
+     * @param literals Literals to be matched, in order of precedence.
+     */
+    public MultiLiteralMatcher(List<Literal> literals) {
+        this.literals = new ArrayList<>(literals);
+        build();
+    }
+
+    public int size() {
+        return literals.size();
+    }
+
+    /**
+     * @param text Text to search.
+     * @return {@code text} where every match is replaced with the replacement of its literal.
+     */
+    public String replaceAll(String text) {
+        int[] bestLiteralAt = findBestLiteralPerStart(text);
+        if (bestLiteralAt == null) {
+            return text;
+        }
+
+        StringBuilder result = new StringBuilder(text.length());
+        int i = 0;
+        while (i < text.length()) {
+            int literalIndex = bestLiteralAt[i];
+            if (literalIndex < 0) {
+                result.append(text.charAt(i));
+                i++;
+                continue;
+            }
+            Literal literal = literals.get(literalIndex);
+            result.append(literal.getReplacement());
+            i += literal.length();
+        }
+        return result.toString();
+    }
+
+    /**
+     * Scans the text once, and for every start position keeps the literal that should win there.
+     * @return Literal indexes per start position or -1, or null if nothing matched.
+     */
+    private int[] findBestLiteralPerStart(String text) {
+        int[] bestLiteralAt = null;
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = next(state, foldCase(text.charAt(i)));
+            for (int output = states.get(state).output; output >= 0; output = states.get(output).dictionaryLink) {
+                int literalIndex = states.get(output).literalIndex;
+                Literal literal = literals.get(literalIndex);
+                int start = i + 1 - literal.length();
+                if (literal.isWholeWord() && !(isWordBoundary(text, start) && isWordBoundary(text, i + 1))) {
+                    continue;
+                }
+                if (bestLiteralAt == null) {
+                    bestLiteralAt = new int[text.length()];
+                    Arrays.fill(bestLiteralAt, -1);
+                }
+                if (isPreferred(literalIndex, bestLiteralAt[start])) {
+                    bestLiteralAt[start] = literalIndex;
+                }
+            }
+        }
+        return bestLiteralAt;
+    }
+
+    private boolean isPreferred(int literalIndex, int currentIndex) {
+        if (currentIndex < 0) {
+            return true;
+        }
+        int length = literals.get(literalIndex).length();
+        int currentLength = literals.get(currentIndex).length();
+        return length > currentLength || (length == currentLength && literalIndex < currentIndex);
+    }
+
+    private int next(int state, char c) {
+        while (true) {
+            int target = states.get(state).getTransition(c);
+            if (target >= 0) {
+                return target;
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = states.get(state).failure;
+        }
+    }
+
+    private void build() {
+        states.add(new State());
+        for (int literalIndex = 0; literalIndex < literals.size(); literalIndex++) {
+            String text = literals.get(literalIndex).getText();
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = foldCase(text.charAt(i));
+                int target = states.get(state).getTransition(c);
+                if (target < 0) {
+                    target = states.size();
+                    states.add(new State());
+                    states.get(state).addTransition(c, target);
+                }
+                state = target;
+            }
+            State terminal = states.get(state);
+            if (terminal.literalIndex < 0) {
+                terminal.literalIndex = literalIndex;
+            }
+        }
+
+        Deque<Integer> queue = new ArrayDeque<>();
+        State root = states.get(0);
+        for (int i = 0; i < root.size; i++) {
+            State child = states.get(root.targets[i]);
+            child.failure = 0;
+            child.setOutputs(root, root.targets[i]);
+            queue.add(root.targets[i]);
+        }
+        while (! queue.isEmpty()) {
+            State state = states.get(queue.poll());
+            for (int i = 0; i < state.size; i++) {
+                char c = state.keys[i];
+                int childIndex = state.targets[i];
+                State child = states.get(childIndex);
+                child.failure = next(state.failure, c);
+                child.setOutputs(states.get(child.failure), childIndex);
+                queue.add(childIndex);
+            }
+        }
+    }
+
+    /**
+     * Mirrors {@code \b} of {@link java.util.regex.Pattern}.
+     */
+    private static boolean isWordBoundary(String text, int index) {
+        boolean left = index > 0 && isWordChar(text.charAt(index - 1));
+        boolean right = index < text.length() && isWordChar(text.charAt(index));
+        return left != right;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || Character.getType(c) == Character.NON_SPACING_MARK;
+    }
+
+    /**
+     * Case insensitive matching of {@link java.util.regex.Pattern} only folds ASCII letters by default.
+     */
+    private static char foldCase(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return (char) (c + ('a' - 'A'));
+        }
+        return c;
+    }
+
+    public static class Literal {
+
+        private final String text;
+
+        private final boolean wholeWord;
+
+        private final String replacement;
+
+        /**
+         * @param text Literal to be matched, must not be empty.
+         * @param wholeWord true if the literal must start and end on a word boundary.
+         * @param replacement Text that replaces the matches of the literal.
+         */
+        public Literal(String text, boolean wholeWord, String replacement) {
+            if (text.isEmpty()) {
+                throw new IllegalArgumentException("Literal can not be empty.");
+            }
+            this.text = text;
+            this.wholeWord = wholeWord;
+            this.replacement = replacement;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public boolean isWholeWord() {
+            return wholeWord;
+        }
+
+        public String getReplacement() {
+            return replacement;
+        }
+
+        int length() {
+            return text.length();
+        }
+    }
+
+    private static class State {
+
+        private char[] keys = new char[0];
+
+        private int[] targets = new int[0];
+
+        private int size;
+
+        private int failure;
+
+        private int literalIndex = -1;
+
+        /**
+         * This state if it ends a literal, otherwise the nearest state on the failure chain that does.
+         */
+        private int output = -1;
+
+        /**
+         * Next state on the failure chain that ends a literal.
+         */
+        private int dictionaryLink = -1;
+
+        int getTransition(char c) {
+            int i = Arrays.binarySearch(keys, 0, size, c);
+            return i >= 0 ? targets[i] : -1;
+        }
+
+        void addTransition(char c, int target) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, Math.max(2, size * 2));
+                targets = Arrays.copyOf(targets, keys.length);
+            }
+            int i = -(Arrays.binarySearch(keys, 0, size, c) + 1);
+            System.arraycopy(keys, i, keys, i + 1, size - i);
+            System.arraycopy(targets, i, targets, i + 1, size - i);
+            keys[i] = c;
+            targets[i] = target;
+            size++;
+        }
+
+        void setOutputs(State failureState, int index) {
+            dictionaryLink = failureState.output;
+            output = literalIndex >= 0 ? index : dictionaryLink;
+        }
+    }
+
+}
@@ -0,0 +1,313 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.utils;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Approximate search of several strings in one pass over a text.
+ * The results are the same as calling {@link StringTools#getApproximatelyMatchingStringList(String, String, int)}
+ * for every search, but the bit-parallel matchers of all searches are packed into as few 64-bit words as possible
+ * and run together, so the text is traversed once instead of once per search. Only the searches that have
+ * approximate occurrences in the text are then verified window by window.
+ */
+public class MultiPatternFuzzyMatcher {
+
+    private final List<Search> searches;
+
+    private final List<PackedSearches> packedSearches = new ArrayList<>();
+
+    /**
+     * Segment of each search in {@link #packedSearches}, or null if it is not packed.
+     */
+    private final Segment[] segments;
+
+    /**
+     * @param searches Searches in the order their results are returned.
+     */
+    public MultiPatternFuzzyMatcher(List<Search> searches) {
+        this.searches = new ArrayList<>(searches);
+        segments = new Segment[searches.size()];
+        pack();
+    }
+
+    public int size() {
+        return searches.size();
+    }
+
+    /**
+     * @param sourceString Source string to search for approximately matching segments.
+     * @return For each search, the substrings of {@code sourceString} that approximately match it.
+     */
+    public List<Set<String>> getApproximatelyMatchingStringLists(String sourceString) {
+        String source = sourceString.toLowerCase().trim();
+        BitSet[] matchEnds = findMatchEnds(source);
+        int[] wordEnds = null;
+
+        List<Set<String>> results = new ArrayList<>();
+        for (int i = 0; i < searches.size(); i++) {
+            Search search = searches.get(i);
+            if (search.isTrivial()) {
+                results.add(search.getTrivialMatches());
+                continue;
+            }
+            BitSet ends = null;
+            if (segments[i] != null) {
+                ends = matchEnds[i];
+                if (ends == null) {
+                    results.add(new HashSet<>());
+                    continue;
+                }
+                if (wordEnds == null) {
+                    wordEnds = StringTools.getAlphanumericRunEnds(source);
+                }
+            }
+            results.add(StringTools.scanForApproximateMatches(source, search.getLowerCaseText(), search.getWindowLength(),
+                    search.getMaxDistance(), ends, wordEnds));
+        }
+        return results;
+    }
+
+    /**
+     * Runs the packed Myers matchers over the text. Each character of the text is read once and
+     * advances the matchers of all words.
+     *
+     * @return For each packed search, the ends of its approximate occurrences, or null if there are none.
+     */
+    private BitSet[] findMatchEnds(String source) {
+        BitSet[] matchEnds = new BitSet[searches.size()];
+        PackedScan[] scans = new PackedScan[packedSearches.size()];
+        for (int w = 0; w < scans.length; w++) {
+            scans[w] = new PackedScan(packedSearches.get(w));
+        }
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            for (PackedScan scan : scans) {
+                scan.step(c, i + 1, matchEnds, source.length());
+            }
+        }
+        return matchEnds;
+    }
+
+    /**
+     * Packs the searches that the bit-parallel filter applies to into 64-bit words, first fit.
+     */
+    private void pack() {
+        for (int i = 0; i < searches.size(); i++) {
+            Search search = searches.get(i);
+            if (search.isTrivial()) {
+                continue;
+            }
+            int length = search.getLowerCaseText().length();
+            if (length > StringTools.MAX_BIT_PARALLEL_SEARCH_LENGTH || search.getMaxDistance() >= length) {
+                continue;
+            }
+            PackedSearches word = null;
+            for (PackedSearches candidate : packedSearches) {
+                if (candidate.usedBits + length <= StringTools.MAX_BIT_PARALLEL_SEARCH_LENGTH) {
+                    word = candidate;
+                    break;
+                }
+            }
+            if (word == null) {
+                word = new PackedSearches();
+                packedSearches.add(word);
+            }
+            segments[i] = word.add(i, search);
+        }
+    }
+
+    public static class Search {
+
+        private final String text;
+
+        private final int maxDistance;
+
+        private final String lowerCaseText;
+
+        private final int windowLength;
+
+        /**
+         * @param text String to search.
+         * @param maxDistance Maximum edit distance that should be satisfied.
+         */
+        public Search(String text, int maxDistance) {
+            this.text = text;
+            this.maxDistance = maxDistance;
+            String trimmed = StringUtils.isBlank(text) ? "" : text.trim();
+            windowLength = trimmed.length();
+            lowerCaseText = trimmed.toLowerCase().trim();
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public int getMaxDistance() {
+            return maxDistance;
+        }
+
+        String getLowerCaseText() {
+            return lowerCaseText;
+        }
+
+        int getWindowLength() {
+            return windowLength;
+        }
+
+        /**
+         * Searches of up to 3 characters are not searched at all, see
+         * {@link StringTools#getApproximatelyMatchingStringList(String, String, int)}.
+         */
+        boolean isTrivial() {
+            return windowLength <= 3;
+        }
+
+        Set<String> getTrivialMatches() {
+            Set<String> matches = new HashSet<>();
+            if (windowLength > 1) {
+                matches.add(text.trim());
+            }
+            return matches;
+        }
+    }
+
+    private static class Segment {
+
+        private final int searchIndex;
+
+        private final int length;
+
+        private final int maxDistance;
+
+        private final long highBit;
+
+        Segment(int searchIndex, int length, int maxDistance, long highBit) {
+            this.searchIndex = searchIndex;
+            this.length = length;
+            this.maxDistance = maxDistance;
+            this.highBit = highBit;
+        }
+    }
+
+    /**
+     * State of the Myers matcher of one word while the text is scanned. Additions and shifts are done per segment:
+     * carries are stopped at the highest bit of each segment and shifted bits are cleared at the lowest,
+     * so that the searches sharing the word do not interfere.
+     */
+    private static class PackedScan {
+
+        private final PackedSearches word;
+
+        private final Segment[] wordSegments;
+
+        private final int[] distances;
+
+        private int hittingSegments;
+
+        private long positiveVertical = -1L;
+
+        private long negativeVertical = 0L;
+
+        PackedScan(PackedSearches word) {
+            this.word = word;
+            wordSegments = word.segments.toArray(new Segment[word.segments.size()]);
+            distances = new int[wordSegments.length];
+            for (int s = 0; s < distances.length; s++) {
+                distances[s] = wordSegments[s].length;
+                if (distances[s] <= wordSegments[s].maxDistance) {
+                    hittingSegments++;
+                }
+            }
+        }
+
+        /**
+         * @param c Next character of the text.
+         * @param end Position in the text after the character.
+         * @param matchEnds Ends of the approximate occurrences of each search, set for the searches that hit here.
+         * @param textLength Length of the text.
+         */
+        void step(char c, int end, BitSet[] matchEnds, int textLength) {
+            long highBits = word.highBits;
+            long lowBits = word.lowBits;
+            long equal = word.masks.get(c);
+            long vertical = equal | negativeVertical;
+            long a = equal & positiveVertical;
+            long sum = ((a & ~highBits) + (positiveVertical & ~highBits)) ^ ((a ^ positiveVertical) & highBits);
+            long horizontal = (sum ^ positiveVertical) | equal;
+            long positiveHorizontal = negativeVertical | ~(horizontal | positiveVertical);
+            long negativeHorizontal = positiveVertical & horizontal;
+            if (((positiveHorizontal | negativeHorizontal) & highBits) != 0 || hittingSegments > 0) {
+                hittingSegments = 0;
+                for (int s = 0; s < distances.length; s++) {
+                    Segment segment = wordSegments[s];
+                    if ((positiveHorizontal & segment.highBit) != 0) {
+                        distances[s]++;
+                    } else if ((negativeHorizontal & segment.highBit) != 0) {
+                        distances[s]--;
+                    }
+                    if (distances[s] <= segment.maxDistance) {
+                        hittingSegments++;
+                        if (matchEnds[segment.searchIndex] == null) {
+                            matchEnds[segment.searchIndex] = new BitSet(textLength + 1);
+                        }
+                        matchEnds[segment.searchIndex].set(end);
+                    }
+                }
+            }
+            positiveHorizontal = (positiveHorizontal << 1) & ~lowBits;
+            negativeHorizontal = (negativeHorizontal << 1) & ~lowBits;
+            positiveVertical = negativeHorizontal | ~(vertical | positiveHorizontal);
+            negativeVertical = positiveHorizontal & vertical;
+        }
+    }
+
+    /**
+     * Searches sharing one 64-bit word, each in a segment of as many bits as it has characters.
+     */
+    private static class PackedSearches {
+
+        private final StringTools.CharacterMasks masks = new StringTools.CharacterMasks();
+
+        private final List<Segment> segments = new ArrayList<>();
+
+        private long highBits;
+
+        private long lowBits;
+
+        private int usedBits;
+
+        Segment add(int searchIndex, Search search) {
+            String text = search.getLowerCaseText();
+            masks.add(text, usedBits);
+            long highBit = 1L << (usedBits + text.length() - 1);
+            highBits |= highBit;
+            lowBits |= 1L << usedBits;
+            usedBits += text.length();
+            Segment segment = new Segment(searchIndex, text.length(), search.getMaxDistance(), highBit);
+            segments.add(segment);
+            return segment;
+        }
+    }
+
+}
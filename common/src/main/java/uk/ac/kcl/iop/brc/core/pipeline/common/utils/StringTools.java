@@ -28,6 +28,13 @@ import java.util.stream.Collectors;
 
 public class StringTools {
 
+    /**
+     * Longest search string that fits in the bit vectors of {@link #getApproximateMatchEnds(String, String, int)}.
+     */
+    public static final int MAX_BIT_PARALLEL_SEARCH_LENGTH = 64;
+
+    private static final Pattern COMPLETING_WORDS = Pattern.compile("\\w+(\\(?\\)?\\s+\\w+)*");
+
     public static int getLevenshteinDistance(String str1, String str2) {
         return StringUtils.getLevenshteinDistance(str1, str2);
     }
@@ -68,10 +75,120 @@ public class StringTools {
         }
         sourceString = sourceString.toLowerCase().trim();
         search = search.toLowerCase().trim();
+        if (search.length() > MAX_BIT_PARALLEL_SEARCH_LENGTH || maxDistance >= search.length()) {
+            return scanForApproximateMatches(sourceString, search, searchLength, maxDistance, null);
+        }
+        BitSet matchEnds = getApproximateMatchEnds(sourceString, search, maxDistance);
+        if (matchEnds.isEmpty()) {
+            return matches;
+        }
+        return scanForApproximateMatches(sourceString, search, searchLength, maxDistance, matchEnds);
+    }
+
+    /**
+     * Finds where approximate occurrences of {@code search} end in {@code sourceString} in a single pass,
+     * using the bit-parallel algorithm of Myers (1999). Matching is case sensitive.
+     *
+     * @param sourceString Source string to search for approximately matching segments.
+     * @param search String to search in {@code sourceString}, at most {@link #MAX_BIT_PARALLEL_SEARCH_LENGTH} long.
+     * @param maxDistance Maximum edit distance that should be satisfied.
+     * @return Set of indexes {@code e} for which some substring of {@code sourceString} ending before {@code e}
+     * is within {@code maxDistance} edits of {@code search}.
+     */
+    public static BitSet getApproximateMatchEnds(String sourceString, String search, int maxDistance) {
+        int searchLength = search.length();
+        if (searchLength > MAX_BIT_PARALLEL_SEARCH_LENGTH) {
+            throw new IllegalArgumentException("Search can not be longer than " + MAX_BIT_PARALLEL_SEARCH_LENGTH + " characters.");
+        }
+        BitSet matchEnds = new BitSet(sourceString.length() + 1);
+        if (searchLength == 0) {
+            matchEnds.set(0, sourceString.length() + 1);
+            return matchEnds;
+        }
+        CharacterMasks masks = new CharacterMasks(search);
+        long lastBit = 1L << (searchLength - 1);
+        long positiveVertical = -1L;
+        long negativeVertical = 0L;
+        int distance = searchLength;
         for (int i = 0; i < sourceString.length(); i++) {
+            long equal = masks.get(sourceString.charAt(i));
+            long vertical = equal | negativeVertical;
+            long horizontal = (((equal & positiveVertical) + positiveVertical) ^ positiveVertical) | equal;
+            long positiveHorizontal = negativeVertical | ~(horizontal | positiveVertical);
+            long negativeHorizontal = positiveVertical & horizontal;
+            if ((positiveHorizontal & lastBit) != 0) {
+                distance++;
+            } else if ((negativeHorizontal & lastBit) != 0) {
+                distance--;
+            }
+            positiveHorizontal <<= 1;
+            negativeHorizontal <<= 1;
+            positiveVertical = negativeHorizontal | ~(vertical | positiveHorizontal);
+            negativeVertical = positiveHorizontal & vertical;
+            if (distance <= maxDistance) {
+                matchEnds.set(i + 1);
+            }
+        }
+        return matchEnds;
+    }
+
+    /**
+     * Same as {@link #getApproximatelyMatchingStringList(String, String, int)}, without the bit-parallel filter.
+     */
+    static Set<String> getApproximatelyMatchingStringListByScanning(String sourceString, String search, int maxDistance) {
+        Set<String> matches = new HashSet<>();
+        if (StringUtils.isBlank(search)) {
+            return matches;
+        }
+        search = search.trim();
+        int searchLength = search.length();
+        if (searchLength <= 1) {
+            return matches;
+        }
+        if (searchLength <= 3) {
+            matches.add(search);
+            return matches;
+        }
+        return scanForApproximateMatches(sourceString.toLowerCase().trim(), search.toLowerCase().trim(), searchLength, maxDistance, null);
+    }
+
+    /**
+     * Slides a window of {@code searchLength} characters over {@code sourceString}, completes it to whole words
+     * and keeps it if it is within {@code maxDistance} edits of {@code search}.
+     * If {@code matchEnds} is given, windows that can not contain a substring ending at one of them are skipped,
+     * as they can not be within {@code maxDistance} edits.
+     */
+    private static Set<String> scanForApproximateMatches(String sourceString, String search, int searchLength, int maxDistance,
+                                                         BitSet matchEnds) {
+        int[] wordEnds = matchEnds == null ? null : getAlphanumericRunEnds(sourceString);
+        return scanForApproximateMatches(sourceString, search, searchLength, maxDistance, matchEnds, wordEnds);
+    }
+
+    /**
+     * @param wordEnds {@link #getAlphanumericRunEnds(String)} of {@code sourceString}, required if {@code matchEnds} is given.
+     */
+    static Set<String> scanForApproximateMatches(String sourceString, String search, int searchLength, int maxDistance,
+                                                 BitSet matchEnds, int[] wordEnds) {
+        Set<String> matches = new HashSet<>();
+        int sourceLength = sourceString.length();
+        int[] nextMatchEnd = matchEnds == null ? null : getNextSetBits(matchEnds, sourceLength + 1);
+        int wordBegin = 0;
+        for (int i = 0; i < sourceLength; i++) {
             int endIndex = i + searchLength;
-            if (endIndex >= sourceString.length()) {
-                endIndex = sourceString.length();
+            if (endIndex >= sourceLength) {
+                endIndex = sourceLength;
+            }
+            if (matchEnds != null) {
+                boolean alphanumeric = isAlphanumeric(sourceString.charAt(i));
+                if (i == 0 || ! alphanumeric || ! isAlphanumeric(sourceString.charAt(i - 1))) {
+                    wordBegin = i;
+                }
+                int windowBegin = alphanumeric || i == 0 ? wordBegin : i + 1;
+                int windowEnd = endIndex < sourceLength - 1 ? Math.min(wordEnds[endIndex], sourceLength - 1) : endIndex;
+                int firstPossibleEnd = windowBegin + search.length() - maxDistance;
+                if (firstPossibleEnd > windowEnd || nextMatchEnd[firstPossibleEnd] > windowEnd) {
+                    continue;
+                }
             }
             String completingString = getCompletingString(sourceString, i, endIndex);
             if (matches.contains(completingString)) {
@@ -85,11 +202,77 @@ public class StringTools {
         return matches;
     }
 
+    private static int[] getNextSetBits(BitSet bits, int length) {
+        int[] next = new int[length + 1];
+        next[length] = Integer.MAX_VALUE;
+        for (int i = length - 1; i >= 0; i--) {
+            next[i] = bits.get(i) ? i : next[i + 1];
+        }
+        return next;
+    }
+
+    /**
+     * @return For each index, the first index at or after it that is not alphanumeric.
+     */
+    static int[] getAlphanumericRunEnds(String string) {
+        int[] ends = new int[string.length() + 1];
+        ends[string.length()] = string.length();
+        for (int i = string.length() - 1; i >= 0; i--) {
+            ends[i] = isAlphanumeric(string.charAt(i)) ? ends[i + 1] : i;
+        }
+        return ends;
+    }
+
+    private static boolean isAlphanumeric(char c) {
+        return Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * Bit masks of the positions each character occurs at in one or more search strings.
+     */
+    static class CharacterMasks {
+
+        private final long[] asciiMasks = new long[128];
+
+        private final Map<Character, Long> otherMasks = new HashMap<>();
+
+        CharacterMasks() {
+        }
+
+        CharacterMasks(String search) {
+            add(search, 0);
+        }
+
+        /**
+         * @param search Search string whose characters are masked.
+         * @param offset Bit of the first character of {@code search}.
+         */
+        void add(String search, int offset) {
+            for (int i = 0; i < search.length(); i++) {
+                char c = search.charAt(i);
+                long bit = 1L << (offset + i);
+                if (c < asciiMasks.length) {
+                    asciiMasks[c] |= bit;
+                } else {
+                    otherMasks.merge(c, bit, (a, b) -> a | b);
+                }
+            }
+        }
+
+        long get(char c) {
+            if (c < asciiMasks.length) {
+                return asciiMasks[c];
+            }
+            Long mask = otherMasks.get(c);
+            return mask == null ? 0L : mask;
+        }
+    }
+
     /**
      * @param word
      * @return Max heuristic Levenshtein distance for {@code word}.
      */
-    protected static int getMaxAllowedLevenshteinDistanceFor(String word) {
+    public static int getMaxAllowedLevenshteinDistanceFor(String word) {
         if (StringUtils.isBlank(word)) {
             return 0;
         }
@@ -107,9 +290,7 @@ public class StringTools {
             end += 1;
         }
 
-        String regex = "\\w+(\\(?\\)?\\s+\\w+)*";
-        Pattern pattern = Pattern.compile(regex);
-        Matcher matcher = pattern.matcher(string.substring(begin, end));
+        Matcher matcher = COMPLETING_WORDS.matcher(string.substring(begin, end));
 
         if (matcher.find()) {
             return matcher.group();
@@ -0,0 +1,113 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.cache;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class BoundedCacheTest {
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedEntryWhenFull() {
+        BoundedCache cache = new BoundedCache("test", 2, 0);
+        cache.put(1L, "one");
+        cache.put(2L, "two");
+        cache.get(1L);
+
+        cache.put(3L, "three");
+
+        assertThat(cache.get(2L), nullValue());
+        assertThat(cache.get(1L, String.class), equalTo("one"));
+        assertThat(cache.get(3L, String.class), equalTo("three"));
+        assertThat(cache.getEvictionCount(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldEvictWhenWeightIsExceeded() {
+        BoundedCache cache = new BoundedCache("test", 100, 250);
+        cache.put(1L, new WeightedValue(100));
+        cache.put(2L, new WeightedValue(100));
+
+        cache.put(3L, new WeightedValue(100));
+
+        assertThat(cache.size(), equalTo(2));
+        assertThat(cache.getWeight(), equalTo(200L));
+        assertThat(cache.get(1L), nullValue());
+    }
+
+    @Test
+    public void shouldKeepSingleEntryHeavierThanMaxWeight() {
+        BoundedCache cache = new BoundedCache("test", 100, 50);
+
+        cache.put(1L, new WeightedValue(100));
+
+        assertThat(cache.size(), equalTo(1));
+    }
+
+    @Test
+    public void shouldCountHitsAndMisses() {
+        BoundedCache cache = new BoundedCache("test", 10, 0);
+        cache.put(1L, "one");
+
+        cache.get(1L);
+        cache.get(1L);
+        cache.get(2L);
+
+        assertThat(cache.getHitCount(), equalTo(2L));
+        assertThat(cache.getMissCount(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldNotReplaceExistingValueWithPutIfAbsent() {
+        BoundedCache cache = new BoundedCache("test", 10, 0);
+        cache.put(1L, "one");
+
+        cache.putIfAbsent(1L, "other");
+
+        assertThat(cache.get(1L, String.class), equalTo("one"));
+    }
+
+    @Test
+    public void shouldUpdateWeightOnEvictAndReplace() {
+        BoundedCache cache = new BoundedCache("test", 10, 0);
+        cache.put(1L, new WeightedValue(100));
+        cache.put(1L, new WeightedValue(30));
+        cache.put(2L, new WeightedValue(20));
+
+        cache.evict(2L);
+
+        assertThat(cache.getWeight(), equalTo(30L));
+    }
+
+    private static class WeightedValue implements Weighted {
+
+        private final long size;
+
+        WeightedValue(long size) {
+            this.size = size;
+        }
+
+        @Override
+        public long getApproximateSize() {
+            return size;
+        }
+    }
+
+}
@@ -22,6 +22,7 @@ import org.hibernate.Session;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.Arrays;
 import java.util.List;
 
 import static org.hamcrest.core.IsEqual.equalTo;
@@ -47,4 +48,38 @@ public class BaseDaoTest extends IntegrationTest {
         assertThat(list.size(), equalTo(2));
     }
 
+    @Test
+    public void shouldCloseSessionsAfterEachQuery() {
+        int openSessions = BaseDao.getOpenSessionCount();
+
+        baseDao.executeSQLQueryForSource("create table SessionTable(id int)");
+        baseDao.executeSQLQueryForSource("insert into SessionTable values(1)");
+        List list = baseDao.getSQLResultFromSource("select * from SessionTable");
+
+        assertThat(list.size(), equalTo(1));
+        assertThat(BaseDao.getOpenSessionCount(), equalTo(openSessions));
+    }
+
+    @Test
+    public void shouldCloseSessionWhenWorkFails() {
+        int openSessions = BaseDao.getOpenSessionCount();
+
+        try {
+            baseDao.getSQLResultFromSource("select * from MissingTable");
+        } catch (Exception ignored) {
+        }
+
+        assertThat(BaseDao.getOpenSessionCount(), equalTo(openSessions));
+    }
+
+    @Test
+    public void shouldPadInListToBucketSizeWithLastValue() {
+        List<Long> padded = BaseDao.padInList(Arrays.asList(1L, 2L, 3L));
+
+        assertThat(padded.size(), equalTo(10));
+        assertThat(padded.subList(0, 3), equalTo(Arrays.asList(1L, 2L, 3L)));
+        assertThat(padded.get(9), equalTo(3L));
+        assertThat(BaseDao.padInList(Arrays.asList(1L)).size(), equalTo(1));
+    }
+
 }
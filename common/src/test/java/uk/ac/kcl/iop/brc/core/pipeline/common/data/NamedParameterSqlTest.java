@@ -0,0 +1,58 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.data;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class NamedParameterSqlTest {
+
+    @Test
+    public void shouldReplaceNamedParametersWithPlaceholders() {
+        NamedParameterSql sql = NamedParameterSql.parse("select name from tblPatient where id = :patientId and type = :type");
+
+        assertThat(sql.getSql(), equalTo("select name from tblPatient where id = ? and type = ?"));
+        assertThat(sql.getParameterNames(), equalTo(Arrays.asList("patientId", "type")));
+    }
+
+    @Test
+    public void shouldLeaveQuotedColonsAndCastsAsTheyAre() {
+        NamedParameterSql sql = NamedParameterSql.parse("select ':text', \"a:b\", dob::date from t where id = :id");
+
+        assertThat(sql.getSql(), equalTo("select ':text', \"a:b\", dob::date from t where id = ?"));
+        assertThat(sql.getParameterNames(), equalTo(Collections.singletonList("id")));
+    }
+
+    @Test
+    public void shouldExpandCollectionParameterToOnePlaceholderPerValue() throws SQLException {
+        NamedParameterSql sql = NamedParameterSql.parse("select name from tblPatient where id in (:ids) and type = :type");
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("ids", Arrays.asList(1L, 2L, 3L));
+        parameters.put("type", "text");
+
+        assertThat(sql.getSql(parameters), equalTo("select name from tblPatient where id in (?, ?, ?) and type = ?"));
+    }
+
+}
@@ -0,0 +1,43 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.data;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class SqlIdentifierTest {
+
+    @Test
+    public void shouldAcceptTableAndColumnNames() {
+        assertThat(SqlIdentifier.isValid("TestTable1"), equalTo(true));
+        assertThat(SqlIdentifier.isValid("DBAdmin.dbo.tblpatient"), equalTo(true));
+        assertThat(SqlIdentifier.isValid("dbo.[Event Notes]"), equalTo(true));
+        assertThat(SqlIdentifier.isValid("\"Patient_ID\""), equalTo(true));
+    }
+
+    @Test
+    public void shouldRejectNamesThatChangeTheQuery() {
+        assertThat(SqlIdentifier.isValid("TestTable1; drop table TestTable1"), equalTo(false));
+        assertThat(SqlIdentifier.isValid("id = 1 or 1"), equalTo(false));
+        assertThat(SqlIdentifier.isValid("[a] ; --]"), equalTo(false));
+        assertThat(SqlIdentifier.isValid(""), equalTo(false));
+        assertThat(SqlIdentifier.isValid(null), equalTo(false));
+    }
+
+}
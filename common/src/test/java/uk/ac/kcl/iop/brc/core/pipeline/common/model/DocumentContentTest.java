@@ -0,0 +1,76 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.model;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class DocumentContentTest {
+
+    @Test
+    public void shouldKeepSmallDocumentInMemory() throws IOException {
+        byte[] bytes = {1, 2, 3, 4};
+
+        DocumentContent content = DocumentContent.read(new ByteArrayInputStream(bytes), 100, 10);
+
+        assertThat(content.isInMemory(), equalTo(true));
+        assertThat(content.getLength(), equalTo(4L));
+        assertThat(readAll(content), equalTo(bytes));
+    }
+
+    @Test
+    public void shouldSpillLargeDocumentToTemporaryFileAndDeleteItOnClose() throws IOException {
+        byte[] bytes = new byte[20000];
+        Arrays.fill(bytes, (byte) 7);
+        bytes[0] = 1;
+
+        DocumentContent content = DocumentContent.read(new ByteArrayInputStream(bytes), 100000, 1000);
+
+        assertThat(content.isInMemory(), equalTo(false));
+        assertThat(content.getLength(), equalTo(20000L));
+        assertThat(readAll(content), equalTo(bytes));
+        assertThat(content.getHead(2), equalTo(new byte[] {1, 7}));
+
+        content.close();
+        assertThat(content.getFile().exists(), equalTo(false));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectDocumentLargerThanLimit() throws IOException {
+        DocumentContent.read(new ByteArrayInputStream(new byte[20000]), 10000, 1000);
+    }
+
+    private byte[] readAll(DocumentContent content) throws IOException {
+        byte[] bytes = new byte[(int) content.getLength()];
+        try (InputStream stream = content.openStream()) {
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = stream.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += read;
+            }
+        }
+        return bytes;
+    }
+
+}
@@ -18,10 +18,13 @@ package uk.ac.kcl.iop.brc.core.pipeline.common.service;
 
 import org.apache.tika.io.IOUtils;
 import org.testng.annotations.Test;
+import uk.ac.kcl.iop.brc.core.pipeline.common.model.ConversionResult;
+import uk.ac.kcl.iop.brc.core.pipeline.common.model.DocumentContent;
 
 import java.io.IOException;
 import java.io.InputStream;
 
+import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertTrue;
 
 public class DocumentConversionServiceTest {
@@ -63,6 +66,55 @@ public class DocumentConversionServiceTest {
         assertTrue(text.contains("Introduction"));
     }
 
+    @Test
+    public void shouldConvertWithRestrictedParsers() throws IOException {
+        DocumentConversionService service = new DocumentConversionService();
+        service.setRestrictedParsers(true);
+        InputStream resourceAsStream = getClass().getClassLoader().getResourceAsStream("testDoc.doc");
+        byte[] bytes = IOUtils.toByteArray(resourceAsStream);
+
+        String text = service.convertToText(bytes);
+
+        assertTrue(text.contains("test"));
+    }
+
+    @Test
+    public void shouldConvertPDFToDocumentInSingleParse() throws IOException {
+        DocumentConversionService service = new DocumentConversionService();
+        InputStream resourceAsStream = getClass().getClassLoader().getResourceAsStream("pdfexample.pdf");
+        byte[] bytes = IOUtils.toByteArray(resourceAsStream);
+
+        ConversionResult result = service.convert(bytes, true);
+
+        assertTrue(result.getDocument().body().text().contains("Introduction"));
+        assertTrue(result.getContentLength() > 0);
+        assertFalse(result.hasNoContent());
+    }
+
+    @Test
+    public void shouldConvertPDFSpilledToDisk() throws IOException {
+        DocumentConversionService service = new DocumentConversionService();
+        InputStream resourceAsStream = getClass().getClassLoader().getResourceAsStream("pdfexample.pdf");
+
+        try (DocumentContent content = DocumentContent.read(resourceAsStream, Long.MAX_VALUE, 1024)) {
+            ConversionResult result = service.convert(content, false);
+
+            assertFalse(content.isInMemory());
+            assertTrue(result.getText().contains("Introduction"));
+        }
+    }
+
+    @Test
+    public void shouldFindNoContentInImagePDF() throws IOException {
+        DocumentConversionService service = new DocumentConversionService();
+        InputStream resourceAsStream = getClass().getClassLoader().getResourceAsStream("testPdfImage.pdf");
+        byte[] bytes = IOUtils.toByteArray(resourceAsStream);
+
+        ConversionResult result = service.convert(bytes, false);
+
+        assertTrue(result.hasNoContent());
+    }
+
 //    @Test(threadPoolSize = 3) // invocationCount = 3
 //    @Ignore
 //    public void shouldApplyOCR() throws Exception {
@@ -37,6 +37,29 @@ public class FileTypeServiceTest {
         assertThat(service.isPDF(bytes), equalTo(true));
     }
 
+    @Test
+    public void shouldSniffTypeFromFirstBytes() throws Exception {
+        FileTypeService service = new FileTypeService();
+        File file = new File(getClass().getClassLoader().getResource("testDoc.doc").getPath());
+
+        assertThat(service.sniffType(convertFileToBytes(file)), equalTo("application/msword"));
+        assertThat(service.sniffType(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 0}), equalTo("image/jpeg"));
+        assertThat(service.sniffType("{\\rtf1".getBytes()), equalTo("application/rtf"));
+        assertThat(service.sniffType("plain text".getBytes()), equalTo(null));
+    }
+
+    @Test
+    public void shouldCountDetectedTypes() throws Exception {
+        FileTypeService service = new FileTypeService();
+        File file = new File(getClass().getClassLoader().getResource("pdfexample.pdf").getPath());
+        byte[] bytes = convertFileToBytes(file);
+
+        service.isPDF(bytes);
+        service.isPDF(bytes);
+
+        assertThat(service.getTypeCounts().get("application/pdf"), equalTo(2L));
+    }
+
     public byte[] convertFileToBytes(File file){
         FileInputStream fileInputStream;
         byte[] bFile = new byte[(int) file.length()];
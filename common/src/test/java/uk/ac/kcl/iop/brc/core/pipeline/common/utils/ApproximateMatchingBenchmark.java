@@ -0,0 +1,92 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the bit-parallel approximate matching of {@link StringTools} with the window scan it replaces.
+ * Not a unit test; run it through {@link #main(String[])} with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApproximateMatchingBenchmark {
+
+    private static final String[] WORDS = {"patient", "was", "seen", "by", "the", "team", "today", "and", "reported",
+            "feeling", "better", "mood", "stable", "medication", "reviewed", "plan", "follow", "up", "in", "weeks"};
+
+    @Param({"1000", "10000", "100000"})
+    private int documentLength;
+
+    @Param({"kartoglu", "07881934439"})
+    private String search;
+
+    private String document;
+
+    @Setup
+    public void createDocument() {
+        Random random = new Random(1);
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < documentLength) {
+            builder.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(10) == 0 ? ". " : " ");
+            if (random.nextInt(200) == 0) {
+                builder.append("Kartoglou ");
+            }
+        }
+        document = builder.toString();
+    }
+
+    @Benchmark
+    public Set<String> bitParallel() {
+        return StringTools.getApproximatelyMatchingStringList(document, search, 2);
+    }
+
+    @Benchmark
+    public Set<String> scanning() {
+        return StringTools.getApproximatelyMatchingStringListByScanning(document, search, 2);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ApproximateMatchingBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class MultiLiteralMatcherTest {
+
+    @Test
+    public void shouldReplaceAllLiteralsIgnoringCase() {
+        MultiLiteralMatcher matcher = new MultiLiteralMatcher(Arrays.asList(
+                new MultiLiteralMatcher.Literal("ismail", true, "XXXXX"),
+                new MultiLiteralMatcher.Literal("kartoglu", true, "XXXXX")));
+
+        assertThat(matcher.replaceAll("ISMAIL Kartoglu met Ismail."), equalTo("XXXXX XXXXX met XXXXX."));
+    }
+
+    @Test
+    public void shouldReplaceWholeWordsOnly() {
+        MultiLiteralMatcher matcher = new MultiLiteralMatcher(Arrays.asList(
+                new MultiLiteralMatcher.Literal("ann", true, "XXXXX")));
+
+        assertThat(matcher.replaceAll("Ann, Anne and Joanna"), equalTo("XXXXX, Anne and Joanna"));
+    }
+
+    @Test
+    public void shouldReplaceWithinWordsIfNotWholeWord() {
+        MultiLiteralMatcher matcher = new MultiLiteralMatcher(Arrays.asList(
+                new MultiLiteralMatcher.Literal("1234", false, "HHHHH")));
+
+        assertThat(matcher.replaceAll("nhs:123456"), equalTo("nhs:HHHHH56"));
+    }
+
+    @Test
+    public void shouldPreferLongestMatch() {
+        MultiLiteralMatcher matcher = new MultiLiteralMatcher(Arrays.asList(
+                new MultiLiteralMatcher.Literal("mary", true, "XXXXX"),
+                new MultiLiteralMatcher.Literal("mary ann", true, "YYYYY")));
+
+        assertThat(matcher.replaceAll("Mary Ann and Mary"), equalTo("YYYYY and XXXXX"));
+    }
+
+    @Test
+    public void shouldPreferFirstLiteralOfTheSameLength() {
+        MultiLiteralMatcher matcher = new MultiLiteralMatcher(Arrays.asList(
+                new MultiLiteralMatcher.Literal("mary", true, "XXXXX"),
+                new MultiLiteralMatcher.Literal("MARY", true, "YYYYY")));
+
+        assertThat(matcher.replaceAll("Mary"), equalTo("XXXXX"));
+    }
+
+    @Test
+    public void shouldFallBackToShorterMatchIfLongerOneIsNotOnWordBoundary() {
+        MultiLiteralMatcher matcher = new MultiLiteralMatcher(Arrays.asList(
+                new MultiLiteralMatcher.Literal("ann", true, "XXXXX"),
+                new MultiLiteralMatcher.Literal("ann smi", true, "YYYYY")));
+
+        assertThat(matcher.replaceAll("Ann Smith"), equalTo("XXXXX Smith"));
+    }
+
+    @Test
+    public void shouldFindOverlappingLiteralsThroughFailureLinks() {
+        MultiLiteralMatcher matcher = new MultiLiteralMatcher(Arrays.asList(
+                new MultiLiteralMatcher.Literal("she", false, "1"),
+                new MultiLiteralMatcher.Literal("he", false, "2"),
+                new MultiLiteralMatcher.Literal("hers", false, "3")));
+
+        assertThat(matcher.replaceAll("ushers"), equalTo("u1rs"));
+        assertThat(matcher.replaceAll("uhers"), equalTo("u3"));
+    }
+
+    @Test
+    public void shouldMatchLiteralsAsRegexWouldForDates() {
+        MultiLiteralMatcher matcher = new MultiLiteralMatcher(Arrays.asList(
+                new MultiLiteralMatcher.Literal("09/05/1990", false, "DDDDD"),
+                new MultiLiteralMatcher.Literal("1990", false, "DDDDD")));
+        String text = "Born on 09/05/1990, in 1990.";
+
+        assertThat(matcher.replaceAll(text), equalTo(text.replaceAll("(?i)09/05/1990", "DDDDD").replaceAll("(?i)1990", "DDDDD")));
+    }
+
+    @Test
+    public void shouldReturnTextIfNothingMatches() {
+        MultiLiteralMatcher matcher = new MultiLiteralMatcher(Arrays.asList(
+                new MultiLiteralMatcher.Literal("ismail", true, "XXXXX")));
+
+        assertThat(matcher.replaceAll("Nothing to see"), equalTo("Nothing to see"));
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.common.utils;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class MultiPatternFuzzyMatcherTest {
+
+    @Test
+    public void shouldFindApproximateMatchesOfAllSearches() {
+        MultiPatternFuzzyMatcher matcher = new MultiPatternFuzzyMatcher(Arrays.asList(
+                new MultiPatternFuzzyMatcher.Search("Ismail", 1),
+                new MultiPatternFuzzyMatcher.Search("Kartoglu", 1),
+                new MultiPatternFuzzyMatcher.Search("Richard", 1)));
+
+        List<Set<String>> matches = matcher.getApproximatelyMatchingStringLists("Seen today: Ismal, Kartoglou.");
+
+        assertThat(matches.size(), equalTo(3));
+        assertTrue(matches.get(0).contains("ismal"));
+        assertTrue(matches.get(1).contains("kartoglou"));
+        assertTrue(matches.get(2).isEmpty());
+    }
+
+    @Test
+    public void shouldReturnShortSearchesAsTheyAre() {
+        MultiPatternFuzzyMatcher matcher = new MultiPatternFuzzyMatcher(Arrays.asList(
+                new MultiPatternFuzzyMatcher.Search("Al ", 1),
+                new MultiPatternFuzzyMatcher.Search("A", 1),
+                new MultiPatternFuzzyMatcher.Search(" ", 1)));
+
+        List<Set<String>> matches = matcher.getApproximatelyMatchingStringLists("Nothing here");
+
+        assertTrue(matches.get(0).contains("Al"));
+        assertTrue(matches.get(1).isEmpty());
+        assertTrue(matches.get(2).isEmpty());
+    }
+
+    @Test
+    public void shouldFindTheSameMatchesAsStringTools() {
+        Random random = new Random(42);
+        String alphabet = "abcdeAB 0123-.,()\"";
+        for (int i = 0; i < 500; i++) {
+            String text = randomString(random, alphabet, random.nextInt(100));
+            List<MultiPatternFuzzyMatcher.Search> searches = new ArrayList<>();
+            for (int j = 0; j < 1 + random.nextInt(10); j++) {
+                int length = random.nextInt(5) == 0 ? 70 : 1 + random.nextInt(12);
+                searches.add(new MultiPatternFuzzyMatcher.Search(randomString(random, alphabet, length), random.nextInt(4)));
+            }
+
+            List<Set<String>> matches = new MultiPatternFuzzyMatcher(searches).getApproximatelyMatchingStringLists(text);
+
+            for (int j = 0; j < searches.size(); j++) {
+                MultiPatternFuzzyMatcher.Search search = searches.get(j);
+                assertThat(matches.get(j), equalTo(StringTools.getApproximatelyMatchingStringList(text, search.getText(), search.getMaxDistance())));
+            }
+        }
+    }
+
+    @Test
+    public void shouldFindMatchesOfSearchesSharingAWord() {
+        List<MultiPatternFuzzyMatcher.Search> searches = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            searches.add(new MultiPatternFuzzyMatcher.Search(StringUtils.repeat((char) ('a' + i), 5), 1));
+        }
+        MultiPatternFuzzyMatcher matcher = new MultiPatternFuzzyMatcher(searches);
+
+        List<Set<String>> matches = matcher.getApproximatelyMatchingStringLists("Seen: aaaa, bbbxb, ccccc, lllll.");
+
+        assertTrue(matches.get(0).contains("aaaa"));
+        assertTrue(matches.get(1).contains("bbbxb"));
+        assertTrue(matches.get(2).contains("ccccc"));
+        assertTrue(matches.get(3).isEmpty());
+        assertTrue(matches.get(11).contains("lllll"));
+    }
+
+    private String randomString(Random random, String alphabet, int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+
+}
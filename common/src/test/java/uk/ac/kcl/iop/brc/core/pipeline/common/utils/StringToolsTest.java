@@ -19,7 +19,9 @@ package uk.ac.kcl.iop.brc.core.pipeline.common.utils;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Test;
 
+import java.util.BitSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import static org.hamcrest.CoreMatchers.equalTo;
@@ -221,4 +223,58 @@ public class StringToolsTest {
         assertThat(strings.contains("34"), equalTo(false));
     }
 
+    @Test
+    public void shouldFindApproximateMatchEnds() {
+        BitSet ends = StringTools.getApproximateMatchEnds("seen by ismal today", "ismail", 1);
+
+        assertThat(ends.nextSetBit(0), equalTo(13));
+        assertThat(ends.nextSetBit(14), equalTo(-1));
+    }
+
+    @Test
+    public void shouldFindExactMatchEndsWithZeroDistance() {
+        BitSet ends = StringTools.getApproximateMatchEnds("abcabc", "abc", 0);
+
+        assertThat(ends.cardinality(), equalTo(2));
+        assertTrue(ends.get(3));
+        assertTrue(ends.get(6));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAcceptTooLongSearchForMatchEnds() {
+        StringTools.getApproximateMatchEnds("text", StringUtils.repeat("a", StringTools.MAX_BIT_PARALLEL_SEARCH_LENGTH + 1), 1);
+    }
+
+    @Test
+    public void shouldFindTheSameApproximateMatchesAsScanning() {
+        Random random = new Random(42);
+        String alphabet = "abcdeAB 0123-.,()\"";
+        for (int i = 0; i < 2000; i++) {
+            String text = randomString(random, alphabet, random.nextInt(80));
+            String search = randomString(random, alphabet, 4 + random.nextInt(8));
+            int maxDistance = random.nextInt(4);
+
+            assertThat(StringTools.getApproximatelyMatchingStringList(text, search, maxDistance),
+                    equalTo(StringTools.getApproximatelyMatchingStringListByScanning(text, search, maxDistance)));
+        }
+    }
+
+    @Test
+    public void shouldGetApproximatelyMatchingStringsOfLongSearch() {
+        String search = StringUtils.repeat("ab", StringTools.MAX_BIT_PARALLEL_SEARCH_LENGTH);
+        String text = "x " + search.substring(1) + " y";
+
+        Set<String> strings = StringTools.getApproximatelyMatchingStringList(text, search, 1);
+
+        assertTrue(strings.contains(search.substring(1)));
+    }
+
+    private String randomString(Random random, String alphabet, int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+
 }
@@ -44,6 +44,12 @@ public class CommandClient implements CommandProcessor {
         if (cmd.hasOption("cognitionName")) {
             clientService.setCognitionName(cmd.getOptionValue("cognitionName"));
         }
+        if (cmd.hasOption("prefetchChunks")) {
+            clientService.setPrefetchChunks(Integer.valueOf(cmd.getOptionValue("prefetchChunks")));
+        }
+        if (cmd.hasOption("targetChunkSeconds")) {
+            clientService.setTargetChunkSeconds(Integer.valueOf(cmd.getOptionValue("targetChunkSeconds")));
+        }
         clientService.startProcessing();
     }
 
@@ -60,6 +66,14 @@ public class CommandClient implements CommandProcessor {
                         .withDescription("Cognition name of the computer")
                         .hasArg()
                         .withArgName("cognitionName").create()
+        ).addOption(OptionBuilder.withLongOpt("prefetchChunks")
+                        .withDescription("Number of chunks to keep in flight, including the one being processed.")
+                        .hasArg()
+                        .withArgName("prefetchChunks").create()
+        ).addOption(OptionBuilder.withLongOpt("targetChunkSeconds")
+                        .withDescription("Seconds the client aims to spend on each chunk. 0 lets the coordinator decide.")
+                        .hasArg()
+                        .withArgName("targetChunkSeconds").create()
         );
     }
 
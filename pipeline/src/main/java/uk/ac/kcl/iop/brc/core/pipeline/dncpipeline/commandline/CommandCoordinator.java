@@ -41,6 +41,12 @@ public class CommandCoordinator implements CommandProcessor {
         if (cmd.hasOption("chunkSize")) {
             coordinatorService.setChunkSize(Integer.valueOf(cmd.getOptionValue("chunkSize")));
         }
+        if (cmd.hasOption("leaseTimeout")) {
+            coordinatorService.setLeaseTimeoutSeconds(Integer.valueOf(cmd.getOptionValue("leaseTimeout")));
+        }
+        if (cmd.hasOption("leaseTargetSeconds")) {
+            coordinatorService.setLeaseTargetSeconds(Integer.valueOf(cmd.getOptionValue("leaseTargetSeconds")));
+        }
         coordinatorService.startServer();
     }
 
@@ -52,7 +58,15 @@ public class CommandCoordinator implements CommandProcessor {
                 .addOption(OptionBuilder.withLongOpt("chunkSize")
                                 .withDescription("Number of work coordinates to ask from server.")
                                 .hasArg()
-                                .withArgName("chunkSize").create());
+                                .withArgName("chunkSize").create())
+                .addOption(OptionBuilder.withLongOpt("leaseTimeout")
+                                .withDescription("Seconds after which the chunk of a client that stopped sending heartbeats is handed out again.")
+                                .hasArg()
+                                .withArgName("leaseTimeout").create())
+                .addOption(OptionBuilder.withLongOpt("leaseTargetSeconds")
+                                .withDescription("Seconds a client should take to process a chunk, at its measured rate. 0 keeps chunkSize.")
+                                .hasArg()
+                                .withArgName("leaseTargetSeconds").create());
     }
 
 }
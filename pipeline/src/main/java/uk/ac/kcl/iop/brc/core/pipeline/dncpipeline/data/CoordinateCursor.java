@@ -0,0 +1,189 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data;
+
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
+
+import java.io.Closeable;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Forward-only cursor over the rows of the getCoordinates query. Rows are read from the
+ * database as they are consumed, so only the current page of coordinates is kept in memory.
+ * Columns are mapped to coordinates by their aliases, as with the aliasToBean transformer.
+ * The cursor holds a database connection until it is closed.
+ */
+public class CoordinateCursor implements Iterator<DNCWorkCoordinate>, Closeable {
+
+    /**
+     * Closes the session that holds the connection of the cursor.
+     */
+    private final Runnable closeSession;
+
+    private final Statement statement;
+
+    private final ResultSet resultSet;
+
+    private final Map<String, Integer> columns = new HashMap<>();
+
+    private DNCWorkCoordinate nextCoordinate;
+
+    private boolean closed;
+
+    private long position = 0;
+
+    CoordinateCursor(Runnable closeSession, Statement statement, ResultSet resultSet) throws SQLException {
+        this.closeSession = closeSession;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.closed = resultSet == null;
+        if (resultSet != null) {
+            ResultSetMetaData metaData = resultSet.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                columns.put(metaData.getColumnLabel(i).toLowerCase(), i);
+            }
+        }
+    }
+
+    /**
+     * @return A cursor without any coordinates.
+     */
+    static CoordinateCursor empty() {
+        try {
+            return new CoordinateCursor(null, null, null);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextCoordinate != null) {
+            return true;
+        }
+        if (closed) {
+            return false;
+        }
+        try {
+            if (resultSet.next()) {
+                nextCoordinate = readCoordinate();
+                return true;
+            }
+        } catch (SQLException e) {
+            close();
+            throw new IllegalStateException("Could not read coordinates after " + position + " rows.", e);
+        }
+        close();
+        return false;
+    }
+
+    @Override
+    public DNCWorkCoordinate next() {
+        if (! hasNext()) {
+            throw new NoSuchElementException();
+        }
+        DNCWorkCoordinate coordinate = nextCoordinate;
+        nextCoordinate = null;
+        position++;
+        return coordinate;
+    }
+
+    /**
+     * @param pageSize Maximum number of coordinates to be returned.
+     * @return The next coordinates of the cursor. An empty list when there are no coordinates left.
+     */
+    public List<DNCWorkCoordinate> nextPage(int pageSize) {
+        List<DNCWorkCoordinate> page = new ArrayList<>(pageSize);
+        while (page.size() < pageSize && hasNext()) {
+            page.add(next());
+        }
+        return page;
+    }
+
+    /**
+     * @return Number of coordinates read from the cursor so far.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            resultSet.close();
+            statement.close();
+        } catch (SQLException e) {
+            // The session is closed below, which releases the connection anyway.
+        } finally {
+            closeSession.run();
+        }
+    }
+
+    private DNCWorkCoordinate readCoordinate() throws SQLException {
+        DNCWorkCoordinate coordinate = new DNCWorkCoordinate();
+        coordinate.setPatientId(getRequiredLong("patientId"));
+        coordinate.setSourceTable(getString("sourceTable"));
+        coordinate.setSourceColumn(getString("sourceColumn"));
+        coordinate.setIdInSourceTable(getRequiredLong("idInSourceTable"));
+        coordinate.setPkColumnName(getString("pkColumnName"));
+        coordinate.setType(getString("type"));
+        coordinate.setUpdateTime(getString("updateTime"));
+        return coordinate;
+    }
+
+    private String getString(String alias) throws SQLException {
+        Integer column = columns.get(alias.toLowerCase());
+        return column == null ? null : resultSet.getString(column);
+    }
+
+    /**
+     * @return Value of the column, or null if the query has no such column or the value is NULL.
+     */
+    private Long getLong(String alias) throws SQLException {
+        Integer column = columns.get(alias.toLowerCase());
+        if (column == null) {
+            return null;
+        }
+        long value = resultSet.getLong(column);
+        return resultSet.wasNull() ? null : value;
+    }
+
+    /**
+     * @throws SQLException if the query has no such column or the value is NULL, as the coordinate
+     * would point at the wrong patient or document otherwise.
+     */
+    private long getRequiredLong(String alias) throws SQLException {
+        Long value = getLong(alias);
+        if (value == null) {
+            throw new SQLException("Coordinate in row " + (position + 1) + " has no " + alias + ".");
+        }
+        return value;
+    }
+}
@@ -18,10 +18,14 @@ package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data;
 
 import org.apache.log4j.Logger;
 import org.hibernate.Query;
+import org.hibernate.StatelessSession;
 import org.hibernate.transform.Transformers;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 import uk.ac.kcl.iop.brc.core.pipeline.common.data.BaseDao;
 
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
@@ -31,6 +35,9 @@ public class CoordinatesDao extends BaseDao {
 
     private static Logger logger = Logger.getLogger(CoordinatesDao.class);
 
+    @Value("${coordinateFetchSize:1000}")
+    private int coordinateFetchSize = 1000;
+
     /**
      *
      * @return A list of all coordinates to be processed. Coordinates are retreieved
@@ -38,14 +45,40 @@ public class CoordinatesDao extends BaseDao {
      */
     public List<DNCWorkCoordinate> getCoordinates() {
         try {
-            Query getCoordinates = getCurrentSourceSession().getNamedQuery("getCoordinates");
-            List<DNCWorkCoordinate> coordinateList = getCoordinates
-                    .setResultTransformer(Transformers.aliasToBean(DNCWorkCoordinate.class))
-                    .list();
-            return coordinateList;
+            return inSourceSession(session -> {
+                Query getCoordinates = session.getNamedQuery("getCoordinates");
+                List<DNCWorkCoordinate> coordinateList = getCoordinates
+                        .setResultTransformer(Transformers.aliasToBean(DNCWorkCoordinate.class))
+                        .list();
+                return coordinateList;
+            });
         } catch (Exception ex) {
             logger.error("Error loading coordinates. Please check getCoordinates query. " + ex.getMessage());
             return new ArrayList<>();
         }
     }
+
+    /**
+     * Opens a forward-only, read-only JDBC cursor on the named-query "getCoordinates", reading
+     * {@code coordinateFetchSize} rows per round trip. The cursor must be closed after use.
+     * @return A cursor over all coordinates to be processed. An empty cursor if the query fails.
+     */
+    @SuppressWarnings("deprecation")
+    public CoordinateCursor openCoordinateCursor() {
+        StatelessSession session = openSourceStatelessSession();
+        try {
+            String queryString = session.getNamedQuery("getCoordinates").getQueryString();
+            Statement statement = session.connection().createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(coordinateFetchSize);
+            return new CoordinateCursor(() -> closeStatelessSession(session), statement, statement.executeQuery(queryString));
+        } catch (Exception ex) {
+            closeStatelessSession(session);
+            logger.error("Error loading coordinates. Please check getCoordinates query. " + ex.getMessage());
+            return CoordinateCursor.empty();
+        }
+    }
+
+    public void setCoordinateFetchSize(int coordinateFetchSize) {
+        this.coordinateFetchSize = coordinateFetchSize;
+    }
 }
@@ -16,22 +16,64 @@
 
 package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data;
 
-import org.hibernate.Query;
-import org.hibernate.SQLQuery;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 import org.springframework.util.CollectionUtils;
 import uk.ac.kcl.iop.brc.core.pipeline.common.data.BaseDao;
+import uk.ac.kcl.iop.brc.core.pipeline.common.data.RowMapper;
+import uk.ac.kcl.iop.brc.core.pipeline.common.data.SqlIdentifier;
+import uk.ac.kcl.iop.brc.core.pipeline.common.model.DocumentContent;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.helper.BlobHelper;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.helper.ClobHelper;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.exception.WorkCoordinateNotFound;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.ConvertedText;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 @Repository
 public class DNCWorkUnitDao extends BaseDao {
 
+    /**
+     * Maximum number of ids in a single getObjectsFromCoordinates query.
+     */
+    private static final int BULK_FETCH_SIZE = 500;
+
+    /**
+     * getObjectFromCoordinate SQL by source table, source column and primary key column.
+     */
+    private final Map<List<String>, String> coordinateQueries = new ConcurrentHashMap<>();
+
+    /**
+     * getObjectsFromCoordinates SQL by source table, source column and primary key column.
+     */
+    private final Map<List<String>, String> bulkCoordinateQueries = new ConcurrentHashMap<>();
+
+    /**
+     * Bytes of binary documents that one getObjectsFromCoordinates call keeps in memory.
+     * Once they are used, the next documents are spilled to temporary files whatever their size.
+     */
+    @Value("${bulkFetchMemoryBytes:67108864}")
+    private long bulkFetchMemoryBytes = 67108864L;
+
     @Autowired
     private BlobHelper blobHelper;
 
@@ -48,35 +90,57 @@ public class DNCWorkUnitDao extends BaseDao {
             throw new IllegalArgumentException("Coordinate is not a text coordinate. It's a binary one.");
         }
 
-        Object result = getObjectFromCoordinate(coordinate);
-
-        return clobHelper.getStringFromExpectedClob(result);
+        return getObjectFromCoordinate(coordinate, resultSet -> readText(resultSet.getCharacterStream(1)));
     }
 
     /**
-     *
+     * Reads the binary object as a stream, so that large documents are spilled to a temporary file
+     * instead of being copied into memory. The content must be closed after use.
      * @param coordinate Coordinate of the binary object in the source database.
-     * @return A byte array of the binary object.
+     * @return Content of the binary object.
      */
-    public byte[] getByteFromCoordinate(DNCWorkCoordinate coordinate) {
+    public DocumentContent getContentFromCoordinate(DNCWorkCoordinate coordinate) {
         if (! coordinate.isBinary()) {
             throw new IllegalArgumentException("Coordinate is a text coordinate but binary is expected");
         }
 
-        Object blobProxy = getObjectFromCoordinate(coordinate);
+        return getObjectFromCoordinate(coordinate, resultSet -> readContent(resultSet.getBinaryStream(1)));
+    }
 
-        return blobHelper.getByteFromExpectedBlobObject(blobProxy);
+    private String readText(Reader reader) {
+        try {
+            return clobHelper.getString(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private DocumentContent readContent(InputStream stream) {
+        try {
+            return blobHelper.getContent(stream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private DocumentContent readContent(InputStream stream, int spillThreshold) {
+        try {
+            return blobHelper.getContent(stream, spillThreshold);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    private Object getObjectFromCoordinate(DNCWorkCoordinate coordinate) {
-        Query coordinateQuery = getCurrentSourceSession().getNamedQuery("getObjectFromCoordinate");
-        String queryString = coordinateQuery.getQueryString();
-        queryString = queryString.replace(":sourceTable", coordinate.getSourceTable())
-                .replace(":sourceColumn", coordinate.getSourceColumn())
-                .replace(":pkColumnName", coordinate.getPkColumnName())
-                .replace(":id", Long.toString(coordinate.getIdInSourceTable()));
+    /**
+     * Reads the content of the coordinate with a plain JDBC statement. Only the table and column names
+     * are put in the SQL; the id is a parameter, so the SQL is the same for every coordinate of the column
+     * and the prepared statement and the plan of the query are reused.
+     */
+    private <T> T getObjectFromCoordinate(DNCWorkCoordinate coordinate, RowMapper<T> rowMapper) {
+        String queryString = coordinateQueries.computeIfAbsent(getColumnKey(coordinate), this::createCoordinateQuery);
+        Map<String, Long> parameters = Collections.singletonMap("id", coordinate.getIdInSourceTable());
 
-        List result = getSQLResultFromSource(queryString);
+        List<T> result = inSourceConnection(connection -> queryForList(connection, queryString, parameters, rowMapper));
 
         if (CollectionUtils.isEmpty(result)) {
             throw new WorkCoordinateNotFound("Coordinate is invalid. No data found at " + coordinate);
@@ -85,20 +149,178 @@ public class DNCWorkUnitDao extends BaseDao {
         return result.get(0);
     }
 
+    /**
+     * @param columnKey Source table, source column and primary key column of coordinates.
+     * @return The getObjectFromCoordinate query for the column, with :id left as a parameter.
+     */
+    private String createCoordinateQuery(List<String> columnKey) {
+        return getSourceQueryString("getObjectFromCoordinate")
+                .replace(":sourceTable", columnKey.get(0))
+                .replace(":sourceColumn", columnKey.get(1))
+                .replace(":pkColumnName", columnKey.get(2));
+    }
+
+    /**
+     * @param columnKey Source table, source column and primary key column of coordinates.
+     * @return The getObjectsFromCoordinates query for the column, with :ids left as a parameter.
+     */
+    private String createBulkCoordinateQuery(List<String> columnKey) {
+        return getSourceQueryString("getObjectsFromCoordinates")
+                .replace(":sourceTable", columnKey.get(0))
+                .replace(":sourceColumn", columnKey.get(1))
+                .replace(":pkColumnName", columnKey.get(2));
+    }
+
+    /**
+     * Reads the contents of many coordinates with one query for every {@value #BULK_FETCH_SIZE}
+     * coordinates that share the same source table, source column and primary key column.
+     * The queries run as plain JDBC statements on one connection. The ids are bound as parameters, padded
+     * to a few list sizes, so each column has only a few variants of the SQL to prepare.
+     * Each row is streamed from the DB as it is read. Binary documents are kept in memory up to
+     * bulkFetchMemoryBytes in total; the ones read after that are spilled to temporary files.
+     * Coordinates of the same row share its content, and each of them must close it.
+     * @param coordinates Coordinates of texts or binary objects in the source database.
+     * @return Content of each coordinate that was found, as a String for text coordinates and
+     * a {@link DocumentContent} for binary ones. Coordinates without any data are left out.
+     */
+    public Map<DNCWorkCoordinate, Object> getObjectsFromCoordinates(List<DNCWorkCoordinate> coordinates) {
+        Map<DNCWorkCoordinate, Object> contents = new HashMap<>();
+        AtomicLong inMemoryBytes = new AtomicLong();
+        Map<List<String>, List<DNCWorkCoordinate>> coordinatesByColumn = coordinates.stream()
+                .collect(Collectors.groupingBy(this::getColumnKey, LinkedHashMap::new, Collectors.toList()));
+        try {
+            return inSourceConnection(connection -> {
+                for (Map.Entry<List<String>, List<DNCWorkCoordinate>> column : coordinatesByColumn.entrySet()) {
+                    List<DNCWorkCoordinate> columnCoordinates = column.getValue();
+                    for (int i = 0; i < columnCoordinates.size(); i += BULK_FETCH_SIZE) {
+                        List<DNCWorkCoordinate> batch = columnCoordinates.subList(i, Math.min(i + BULK_FETCH_SIZE, columnCoordinates.size()));
+                        fetchBatch(connection, column.getKey(), batch, contents, inMemoryBytes);
+                    }
+                }
+                return contents;
+            });
+        } catch (RuntimeException ex) {
+            contents.values().stream()
+                    .filter(content -> content instanceof DocumentContent)
+                    .forEach(content -> ((DocumentContent) content).close());
+            throw ex;
+        }
+    }
+
+    private void fetchBatch(Connection connection, List<String> columnKey, List<DNCWorkCoordinate> batch,
+                            Map<DNCWorkCoordinate, Object> contents, AtomicLong inMemoryBytes) throws SQLException {
+        String queryString = bulkCoordinateQueries.computeIfAbsent(columnKey, this::createBulkCoordinateQuery);
+        List<Long> ids = padInList(batch.stream()
+                .map(DNCWorkCoordinate::getIdInSourceTable)
+                .distinct()
+                .collect(Collectors.toList()));
+        boolean binary = batch.get(0).isBinary();
+
+        Map<Long, Object> rowsById = new HashMap<>();
+        try {
+            queryForList(connection, queryString, Collections.singletonMap("ids", ids), resultSet -> {
+                long id = resultSet.getLong(1);
+                if (binary) {
+                    long spillThreshold = Math.max(0, bulkFetchMemoryBytes - inMemoryBytes.get());
+                    DocumentContent content = readContent(resultSet.getBinaryStream(2), (int) Math.min(spillThreshold, Integer.MAX_VALUE));
+                    if (content != null && content.isInMemory()) {
+                        inMemoryBytes.addAndGet(content.getLength());
+                    }
+                    rowsById.put(id, content);
+                } else {
+                    rowsById.put(id, readText(resultSet.getCharacterStream(2)));
+                }
+                return id;
+            });
+        } catch (SQLException | RuntimeException ex) {
+            rowsById.values().stream()
+                    .filter(content -> content instanceof DocumentContent)
+                    .forEach(content -> ((DocumentContent) content).close());
+            throw ex;
+        }
+
+        Set<Long> handedOut = new HashSet<>();
+        for (DNCWorkCoordinate coordinate : batch) {
+            Long id = coordinate.getIdInSourceTable();
+            if (! rowsById.containsKey(id)) {
+                continue;
+            }
+            Object content = rowsById.get(id);
+            if (content instanceof DocumentContent && ! handedOut.add(id)) {
+                content = ((DocumentContent) content).share();
+            }
+            contents.put(coordinate, content);
+        }
+    }
+
+    /**
+     * @return Source table, source column and primary key column of the coordinate, which are put in SQL text.
+     * @throws IllegalArgumentException if any of them is not a valid SQL identifier.
+     */
+    private List<String> getColumnKey(DNCWorkCoordinate coordinate) {
+        return Arrays.asList(SqlIdentifier.requireValid(coordinate.getSourceTable()),
+                SqlIdentifier.requireValid(coordinate.getSourceColumn()),
+                SqlIdentifier.requireValid(coordinate.getPkColumnName()));
+    }
+
     /**
      *
      * @param coordinate The original coordinate of the text
      * @param processedText The processed text to be saved via saveTextToCoordinate named-query.
      */
     public void saveConvertedText(DNCWorkCoordinate coordinate, String processedText) {
-        Query query = getCurrentTargetSession().getNamedQuery("saveTextToCoordinate");
-        String queryString = query.getQueryString();
-        SQLQuery sqlQuery = getCurrentTargetSession().createSQLQuery(queryString);
-        sqlQuery.setParameter(0, coordinate.getSourceTable());
-        sqlQuery.setParameter(1, coordinate.getSourceColumn());
-        sqlQuery.setParameter(2, coordinate.getIdInSourceTable());
-        sqlQuery.setParameter(3, processedText);
-        sqlQuery.executeUpdate();
+        String queryString = getTargetQueryString("saveTextToCoordinate");
+        inTargetConnection(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(queryString)) {
+                statement.setString(1, coordinate.getSourceTable());
+                statement.setString(2, coordinate.getSourceColumn());
+                statement.setLong(3, coordinate.getIdInSourceTable());
+                statement.setString(4, processedText);
+                return statement.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Saves the texts with a single JDBC batch of saveTextToCoordinate statements,
+     * committed as one transaction.
+     * @param convertedTexts Processed texts to be saved.
+     */
+    public void saveConvertedTexts(List<? extends ConvertedText> convertedTexts) {
+        if (convertedTexts.isEmpty()) {
+            return;
+        }
+        String queryString = getTargetQueryString("saveTextToCoordinate");
+        inTargetConnection(connection -> {
+            executeBatch(connection, queryString, convertedTexts);
+            return null;
+        });
+    }
+
+    private void executeBatch(Connection connection, String queryString, List<? extends ConvertedText> convertedTexts) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement statement = connection.prepareStatement(queryString)) {
+            for (ConvertedText convertedText : convertedTexts) {
+                DNCWorkCoordinate coordinate = convertedText.getCoordinate();
+                statement.setString(1, coordinate.getSourceTable());
+                statement.setString(2, coordinate.getSourceColumn());
+                statement.setLong(3, coordinate.getIdInSourceTable());
+                statement.setString(4, convertedText.getProcessedText());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            connection.commit();
+        } catch (SQLException ex) {
+            connection.rollback();
+            throw ex;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    public void setBulkFetchMemoryBytes(long bulkFetchMemoryBytes) {
+        this.bulkFetchMemoryBytes = bulkFetchMemoryBytes;
     }
 
 }
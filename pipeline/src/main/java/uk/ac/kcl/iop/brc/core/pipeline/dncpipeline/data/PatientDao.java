@@ -19,20 +19,33 @@ package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
-import org.hibernate.Query;
-import org.hibernate.transform.Transformers;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Repository;
+import uk.ac.kcl.iop.brc.core.pipeline.common.cache.BoundedCache;
 import uk.ac.kcl.iop.brc.core.pipeline.common.data.BaseDao;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.helper.ClobHelper;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.exception.PatientNotFound;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.Patient;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.PatientAddress;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.PatientCarer;
 
+import java.sql.Connection;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
 
 @Repository
 public class PatientDao extends BaseDao {
@@ -40,162 +53,339 @@ public class PatientDao extends BaseDao {
     @Autowired
     private ClobHelper clobHelper;
 
+    @Autowired(required = false)
+    private CacheManager cacheManager;
+
     private static Logger logger = Logger.getLogger(PatientDao.class);
 
+    /**
+     * Maximum number of patient ids bound to one IN (...) query. SQL Server allows at most 2100 parameters.
+     */
+    private static final int BULK_LOAD_SIZE = 500;
+
+    private static final String PATIENT_CACHE = "patients";
+
     /**
      * Returns the patient with the given id.
      * Returns the patient from the cache if it's been fetched once.
+     * The patient and its identifiers are loaded with plain JDBC statements on one connection.
      *
      * @param id
      * @return a patient object of the patient with the given id.
+     * @throws PatientNotFound if there is no patient with the given id. Nothing is cached then.
      */
     @Cacheable(value = "patients", key = "#id")
     public Patient getPatient(Long id) {
-        Query getPatient = getCurrentSourceSession().getNamedQuery("getPatient");
-        getPatient.setParameter("patientId", id);
         logger.info("Loading patient " + id);
-        Patient patient = (Patient) getPatient.
-                setFirstResult(0).setMaxResults(1).
-                setResultTransformer(Transformers.aliasToBean(Patient.class)).uniqueResult();
+        return inSourceConnection(connection -> {
+            List<Patient> patients = queryForList(connection, getSourceQueryString("getPatient"),
+                    getPatientParameter(id), resultSet -> newPatient(resultSet.getLong(1)));
+            if (patients.isEmpty()) {
+                throw new PatientNotFound("No patient found with id " + id);
+            }
+            Patient patient = patients.get(0);
 
-        setNames(patient);
-        setPhoneNumbers(patient);
-        setAddresses(patient);
-        setCarers(patient);
-        setNhsNumbers(patient);
-        setDateOfBirths(patient);
+            setNames(connection, patient);
+            setPhoneNumbers(connection, patient);
+            setAddresses(connection, patient);
+            setCarers(connection, patient);
+            setNhsNumbers(connection, patient);
+            setDateOfBirths(connection, patient);
 
-        return patient;
+            return patient;
+        });
     }
 
-    private void setNhsNumbers(Patient patient) {
+    /**
+     * Returns the patients with the given ids, loading the ones that are not in the cache
+     * with one query per identifier table for every {@value #BULK_LOAD_SIZE} patients.
+     * Loaded patients are put in the cache, so that {@link #getPatient(Long)} returns them afterwards.
+     * Patients that can not be loaded in bulk are left out; {@link #getPatient(Long)} loads them one by one.
+     *
+     * @param ids Patient ids.
+     * @return Patients by id.
+     */
+    public Map<Long, Patient> getPatients(Collection<Long> ids) {
+        Map<Long, Patient> patients = new HashMap<>();
+        List<Long> idsToLoad = new ArrayList<>();
+        for (Long id : new LinkedHashSet<>(ids)) {
+            if (id == null) {
+                continue;
+            }
+            Patient patient = getCachedPatient(id);
+            if (patient != null) {
+                patients.put(id, patient);
+            } else {
+                idsToLoad.add(id);
+            }
+        }
+
+        for (int i = 0; i < idsToLoad.size(); i += BULK_LOAD_SIZE) {
+            List<Long> batch = idsToLoad.subList(i, Math.min(i + BULK_LOAD_SIZE, idsToLoad.size()));
+            try {
+                loadPatients(batch).forEach((id, patient) -> {
+                    cachePatient(patient);
+                    patients.put(id, patient);
+                });
+            } catch (Exception ex) {
+                logger.warn("Error while loading " + batch.size() + " patients in bulk. They will be loaded one by one. " + ex.getMessage());
+            }
+        }
+        return patients;
+    }
+
+    /**
+     * Loads the patients and their identifiers with plain JDBC statements on one connection,
+     * the ids being bound as a list of parameters.
+     */
+    private Map<Long, Patient> loadPatients(List<Long> ids) {
+        logger.info("Loading " + ids.size() + " patients in bulk");
+        return inSourceConnection(connection -> {
+            Map<Long, Patient> patients = new LinkedHashMap<>();
+            List<Long> patientIds = queryForList(connection, getSourceQueryString("getPatientsBulk"),
+                    getPatientIdsParameter(ids), resultSet -> resultSet.getLong(1));
+            for (Long patientId : patientIds) {
+                patients.put(patientId, newPatient(patientId));
+            }
+
+            loadInBulk(connection, "getPatientNamesBulk", ids, patients, this::addNames, "names");
+            loadInBulk(connection, "getPhoneNumbersBulk", ids, patients, (patient, row) -> addPhoneNumber(patient, row[0]), null);
+            loadInBulk(connection, "getAddressesBulk", ids, patients, this::addAddress, "addresses");
+            loadInBulk(connection, "getCarersBulk", ids, patients, this::addCarer, "carers");
+            loadInBulk(connection, "getNhsNumbersBulk", ids, patients, this::addNhsNumber, "NHS Numbers");
+            loadInBulk(connection, "getDateOfBirthsBulk", ids, patients, this::addDateOfBirth, "date of births");
+
+            patients.values().stream()
+                    .filter(patient -> CollectionUtils.isEmpty(patient.getForeNames()) && CollectionUtils.isEmpty(patient.getSurnames()))
+                    .forEach(patient -> logger.warn("!! No name/surname was found for patient with id " + patient.getId()));
+            return patients;
+        });
+    }
+
+    /**
+     * Runs a bulk query whose rows end with the patient id and hands each row to its patient.
+     * Text columns are read as strings, others as the objects of the driver, e.g. dates and numbers.
+     *
+     * @param description What is loaded, for the warning logged if the query fails.
+     *                    If null, the error is thrown instead, as the patient would be incomplete.
+     */
+    private void loadInBulk(Connection connection, String queryName, List<Long> ids, Map<Long, Patient> patients,
+                            BiConsumer<Patient, Object[]> rowHandler, String description) throws SQLException {
         try {
-            Query getNhsNumbers = getCurrentSourceSession().getNamedQuery("getNhsNumbers");
-            getNhsNumbers.setParameter("patientId", patient.getId());
-            List nhsNumbers = getNhsNumbers.list();
-            nhsNumbers.forEach(object -> {
-                String number;
-                if (object instanceof String) {
-                    number = (String) object;
-                } else {
-                    Object[] nhsNumberRow = (Object[]) object;
-                    number = clobHelper.getStringFromExpectedClob(nhsNumberRow[0]);
-                }
-                if (! StringUtils.isBlank(number)) {
-                    patient.addNhsNumber(number);
+            List<Object[]> rows = queryForList(connection, getSourceQueryString(queryName), getPatientIdsParameter(ids), resultSet -> {
+                ResultSetMetaData metaData = resultSet.getMetaData();
+                Object[] row = new Object[metaData.getColumnCount()];
+                for (int i = 0; i < row.length; i++) {
+                    int type = metaData.getColumnType(i + 1);
+                    row[i] = type == Types.CLOB || type == Types.NCLOB ? resultSet.getString(i + 1) : resultSet.getObject(i + 1);
                 }
+                return row;
             });
+            for (Object[] row : rows) {
+                Patient patient = patients.get(getPatientId(row[row.length - 1]));
+                if (patient != null) {
+                    rowHandler.accept(patient, row);
+                }
+            }
+        } catch (SQLException | RuntimeException ex) {
+            if (description == null) {
+                throw ex;
+            }
+            logger.warn("Error while loading " + description + " of " + ids.size() + " patients. Does the specified table exist? " + ex.getMessage());
+        }
+    }
+
+    private Patient newPatient(long id) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        return patient;
+    }
+
+    private Map<String, Long> getPatientParameter(Long id) {
+        return Collections.singletonMap("patientId", id);
+    }
+
+    private Map<String, List<Long>> getPatientIdsParameter(List<Long> ids) {
+        return Collections.singletonMap("patientIds", padInList(ids));
+    }
+
+    /**
+     * Runs a query of the identifiers of the patient and maps every row to its columns as strings.
+     */
+    private List<Object[]> getIdentifierRows(Connection connection, String queryName, Patient patient) throws SQLException {
+        return queryForList(connection, getSourceQueryString(queryName), getPatientParameter(patient.getId()), resultSet -> {
+            Object[] row = new Object[resultSet.getMetaData().getColumnCount()];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = resultSet.getString(i + 1);
+            }
+            return row;
+        });
+    }
+
+    private long getPatientId(Object object) {
+        if (object instanceof Object[]) {
+            object = ((Object[]) object)[0];
+        }
+        return ((Number) object).longValue();
+    }
+
+    /**
+     * Logs hits, misses and evictions of the patient cache if it keeps statistics.
+     */
+    public void logCacheStatistics() {
+        Cache cache = getPatientCache();
+        if (cache instanceof BoundedCache) {
+            logger.info(((BoundedCache) cache).getStatistics());
+        }
+    }
+
+    private Patient getCachedPatient(Long id) {
+        Cache cache = getPatientCache();
+        if (cache == null) {
+            return null;
+        }
+        return cache.get(id, Patient.class);
+    }
+
+    private void cachePatient(Patient patient) {
+        Cache cache = getPatientCache();
+        if (cache != null) {
+            cache.put(patient.getId(), patient);
+        }
+    }
+
+    private Cache getPatientCache() {
+        if (cacheManager == null) {
+            return null;
+        }
+        return cacheManager.getCache(PATIENT_CACHE);
+    }
+
+    private void setNhsNumbers(Connection connection, Patient patient) {
+        try {
+            getIdentifierRows(connection, "getNhsNumbers", patient).forEach(row -> addNhsNumber(patient, row));
         } catch (Exception ex) {
             logger.warn("Error while loading NHS Numbers of patient " + patient.getId() + ". Does the specified table exist? " + ex.getMessage());
         }
     }
 
-    private void setDateOfBirths(Patient patient) {
+    private void addNhsNumber(Patient patient, Object object) {
+        String number;
+        if (object instanceof String) {
+            number = (String) object;
+        } else {
+            Object[] nhsNumberRow = (Object[]) object;
+            number = clobHelper.getStringFromExpectedClob(nhsNumberRow[0]);
+        }
+        if (! StringUtils.isBlank(number)) {
+            patient.addNhsNumber(number);
+        }
+    }
+
+    private void setDateOfBirths(Connection connection, Patient patient) {
         try {
-            Query getDateOfBirths = getCurrentSourceSession().getNamedQuery("getDateOfBirths");
-            getDateOfBirths.setParameter("patientId", patient.getId());
-            List dateOfBirths = getDateOfBirths.list();
-            dateOfBirths.forEach(object -> {
-                Date dateOfBirth;
-                if (object instanceof Date) {
-                    dateOfBirth = (Date) object;
-                } else {
-                    Object[] dateOfBirthRow = (Object[]) object;
-                    dateOfBirth = (Date) dateOfBirthRow[0];
-                }
-                if (dateOfBirth != null) {
-                    patient.addDateOfBirth(dateOfBirth);
-                }
-            });
+            queryForList(connection, getSourceQueryString("getDateOfBirths"), getPatientParameter(patient.getId()),
+                    resultSet -> resultSet.getObject(1)).forEach(object -> addDateOfBirth(patient, object));
         } catch (Exception ex) {
             logger.warn("Error while loading date of births of patient " + patient.getId() + ". Does the specified table exist? " + ex.getMessage());
         }
     }
 
-    private void setCarers(Patient patient) {
+    private void addDateOfBirth(Patient patient, Object object) {
+        Date dateOfBirth;
+        if (object instanceof Date) {
+            dateOfBirth = (Date) object;
+        } else {
+            Object[] dateOfBirthRow = (Object[]) object;
+            dateOfBirth = (Date) dateOfBirthRow[0];
+        }
+        if (dateOfBirth != null) {
+            patient.addDateOfBirth(dateOfBirth);
+        }
+    }
+
+    private void setCarers(Connection connection, Patient patient) {
         try {
-            Query getCarers = getCurrentSourceSession().getNamedQuery("getCarers");
-            getCarers.setParameter("patientId", patient.getId());
-            List carerObjects = getCarers.list();
-            carerObjects.forEach(object -> {
-                Object[] carerRow = (Object[]) object;
-                String name = clobHelper.getStringFromExpectedClob(carerRow[0]);
-                String lastName = clobHelper.getStringFromExpectedClob(carerRow[1]);
-                PatientCarer carer = new PatientCarer(name, lastName);
-                patient.addCarer(carer);
-            });
+            getIdentifierRows(connection, "getCarers", patient).forEach(row -> addCarer(patient, row));
         } catch (Exception ex) {
             logger.warn("Error while loading carers of patient " + patient.getId() + ". Does the specified carer table exist? " + ex.getMessage());
         }
     }
 
-    private void setPhoneNumbers(Patient patient) {
-        Query getPhoneNumbers = getCurrentSourceSession().getNamedQuery("getPhoneNumbers");
-        getPhoneNumbers.setParameter("patientId", patient.getId());
-        List list = getPhoneNumbers.list();
-        List<String> phoneNumbers = new ArrayList<>();
-        list.forEach(object -> {
-            String phone = clobHelper.getStringFromExpectedClob(object);
-            if (! StringUtils.isBlank(phone)) {
-                phoneNumbers.add(phone);
-            }
-        });
-        patient.setPhoneNumbers(phoneNumbers);
+    private void addCarer(Patient patient, Object[] carerRow) {
+        String name = clobHelper.getStringFromExpectedClob(carerRow[0]);
+        String lastName = clobHelper.getStringFromExpectedClob(carerRow[1]);
+        PatientCarer carer = new PatientCarer(name, lastName);
+        patient.addCarer(carer);
+    }
+
+    private void setPhoneNumbers(Connection connection, Patient patient) throws SQLException {
+        List<Object[]> rows = getIdentifierRows(connection, "getPhoneNumbers", patient);
+        patient.setPhoneNumbers(new ArrayList<>());
+        rows.forEach(row -> addPhoneNumber(patient, row[0]));
+    }
+
+    private void addPhoneNumber(Patient patient, Object object) {
+        String phone = clobHelper.getStringFromExpectedClob(object);
+        if (! StringUtils.isBlank(phone)) {
+            patient.addPhoneNumber(phone);
+        }
     }
 
     /**
      * Fetches the addresses of the patient from the DB and assigns them to the given patient.
      *
+     * @param connection
      * @param patient
      */
-    private void setAddresses(Patient patient) {
+    private void setAddresses(Connection connection, Patient patient) {
         try {
-            Query getAddresses = getCurrentSourceSession().getNamedQuery("getAddresses");
-            getAddresses.setParameter("patientId", patient.getId());
-            List addressObjects = getAddresses.list();
-            addressObjects.forEach(object -> {
-                Object[] addressRow = (Object[]) object;
-                String addressStr = clobHelper.getStringFromExpectedClob(addressRow[0]);
-                String postCode = "";
-                if (addressRow.length > 1) {
-                    postCode = clobHelper.getStringFromExpectedClob(addressRow[1]);
-                }
-                PatientAddress address = PatientAddress.newAddressPostCode(addressStr, postCode);
-                patient.addAddress(address);
-            });
+            getIdentifierRows(connection, "getAddresses", patient).forEach(row -> addAddress(patient, row));
         } catch (Exception ex) {
             logger.warn("Error while loading addresses of patient " + patient.getId() + ". Does the specified address table exist? " + ex.getMessage());
         }
     }
 
+    private void addAddress(Patient patient, Object[] addressRow) {
+        String addressStr = clobHelper.getStringFromExpectedClob(addressRow[0]);
+        String postCode = "";
+        if (addressRow.length > 1) {
+            postCode = clobHelper.getStringFromExpectedClob(addressRow[1]);
+        }
+        PatientAddress address = PatientAddress.newAddressPostCode(addressStr, postCode);
+        patient.addAddress(address);
+    }
+
     /**
      * Fetches the names of the patient from the DB and assigns them to the given patient.
      *
+     * @param connection
      * @param patient
      */
-    private void setNames(Patient patient) {
+    private void setNames(Connection connection, Patient patient) {
         try {
-            Query getForeNames = getCurrentSourceSession().getNamedQuery("getPatientNames");
-            getForeNames.setParameter("patientId", patient.getId());
-            List foreNames = getForeNames.list();
+            List<Object[]> foreNames = getIdentifierRows(connection, "getPatientNames", patient);
             if (CollectionUtils.isEmpty(foreNames)) {
                 logger.warn("!! No name/surname was found for patient with id " + patient.getId());
                 return;
             }
-            for (Object dbObject : foreNames) {
-                Object[] namePair = (Object[]) dbObject;
-                String name = clobHelper.getStringFromExpectedClob(namePair[0]);
-                String lastName = clobHelper.getStringFromExpectedClob(namePair[1]);
-                if (! StringUtils.isBlank(name)) {
-                    patient.addForeName(name);
-                }
-                if (! StringUtils.isBlank(lastName)) {
-                    patient.addSurname(lastName);
-                }
+            for (Object[] namePair : foreNames) {
+                addNames(patient, namePair);
             }
         } catch (Exception ex) {
             logger.warn("Error while loading names of patient " + patient.getId() + ". Does the specified address table exist? " + ex.getMessage());
         }
     }
 
+    private void addNames(Patient patient, Object[] namePair) {
+        String name = clobHelper.getStringFromExpectedClob(namePair[0]);
+        String lastName = clobHelper.getStringFromExpectedClob(namePair[1]);
+        if (! StringUtils.isBlank(name)) {
+            patient.addForeName(name);
+        }
+        if (! StringUtils.isBlank(lastName)) {
+            patient.addSurname(lastName);
+        }
+    }
+
 }
@@ -16,42 +16,64 @@
 
 package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.helper;
 
-import org.hibernate.engine.jdbc.SerializableBlobProxy;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import uk.ac.kcl.iop.brc.core.pipeline.common.model.DocumentContent;
 
-import java.lang.reflect.Proxy;
-import java.sql.Blob;
-import java.sql.SQLException;
+import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * BlobHelper is used for handling Blob (binary) data from different databases.
+ * Binary objects are read as streams, so a document is never copied into memory as a whole
+ * when it is larger than the spill threshold.
  */
 @Component
 public class BlobHelper {
 
-    public byte[] getByteFromExpectedBlobObject(Object expectedBlob) {
-        try {
-            return (byte[]) expectedBlob;
-        } catch (ClassCastException ex) {
-            return getBytesFromSerializableBlob(expectedBlob);
-        }
+    /**
+     * Largest binary document that is read from the DB, in bytes.
+     */
+    @Value("${maxDocumentBytes:268435456}")
+    private long maxDocumentBytes = 268435456L;
+
+    /**
+     * Binary documents larger than this many bytes are written to a temporary file as they are read.
+     */
+    @Value("${documentSpillBytes:16777216}")
+    private int documentSpillBytes = 16777216;
+
+    /**
+     * Reads the stream of a binary column and closes it.
+     * @param stream Stream of the column, may be null.
+     * @return Content of the binary object, or null if there is none.
+     * @throws IOException if the stream can not be read or is larger than the limit.
+     */
+    public DocumentContent getContent(InputStream stream) throws IOException {
+        return getContent(stream, documentSpillBytes);
     }
 
-    private byte[] getBytesFromSerializableBlob(Object serializableBlobProxy) {
-        SerializableBlobProxy blobProxy = (SerializableBlobProxy) Proxy.getInvocationHandler(serializableBlobProxy);
-        Blob wrappedBlob = blobProxy.getWrappedBlob();
-        try {
-            byte[] bytes = wrappedBlob.getBytes(1, (int) wrappedBlob.length());
-            if (bytes != null) {
-                if (bytes.length == 0) {
-                    return null;
-                }
-            }
-            return bytes;
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /**
+     * Reads the stream of a binary column and closes it, spilling it to a temporary file at a lower
+     * threshold than documentSpillBytes, e.g. when many documents are read together.
+     * @param stream Stream of the column, may be null.
+     * @param spillThreshold Size in bytes above which the document is written to a temporary file.
+     * @return Content of the binary object, or null if there is none.
+     * @throws IOException if the stream can not be read or is larger than the limit.
+     */
+    public DocumentContent getContent(InputStream stream, int spillThreshold) throws IOException {
+        if (stream == null) {
+            return null;
         }
-        return null;
+        return DocumentContent.read(stream, maxDocumentBytes, Math.min(spillThreshold, documentSpillBytes));
+    }
+
+    public void setMaxDocumentBytes(long maxDocumentBytes) {
+        this.maxDocumentBytes = maxDocumentBytes;
+    }
+
+    public void setDocumentSpillBytes(int documentSpillBytes) {
+        this.documentSpillBytes = documentSpillBytes;
     }
 
 }
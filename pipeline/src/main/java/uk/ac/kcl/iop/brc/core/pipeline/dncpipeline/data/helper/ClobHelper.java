@@ -16,19 +16,30 @@
 
 package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.helper;
 
-import org.hibernate.engine.jdbc.SerializableClobProxy;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.lang.reflect.Proxy;
+import java.io.IOException;
+import java.io.Reader;
 import java.sql.Clob;
 import java.sql.SQLException;
 
 /**
  * Clob helper is used to handle Clob (large text) types of different databases.
+ * Clobs are read as character streams up to a maximum length.
  */
 @Component
 public class ClobHelper {
 
+    private static Logger logger = Logger.getLogger(ClobHelper.class);
+
+    /**
+     * Largest text that is read from the DB, in characters.
+     */
+    @Value("${maxTextChars:134217728}")
+    private long maxTextLength = 134217728L;
+
     public String getStringFromExpectedClob(Object expectedBlob) {
         try {
             return (String) expectedBlob;
@@ -38,13 +49,40 @@ public class ClobHelper {
     }
 
     private String getString(Object expectedClob) {
-        SerializableClobProxy clobProxy = (SerializableClobProxy) Proxy.getInvocationHandler(expectedClob);
-        Clob wrappedClob = clobProxy.getWrappedClob();
+        Clob clob = (Clob) expectedClob;
         try {
-            return  wrappedClob.getSubString(1, (int) wrappedClob.length());
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return getString(clob.getCharacterStream());
+        } catch (SQLException | IOException e) {
+            logger.error("Could not read text object. " + e.getMessage(), e);
             return "error: could not retrieve text";
         }
     }
+
+    /**
+     * Reads the character stream of a text column and closes it.
+     * @param reader Character stream of the column, may be null.
+     * @return The text, or null if there is none.
+     * @throws IOException if the stream can not be read or the text is longer than the limit.
+     */
+    public String getString(Reader reader) throws IOException {
+        if (reader == null) {
+            return null;
+        }
+        try (Reader input = reader) {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                if (text.length() + read > maxTextLength) {
+                    throw new IOException("Text is longer than the limit of " + maxTextLength + " characters.");
+                }
+                text.append(buffer, 0, read);
+            }
+            return text.toString();
+        }
+    }
+
+    public void setMaxTextLength(long maxTextLength) {
+        this.maxTextLength = maxTextLength;
+    }
 }
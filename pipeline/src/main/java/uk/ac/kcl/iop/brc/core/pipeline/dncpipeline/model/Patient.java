@@ -20,12 +20,21 @@ import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
+import uk.ac.kcl.iop.brc.core.pipeline.common.cache.Weighted;
 
 import javax.persistence.Entity;
 import java.util.*;
 
 @Entity
-public class Patient {
+public class Patient implements Weighted {
+
+    private static final int OBJECT_SIZE = 16;
+
+    private static final int LIST_SIZE = 40;
+
+    private static final int DATE_SIZE = 24;
+
+    private static final int STRING_SIZE = 40;
 
     private long id;
 
@@ -252,4 +261,40 @@ public class Patient {
     public void addDateOfBirth(Date dateOfBirth) {
         dateOfBirths.add(dateOfBirth);
     }
+
+    /**
+     * @return Rough number of bytes held by this patient, used to bound the patient cache.
+     */
+    @Override
+    public long getApproximateSize() {
+        long size = OBJECT_SIZE + 7 * LIST_SIZE;
+        size += getApproximateSize(foreNames) + getApproximateSize(surnames)
+                + getApproximateSize(nhsNumbers) + getApproximateSize(phoneNumbers);
+        size += dateOfBirths == null ? 0 : dateOfBirths.size() * (long) DATE_SIZE;
+        for (PatientAddress address : CollectionUtils.isEmpty(addresses) ? Collections.<PatientAddress>emptyList() : addresses) {
+            size += OBJECT_SIZE + getApproximateSize(address.getAddress()) + getApproximateSize(address.getPostCode());
+        }
+        for (PatientCarer carer : CollectionUtils.isEmpty(carers) ? Collections.<PatientCarer>emptyList() : carers) {
+            size += OBJECT_SIZE + getApproximateSize(carer.getFirstName()) + getApproximateSize(carer.getLastName());
+        }
+        return size;
+    }
+
+    private static long getApproximateSize(List<String> strings) {
+        long size = 0;
+        if (strings == null) {
+            return size;
+        }
+        for (String string : strings) {
+            size += getApproximateSize(string);
+        }
+        return size;
+    }
+
+    private static long getApproximateSize(String string) {
+        if (string == null) {
+            return 0;
+        }
+        return STRING_SIZE + 2L * string.length();
+    }
 }
@@ -0,0 +1,129 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor with a fixed number of worker threads and a bounded number of waiting tasks.
+ * When all threads are busy and the queue is full, execute() blocks the submitting thread
+ * until a task finishes, so producers cannot run ahead of the workers.
+ *
+ * In virtual thread mode (Java 21 and later) every task gets its own virtual thread, and the
+ * thread count limits how many of them run at the same time.
+ */
+public class BoundedExecutor implements Executor {
+
+    private static Logger logger = Logger.getLogger(BoundedExecutor.class);
+
+    private final String name;
+
+    private final Semaphore permits;
+
+    private final ExecutorService delegate;
+
+    /**
+     * @param name Name of the pool, used as the thread name prefix.
+     * @param threadCount Number of worker threads.
+     * @param queueCapacity Number of tasks that can wait for a free thread.
+     * @param virtualThreads Whether to run tasks on virtual threads, if the JVM supports them.
+     */
+    public BoundedExecutor(String name, int threadCount, int queueCapacity, boolean virtualThreads) {
+        if (threadCount < 1 || queueCapacity < 0) {
+            throw new IllegalArgumentException("Invalid size for pool " + name + ": " + threadCount + " threads, queue of " + queueCapacity);
+        }
+        this.name = name;
+        ExecutorService virtualThreadExecutor = virtualThreads ? createVirtualThreadExecutor() : null;
+        if (virtualThreadExecutor != null) {
+            this.delegate = virtualThreadExecutor;
+            this.permits = new Semaphore(threadCount);
+        } else {
+            this.delegate = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), new DaemonThreadFactory(name));
+            this.permits = new Semaphore(threadCount + queueCapacity);
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for pool " + name, e);
+        }
+        try {
+            delegate.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads are not supported by this JVM. Pool " + name + " will use platform threads.");
+            return null;
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        private DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Processing rate of each client, measured from the acknowledgements of its leases.
+ */
+public class ClientThroughput {
+
+    /**
+     * Weight of the latest measurement in the moving average of a client's rate.
+     */
+    private static final double SMOOTHING = 0.5;
+
+    private final Map<String, Double> rates = new ConcurrentHashMap<>();
+
+    /**
+     * @param client Name of the client.
+     * @param count Number of coordinates the client processed.
+     * @param elapsedMillis Time the client took to process them.
+     */
+    public void record(String client, int count, long elapsedMillis) {
+        double rate = count * 1000.0 / Math.max(1, elapsedMillis);
+        rates.merge(client, rate, (previous, latest) -> previous * (1 - SMOOTHING) + latest * SMOOTHING);
+    }
+
+    /**
+     * @return Coordinates per second processed by the client, or 0 if it has not acknowledged a lease yet.
+     */
+    public double getRate(String client) {
+        return rates.getOrDefault(client, 0d);
+    }
+
+    /**
+     * @return Number of clients that have acknowledged a lease.
+     */
+    public int getClientCount() {
+        return rates.size();
+    }
+
+}
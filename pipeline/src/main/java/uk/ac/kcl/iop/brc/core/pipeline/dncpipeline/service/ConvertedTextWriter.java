@@ -0,0 +1,200 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.DNCWorkUnitDao;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.ConvertedText;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects processed texts and saves them to the target database in JDBC batches.
+ * A batch is written once saveProgressAfter texts have been collected, or when texts
+ * have been waiting for longer than saveFlushIntervalMillis.
+ */
+@Service
+public class ConvertedTextWriter {
+
+    private static Logger logger = Logger.getLogger(ConvertedTextWriter.class);
+
+    @Autowired
+    private DNCWorkUnitDao dncWorkUnitDao;
+
+    @Value("${saveProgressAfter:100}")
+    private int batchSize = 100;
+
+    @Value("${saveFlushIntervalMillis:5000}")
+    private long flushIntervalMillis = 5000;
+
+    private List<PendingText> pendingTexts = new ArrayList<>();
+
+    private long lastFlushTime = System.currentTimeMillis();
+
+    /**
+     * Batches taken from pendingTexts that are still being saved, guarded by this writer's lock.
+     */
+    private int savesInFlight = 0;
+
+    private ScheduledExecutorService flushTimer;
+
+    /**
+     * Adds the text to the current batch, and saves the batch if it is full.
+     * @param coordinate The original coordinate of the text.
+     * @param processedText The processed text to be saved.
+     * @param onFailure Called if the text cannot be saved.
+     */
+    public void write(DNCWorkCoordinate coordinate, String processedText, Consumer<Exception> onFailure) {
+        List<PendingText> batch = null;
+        synchronized (this) {
+            startFlushTimer();
+            pendingTexts.add(new PendingText(coordinate, processedText, onFailure));
+            if (pendingTexts.size() >= batchSize) {
+                batch = takePendingTexts();
+            }
+        }
+        save(batch);
+    }
+
+    /**
+     * Saves all collected texts, and waits for the batches that other threads are saving.
+     */
+    public void flush() {
+        List<PendingText> batch;
+        synchronized (this) {
+            batch = takePendingTexts();
+        }
+        save(batch);
+        synchronized (this) {
+            while (savesInFlight > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.warn("Interrupted while waiting for " + savesInFlight + " batches to be saved.");
+                    return;
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        synchronized (this) {
+            if (flushTimer != null) {
+                flushTimer.shutdown();
+                flushTimer = null;
+            }
+        }
+        flush();
+    }
+
+    private void flushIfWaitedTooLong() {
+        List<PendingText> batch = null;
+        synchronized (this) {
+            if (System.currentTimeMillis() - lastFlushTime >= flushIntervalMillis) {
+                batch = takePendingTexts();
+            }
+        }
+        save(batch);
+    }
+
+    private List<PendingText> takePendingTexts() {
+        List<PendingText> batch = pendingTexts;
+        pendingTexts = new ArrayList<>();
+        lastFlushTime = System.currentTimeMillis();
+        if (! batch.isEmpty()) {
+            savesInFlight++;
+        }
+        return batch;
+    }
+
+    /**
+     * Saves the batch. If the batch fails, its texts are saved one by one so that only
+     * the failing ones are reported.
+     */
+    private void save(List<PendingText> batch) {
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        try {
+            saveBatch(batch);
+        } finally {
+            synchronized (this) {
+                savesInFlight--;
+                notifyAll();
+            }
+        }
+    }
+
+    private void saveBatch(List<PendingText> batch) {
+        try {
+            dncWorkUnitDao.saveConvertedTexts(batch);
+            logger.info("Saved " + batch.size() + " texts.");
+        } catch (Exception ex) {
+            logger.warn("Could not save a batch of " + batch.size() + " texts. Saving them one by one. " + ex.getMessage());
+            for (PendingText text : batch) {
+                try {
+                    dncWorkUnitDao.saveConvertedText(text.getCoordinate(), text.getProcessedText());
+                } catch (Exception e) {
+                    text.onFailure.accept(e);
+                }
+            }
+        }
+    }
+
+    private void startFlushTimer() {
+        if (flushTimer != null || flushIntervalMillis <= 0) {
+            return;
+        }
+        flushTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "text-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushTimer.scheduleWithFixedDelay(this::flushIfWaitedTooLong, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    private static class PendingText extends ConvertedText {
+
+        private final Consumer<Exception> onFailure;
+
+        private PendingText(DNCWorkCoordinate coordinate, String processedText, Consumer<Exception> onFailure) {
+            super(coordinate, processedText);
+            this.onFailure = onFailure;
+        }
+    }
+
+}
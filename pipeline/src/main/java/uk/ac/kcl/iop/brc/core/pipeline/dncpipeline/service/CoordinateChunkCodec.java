@@ -0,0 +1,142 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact encoding of a chunk of coordinates sent by the coordinator to its clients.
+ * The chunk is written column by column and gzipped. Strings such as table and column names
+ * repeat across a chunk, so each distinct string is written once in a dictionary and the
+ * columns refer to it by index.
+ */
+public class CoordinateChunkCodec {
+
+    public static final String MEDIA_TYPE = "application/x-dnc-coordinates";
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int NULL_STRING = -1;
+
+    public byte[] encode(List<DNCWorkCoordinate> coordinates) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(bytes)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(coordinates.size());
+
+            Map<String, Integer> dictionary = new HashMap<>();
+            List<String> strings = new ArrayList<>();
+            int[] tables = indexStrings(coordinates, DNCWorkCoordinate::getSourceTable, dictionary, strings);
+            int[] columns = indexStrings(coordinates, DNCWorkCoordinate::getSourceColumn, dictionary, strings);
+            int[] pkColumns = indexStrings(coordinates, DNCWorkCoordinate::getPkColumnName, dictionary, strings);
+            int[] types = indexStrings(coordinates, DNCWorkCoordinate::getType, dictionary, strings);
+            int[] updateTimes = indexStrings(coordinates, DNCWorkCoordinate::getUpdateTime, dictionary, strings);
+            out.writeInt(strings.size());
+            for (String string : strings) {
+                out.writeUTF(string);
+            }
+
+            for (DNCWorkCoordinate coordinate : coordinates) {
+                out.writeLong(coordinate.getPatientId());
+            }
+            for (DNCWorkCoordinate coordinate : coordinates) {
+                out.writeLong(coordinate.getIdInSourceTable());
+            }
+            for (int[] column : new int[][] {tables, columns, pkColumns, types, updateTimes}) {
+                for (int index : column) {
+                    out.writeInt(index);
+                }
+            }
+            for (DNCWorkCoordinate coordinate : coordinates) {
+                out.writeBoolean(coordinate.isMarkedAsOCR());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    public List<DNCWorkCoordinate> decode(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(inputStream)));
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported coordinate chunk format version " + version);
+        }
+        int count = in.readInt();
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+
+        List<DNCWorkCoordinate> coordinates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            coordinates.add(new DNCWorkCoordinate().patientId(in.readLong()));
+        }
+        for (DNCWorkCoordinate coordinate : coordinates) {
+            coordinate.setIdInSourceTable(in.readLong());
+        }
+        for (DNCWorkCoordinate coordinate : coordinates) {
+            coordinate.setSourceTable(readString(in, strings));
+        }
+        for (DNCWorkCoordinate coordinate : coordinates) {
+            coordinate.setSourceColumn(readString(in, strings));
+        }
+        for (DNCWorkCoordinate coordinate : coordinates) {
+            coordinate.setPkColumnName(readString(in, strings));
+        }
+        for (DNCWorkCoordinate coordinate : coordinates) {
+            coordinate.setType(readString(in, strings));
+        }
+        for (DNCWorkCoordinate coordinate : coordinates) {
+            coordinate.setUpdateTime(readString(in, strings));
+        }
+        for (DNCWorkCoordinate coordinate : coordinates) {
+            coordinate.setMarkedAsOCR(in.readBoolean());
+        }
+        return coordinates;
+    }
+
+    private int[] indexStrings(List<DNCWorkCoordinate> coordinates, Function<DNCWorkCoordinate, String> getter,
+                               Map<String, Integer> dictionary, List<String> strings) {
+        int[] indices = new int[coordinates.size()];
+        for (int i = 0; i < indices.length; i++) {
+            String value = getter.apply(coordinates.get(i));
+            if (value == null) {
+                indices[i] = NULL_STRING;
+                continue;
+            }
+            indices[i] = dictionary.computeIfAbsent(value, string -> {
+                strings.add(string);
+                return strings.size() - 1;
+            });
+        }
+        return indices;
+    }
+
+    private String readString(DataInputStream in, String[] strings) throws IOException {
+        int index = in.readInt();
+        return index == NULL_STRING ? null : strings[index];
+    }
+
+}
@@ -16,10 +16,11 @@
 
 package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
 
+import com.google.gson.Gson;
 import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.Unirest;
 import com.mashape.unirest.http.exceptions.UnirestException;
+import com.mashape.unirest.request.GetRequest;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.RandomUtils;
 import org.apache.log4j.Logger;
@@ -28,50 +29,302 @@ import org.springframework.stereotype.Service;
 import uk.ac.kcl.iop.brc.core.pipeline.common.helper.JsonHelper;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
 
-import java.io.File;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class CoordinatorClientService {
 
-    private static String LAST_SET_OF_COORDINATES_FILENAME = "lastBatchOfCoordinates.json";
-
     private static Logger logger = Logger.getLogger(CoordinatorClientService.class);
 
+    /**
+     * Time to wait before asking again when all coordinates are leased to other clients,
+     * or when the coordinator could not be reached.
+     */
+    private static final long LEASED_WAIT_MILLIS = 10000;
+
+    private static final int MIN_CHUNK_SIZE = 10;
+
+    private static final int MAX_CHUNK_SIZE = 5000;
+
+    /**
+     * Marks the end of the coordinates in the queue of fetched chunks.
+     */
+    private static final LeasedChunk END_OF_CHUNKS = new LeasedChunk(null, new ArrayList<>(0));
+
     @Autowired
     private DNCPipelineService pipelineService;
 
     private JsonHelper<DNCWorkCoordinate> jsonHelper = new JsonHelper(DNCWorkCoordinate[].class);
 
+    private CoordinateChunkCodec chunkCodec = new CoordinateChunkCodec();
+
     private String serverAddress;
 
     private String cognitionName;
 
+    /**
+     * Number of chunks fetched from the coordinator but not yet processed, including the one being processed.
+     */
+    private int prefetchChunks = 2;
+
+    /**
+     * Wall-clock time the client aims to spend on each chunk. 0 leaves the chunk size to the coordinator.
+     */
+    private int targetChunkSeconds = 60;
+
+    private volatile int requestedChunkSize;
+
+    private final ScheduledExecutorService heartbeatSender = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lease-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public void setServerAddress(String serverAddress) {
         this.serverAddress = serverAddress;
     }
 
+    public void setPrefetchChunks(int prefetchChunks) {
+        this.prefetchChunks = prefetchChunks;
+    }
+
+    public void setTargetChunkSeconds(int targetChunkSeconds) {
+        this.targetChunkSeconds = targetChunkSeconds;
+    }
+
     /**
      * Starts retrieving coordinates from the coordinator server via HTTP.
+     * Each chunk is leased: heartbeats keep the lease alive while the chunk is processed,
+     * and the chunk is acknowledged once it is done. Chunks that are not acknowledged are handed
+     * out again by the coordinator when their lease expires.
+     * A background thread fetches the next chunks while the current one is processed, so the
+     * client does not idle during the round trips to the coordinator.
      */
     public void startProcessing() {
         setCognitionNameIfNull();
         logger.info(cognitionName + " is starting processing documents now.");
 
-        List<DNCWorkCoordinate> workCoordinates;
-        String jsonCoordinates = "";
-        while (! jsonCoordinates.equalsIgnoreCase(CoordinatorService.NO_COORDINATE_LEFT)) {
-            try {
-                jsonCoordinates = getCoordinatesAsJsonFromServer();
-                workCoordinates = getDncWorkCoordinates(jsonCoordinates);
-                pipelineService.processCoordinates(workCoordinates);
-            } catch (Exception e) {
-                handleException(jsonCoordinates, e);
+        BlockingQueue<LeasedChunk> fetchedChunks = new LinkedBlockingQueue<>();
+        Semaphore chunksInFlight = new Semaphore(Math.max(1, prefetchChunks));
+        Thread fetcher = new Thread(() -> fetchChunks(fetchedChunks, chunksInFlight), "chunk-prefetch");
+        fetcher.setDaemon(true);
+        fetcher.start();
+        try {
+            LeasedChunk chunk;
+            while ((chunk = fetchedChunks.take()) != END_OF_CHUNKS) {
+                processChunk(chunk);
+                chunksInFlight.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fetcher.interrupt();
+        }
+    }
+
+    private void fetchChunks(BlockingQueue<LeasedChunk> fetchedChunks, Semaphore chunksInFlight) {
+        try {
+            LeasedChunk chunk = null;
+            while (chunk != END_OF_CHUNKS) {
+                chunksInFlight.acquire();
+                chunk = fetchChunk();
+                while (chunk == null) {
+                    Thread.sleep(LEASED_WAIT_MILLIS);
+                    chunk = fetchChunk();
+                }
+                fetchedChunks.put(chunk);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+    }
 
+    /**
+     * @return The next leased chunk, END_OF_CHUNKS if there are no coordinates left,
+     * or null if the client should ask again later.
+     */
+    private LeasedChunk fetchChunk() {
+        try {
+            HttpResponse<InputStream> response = getCoordinatesFromServer();
+            if (response.getStatus() != 200) {
+                logger.error("Coordinator " + serverAddress + " could not serve coordinates: " + readBody(response)
+                        + " (status " + response.getStatus() + "). Asking again later.");
+                return null;
+            }
+            List<DNCWorkCoordinate> coordinates;
+            String contentType = getHeader(response, "Content-Type");
+            if (contentType != null && contentType.startsWith(CoordinateChunkCodec.MEDIA_TYPE)) {
+                coordinates = chunkCodec.decode(response.getBody());
+                return leaseChunk(response, coordinates);
+            }
+            String jsonCoordinates = readBody(response);
+            if (jsonCoordinates.equalsIgnoreCase(CoordinatorService.NO_COORDINATE_LEFT)) {
+                return END_OF_CHUNKS;
+            }
+            if (jsonCoordinates.equalsIgnoreCase(CoordinatorService.ALL_COORDINATES_LEASED)) {
+                logger.info("All coordinates are leased to other clients. Asking again later.");
+                return null;
+            }
+            coordinates = jsonHelper.loadListFromString(jsonCoordinates);
+            return leaseChunk(response, coordinates);
+        } catch (Exception e) {
+            logger.error("Could not get coordinates from " + serverAddress + ". " + e.getMessage());
+            return null;
+        }
+    }
+
+    private String readBody(HttpResponse<InputStream> response) {
+        return new BufferedReader(new InputStreamReader(response.getBody(), StandardCharsets.UTF_8))
+                .lines().collect(Collectors.joining("\n")).trim();
+    }
+
+    private LeasedChunk leaseChunk(HttpResponse<?> response, List<DNCWorkCoordinate> coordinates) {
+        LeasedChunk chunk = new LeasedChunk(getHeader(response, CoordinatorService.LEASE_ID_HEADER), coordinates);
+        chunk.heartbeat = startHeartbeat(chunk, getHeader(response, CoordinatorService.LEASE_TIMEOUT_HEADER));
+        return chunk;
+    }
+
+    /**
+     * Processes the chunk and acknowledges it, reporting the coordinates that failed. If the lease
+     * expires meanwhile, the coordinates are handed out to another client, so processing stops and
+     * the chunk is not acknowledged.
+     */
+    private void processChunk(LeasedChunk chunk) {
+        long start = System.nanoTime();
+        try {
+            if (chunk.expired) {
+                logger.warn("Lease " + chunk.leaseId + " expired before its coordinates were processed. Skipping them.");
+                return;
+            }
+            List<DNCWorkCoordinate> failedCoordinates = pipelineService.processCoordinates(chunk.coordinates, () -> chunk.expired);
+            if (chunk.expired) {
+                logger.warn("Lease " + chunk.leaseId + " expired while its coordinates were processed. Stopped processing them.");
+                return;
+            }
+            acknowledge(chunk.leaseId, failedCoordinates);
+            requestedChunkSize = nextChunkSize(requestedChunkSize, chunk.coordinates.size(),
+                    System.nanoTime() - start, targetChunkSeconds);
+        } catch (Exception e) {
+            handleException(new Gson().toJson(chunk.coordinates), e);
+        } finally {
+            if (chunk.heartbeat != null) {
+                chunk.heartbeat.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Sizes the next chunk so that it takes about targetChunkSeconds to process at the rate
+     * measured on the last chunk. The estimate is averaged with the previous size to smooth out
+     * chunks that are unusually fast or slow.
+     * @return Number of coordinates to ask for, or 0 to leave it to the coordinator.
+     */
+    static int nextChunkSize(int previousChunkSize, int processedCount, long elapsedNanos, int targetChunkSeconds) {
+        if (processedCount == 0 || targetChunkSeconds <= 0) {
+            return previousChunkSize;
+        }
+        double coordinatesPerSecond = processedCount / Math.max(1e-3, elapsedNanos / 1e9);
+        int estimate = (int) Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, coordinatesPerSecond * targetChunkSeconds));
+        if (previousChunkSize <= 0) {
+            return estimate;
+        }
+        return (previousChunkSize + estimate) / 2;
+    }
+
+    /**
+     * Renews the lease three times per lease timeout until the returned future is cancelled.
+     */
+    private ScheduledFuture<?> startHeartbeat(LeasedChunk chunk, String leaseTimeout) {
+        if (StringUtils.isBlank(chunk.leaseId) || ! StringUtils.isNumeric(leaseTimeout)) {
+            return null;
+        }
+        long interval = Math.max(1000, TimeUnit.SECONDS.toMillis(Long.valueOf(leaseTimeout)) / 3);
+        return heartbeatSender.scheduleAtFixedRate(() -> sendHeartbeat(chunk), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Marks the chunk as expired if the coordinator does not renew its lease, and stops the heartbeats.
+     */
+    private void sendHeartbeat(LeasedChunk chunk) {
+        try {
+            String reply = postLease("heartbeat", chunk.leaseId, "");
+            if (CoordinatorService.UNKNOWN_LEASE.equals(reply)) {
+                logger.warn("Lease " + chunk.leaseId + " has expired. Its coordinates will be handed out to another client.");
+                chunk.expired = true;
+                chunk.heartbeat.cancel(false);
+            }
+        } catch (UnirestException e) {
+            logger.warn("Could not send heartbeat for lease " + chunk.leaseId + ". " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param failedCoordinates Coordinates of the lease that could not be processed, reported to the coordinator.
+     */
+    private void acknowledge(String leaseId, List<DNCWorkCoordinate> failedCoordinates) throws UnirestException {
+        if (StringUtils.isBlank(leaseId)) {
+            return;
+        }
+        if (! failedCoordinates.isEmpty()) {
+            logger.warn("Reporting " + failedCoordinates.size() + " failed coordinates of lease " + leaseId + " to the coordinator.");
+        }
+        String reply = postLease("ack", leaseId, failedCoordinates.isEmpty() ? "" : new Gson().toJson(failedCoordinates));
+        if (CoordinatorService.UNKNOWN_LEASE.equals(reply)) {
+            logger.warn("Lease " + leaseId + " had expired before it was acknowledged. Its coordinates may have been processed by another client too.");
+        }
+    }
+
+    private String postLease(String endpoint, String leaseId, String body) throws UnirestException {
+        String address = serverAddress.endsWith("/") ? serverAddress + endpoint : serverAddress + "/" + endpoint;
+        return Unirest.post(address)
+                .header("CognitionName", cognitionName)
+                .header(CoordinatorService.LEASE_ID_HEADER, leaseId)
+                .body(body)
+                .asString()
+                .getBody();
+    }
+
+    private String getHeader(HttpResponse<?> response, String name) {
+        for (Map.Entry<String, List<String>> header : response.getHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && ! header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    private static class LeasedChunk {
+
+        private final String leaseId;
+
+        private final List<DNCWorkCoordinate> coordinates;
+
+        private volatile ScheduledFuture<?> heartbeat;
+
+        /**
+         * Set once the coordinator has refused to renew the lease.
+         */
+        private volatile boolean expired;
+
+        private LeasedChunk(String leaseId, List<DNCWorkCoordinate> coordinates) {
+            this.leaseId = leaseId;
+            this.coordinates = coordinates;
+        }
     }
 
     private void handleException(String jsonCoordinates, Exception e) {
@@ -80,7 +333,7 @@ public class CoordinatorClientService {
         e.printStackTrace();
         System.out.println("There were errors in the last batch. " +
                 "Last batch's coordinates were written in " + failedCoordinateFile + " file. " +
-                "So you can re-process them by using --createMode --file=" + failedCoordinateFile + " arguments. " +
+                "The coordinator will hand them out again when their lease expires. " +
                 "Press enter to continue on to the next batch.");
         try {
             int read = System.in.read();
@@ -89,14 +342,9 @@ public class CoordinatorClientService {
         }
     }
 
-    private List<DNCWorkCoordinate> getDncWorkCoordinates(String jsonCoordinates) throws UnirestException {
-        saveCoordinatesInFile(jsonCoordinates, LAST_SET_OF_COORDINATES_FILENAME);
-        return jsonHelper.loadListFromFile(new File(LAST_SET_OF_COORDINATES_FILENAME));
-    }
-
     private void saveCoordinatesInFile(String jsonCoordinates, String fileName) {
         try {
-            PrintWriter writer = new PrintWriter(LAST_SET_OF_COORDINATES_FILENAME, "UTF-8");
+            PrintWriter writer = new PrintWriter(fileName, "UTF-8");
             writer.println(jsonCoordinates);
             writer.close();
         } catch (Exception e) {
@@ -104,14 +352,18 @@ public class CoordinatorClientService {
         }
     }
 
-    private String getCoordinatesAsJsonFromServer() throws UnirestException {
-        HttpResponse<JsonNode> jsonResponse = Unirest.get(serverAddress)
-                .header("accept", "application/json")
+    /**
+     * Asks for the compact form of the chunk. Coordinators that do not support it send JSON.
+     */
+    private HttpResponse<InputStream> getCoordinatesFromServer() throws UnirestException {
+        GetRequest request = Unirest.get(serverAddress)
+                .header("accept", CoordinateChunkCodec.MEDIA_TYPE + ", application/json")
                 .header("DNCRequest", "true")
-                .header("CognitionName", cognitionName)
-                .asJson();
-
-        return jsonResponse.getBody().toString();
+                .header("CognitionName", cognitionName);
+        if (requestedChunkSize > 0) {
+            request.header(CoordinatorService.CHUNK_SIZE_HEADER, String.valueOf(requestedChunkSize));
+        }
+        return request.asBinary();
     }
 
     private void setCognitionNameIfNull() {
@@ -19,18 +19,35 @@ package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
 import com.google.gson.Gson;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import spark.Request;
+import spark.Response;
+import uk.ac.kcl.iop.brc.core.pipeline.common.helper.JsonHelper;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.CoordinateCursor;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.CoordinatesDao;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
 
 import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static spark.Spark.get;
+import static spark.Spark.post;
 
 @Service
 public class CoordinatorService {
@@ -38,46 +55,330 @@ public class CoordinatorService {
     private static Logger logger = Logger.getLogger(CoordinatorService.class);
     public static String NO_COORDINATE_LEFT = "NO_COORDINATE_TO_PROCESS";
 
+    /**
+     * Served while all coordinates are leased to clients, some of which may still expire.
+     * Clients should ask again later.
+     */
+    public static String ALL_COORDINATES_LEASED = "ALL_COORDINATES_LEASED";
+
+    public static String LEASE_ID_HEADER = "LeaseId";
+
+    public static String LEASE_TIMEOUT_HEADER = "LeaseTimeout";
+
+    public static String UNKNOWN_LEASE = "UNKNOWN_LEASE";
+
+    /**
+     * Served with an error status once the coordinates could not be read from the DB and the ones
+     * read before are all handed out. The run is not complete; clients should ask again later.
+     */
+    public static String COORDINATES_UNAVAILABLE = "COORDINATES_UNAVAILABLE";
+
+    /**
+     * Request header with the number of coordinates the client asks for.
+     */
+    public static String CHUNK_SIZE_HEADER = "ChunkSize";
+
     @Autowired
     private CoordinatesDao coordinatesDao;
 
-    private List<DNCWorkCoordinate> allCoordinates;
+    /**
+     * Marks the end of the coordinates in the queue of ready chunks.
+     */
+    private static final List<DNCWorkCoordinate> END_OF_COORDINATES = new ArrayList<>(0);
+
+    /**
+     * Number of chunks read ahead from the DB while clients process the previous ones.
+     */
+    private static final int PREFETCHED_CHUNKS = 8;
+
+    private static final int MIN_LEASE_SIZE = 10;
+
+    /**
+     * Time a request waits for the next ready chunk before it checks again whether the coordinates have ended.
+     */
+    private static final long READY_CHUNK_POLL_MILLIS = 100;
+
+    private final BlockingQueue<List<DNCWorkCoordinate>> readyChunks = new ArrayBlockingQueue<>(PREFETCHED_CHUNKS);
 
-    private long lastCheckpoint = 0;
+    /**
+     * Coordinates of a ready chunk that were left over when a client asked for fewer coordinates.
+     */
+    private final Deque<DNCWorkCoordinate> leftoverCoordinates = new ArrayDeque<>();
+
+    /**
+     * Chunks of expired leases, handed out again before the ones read from the DB.
+     */
+    private final Queue<List<DNCWorkCoordinate>> redispatchedChunks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of coordinates read from the DB but not handed out yet.
+     */
+    private final AtomicInteger bufferedCoordinates = new AtomicInteger();
+
+    private volatile boolean allCoordinatesRead;
+
+    /**
+     * Set once a request has taken the end of the coordinates from the queue of ready chunks.
+     */
+    private volatile boolean endOfCoordinatesTaken;
+
+    /**
+     * Set if the coordinates could not be read from the DB to the end.
+     */
+    private volatile RuntimeException readFailure;
+
+    private final AtomicLong lastCheckpoint = new AtomicLong();
 
     private int chunkSize = 200;
 
+    private int leaseTimeoutSeconds = 600;
+
+    private int leaseTargetSeconds = 60;
+
+    private LeaseRegistry leaseRegistry;
+
+    private final CoordinateChunkCodec chunkCodec = new CoordinateChunkCodec();
+
+    private final JsonHelper<DNCWorkCoordinate> jsonHelper = new JsonHelper(DNCWorkCoordinate[].class);
+
+    /**
+     * Coordinates that clients reported as failed when they acknowledged their leases.
+     */
+    private final Queue<DNCWorkCoordinate> failedCoordinates = new ConcurrentLinkedQueue<>();
+
     /**
-     * Starts serving coordinates to clients who request work.
+     * Starts serving coordinates to clients who request work. Coordinates are read from the DB
+     * by a background thread, a few chunks ahead of the clients.
+     * Each chunk is leased to its client until the client acknowledges it. Chunks of clients that
+     * stop sending heartbeats are handed out again once their lease expires.
      */
     public void startServer() {
-        logger.info("Loading coordinates from DB.");
-        allCoordinates = coordinatesDao.getCoordinates();
-        if (CollectionUtils.isEmpty(allCoordinates)) {
+        logger.info("Opening coordinate cursor on DB.");
+        CoordinateCursor coordinateCursor = coordinatesDao.openCoordinateCursor();
+        if (! coordinateCursor.hasNext()) {
             logger.warn("No coordinates to process! Exiting!");
+            coordinateCursor.close();
             return;
         }
-        get("/", (request, response) -> handleRequest(request));
+        startReadingChunks(coordinateCursor);
+        startLeasing(new LeaseRegistry(TimeUnit.SECONDS.toMillis(leaseTimeoutSeconds)));
+        get("/", this::handleRequest);
+        post("/ack", (request, response) -> handleAcknowledgement(request));
+        post("/heartbeat", (request, response) -> handleHeartbeat(request));
     }
 
-    private synchronized String handleRequest(Request request) {
+    /**
+     * Starts a daemon thread that regularly hands out the chunks of expired leases again.
+     */
+    private void startLeasing(LeaseRegistry registry) {
+        leaseRegistry = registry;
+        long scanInterval = Math.max(1, leaseTimeoutSeconds / 4);
+        ScheduledExecutorService expiryScanner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expiryScanner.scheduleWithFixedDelay(this::redispatchExpiredLeases, scanInterval, scanInterval, TimeUnit.SECONDS);
+    }
+
+    void redispatchExpiredLeases() {
+        redispatchedChunks.addAll(leaseRegistry.expire());
+    }
+
+    /**
+     * Clients that accept CoordinateChunkCodec.MEDIA_TYPE get the chunk in that compact form, others get JSON.
+     * Requests only share a short lock on the coordinates read ahead from the DB and move the
+     * checkpoint atomically, so their cost does not depend on the progress of the run.
+     */
+    String handleRequest(Request request, Response response) throws InterruptedException, IOException {
         if (! relevantRequest(request)) {
             return "";
         }
         String cognitionName = request.headers("CognitionName");
         logger.info("Handling request from " + cognitionName + " " + request.ip());
 
-        List<DNCWorkCoordinate> workLoad = getChunkOfList(allCoordinates, lastCheckpoint, chunkSize);
+        String client = StringUtils.defaultString(cognitionName, request.ip());
+        int requestedSize = NumberUtils.toInt(request.headers(CHUNK_SIZE_HEADER), 0);
+        List<DNCWorkCoordinate> workLoad = nextChunk(getLeaseSize(client, requestedSize));
         if (CollectionUtils.isEmpty(workLoad)) {
-            return NO_COORDINATE_LEFT;
+            if (readFailure != null) {
+                response.status(500);
+                return COORDINATES_UNAVAILABLE;
+            }
+            return leaseRegistry.getActiveLeaseCount() == 0 && redispatchedChunks.isEmpty() ?
+                    NO_COORDINATE_LEFT : ALL_COORDINATES_LEASED;
         }
-        long newCheckPoint = lastCheckpoint + chunkSize;
-        logger.info("Serving from " + lastCheckpoint + " to " + newCheckPoint + " to " + cognitionName + " " + request.ip());
-        lastCheckpoint = newCheckPoint;
+        long leaseId = leaseRegistry.lease(workLoad, client);
+        response.header(LEASE_ID_HEADER, String.valueOf(leaseId));
+        response.header(LEASE_TIMEOUT_HEADER, String.valueOf(leaseTimeoutSeconds));
+        long newCheckPoint = lastCheckpoint.addAndGet(workLoad.size());
+        logger.info("Serving from " + (newCheckPoint - workLoad.size()) + " to " + newCheckPoint + " to " + cognitionName + " " + request.ip() + " with lease " + leaseId);
 
+        if (acceptsCompactChunks(request)) {
+            response.type(CoordinateChunkCodec.MEDIA_TYPE);
+            response.raw().getOutputStream().write(chunkCodec.encode(workLoad));
+            return "";
+        }
         return new Gson().toJson(workLoad);
     }
 
+    private boolean acceptsCompactChunks(Request request) {
+        String accept = request.headers("Accept");
+        return accept != null && accept.contains(CoordinateChunkCodec.MEDIA_TYPE);
+    }
+
+    /**
+     * Sizes the lease so that the client takes about leaseTargetSeconds to process it, at the rate
+     * measured from its acknowledgements. Clients that have not acknowledged a lease yet get the size
+     * they ask for, or chunkSize. Once all coordinates are read from the DB, leases are shrunk so
+     * that the remaining coordinates are shared among the clients instead of being held by a few of them.
+     * @param client Name of the client.
+     * @param requestedSize Number of coordinates the client asks for, or 0.
+     */
+    int getLeaseSize(String client, int requestedSize) {
+        int size = requestedSize > 0 ? requestedSize : chunkSize;
+        double rate = leaseRegistry.getThroughput().getRate(client);
+        if (rate > 0 && leaseTargetSeconds > 0) {
+            int targetSize = (int) Math.max(MIN_LEASE_SIZE, rate * leaseTargetSeconds);
+            size = requestedSize > 0 ? Math.min(targetSize, requestedSize) : targetSize;
+        }
+        if (allCoordinatesRead) {
+            int clientCount = Math.max(1, leaseRegistry.getThroughput().getClientCount());
+            size = Math.min(size, Math.max(MIN_LEASE_SIZE, bufferedCoordinates.get() / (2 * clientCount)));
+        }
+        return Math.max(1, Math.min(size, chunkSize * PREFETCHED_CHUNKS));
+    }
+
+    /**
+     * The body of an acknowledgement lists the coordinates of the lease that the client could not process,
+     * as JSON. They are not handed out again, as they would most likely fail again, but are logged and kept.
+     */
+    String handleAcknowledgement(Request request) {
+        Long leaseId = getLeaseId(request);
+        String client = request.headers("CognitionName");
+        if (leaseId == null || ! leaseRegistry.acknowledge(leaseId)) {
+            logger.warn("Acknowledgement of unknown or expired lease " + request.headers(LEASE_ID_HEADER) + " from " + client);
+            return UNKNOWN_LEASE;
+        }
+        String failedJson = request.body();
+        if (StringUtils.isNotBlank(failedJson)) {
+            List<DNCWorkCoordinate> failed = jsonHelper.loadListFromString(failedJson);
+            failed.forEach(coordinate -> logger.error("Coordinate " + coordinate + " of lease " + leaseId + " failed on " + client));
+            failedCoordinates.addAll(failed);
+        }
+        logger.info("Lease " + leaseId + " acknowledged by " + client);
+        return "";
+    }
+
+    private String handleHeartbeat(Request request) {
+        Long leaseId = getLeaseId(request);
+        if (leaseId == null || ! leaseRegistry.renew(leaseId)) {
+            return UNKNOWN_LEASE;
+        }
+        return "";
+    }
+
+    private Long getLeaseId(Request request) {
+        String leaseId = request.headers(LEASE_ID_HEADER);
+        if (! StringUtils.isNumeric(leaseId)) {
+            return null;
+        }
+        return Long.valueOf(leaseId);
+    }
+
+    /**
+     * Starts a daemon thread that reads the coordinates from the cursor in chunks and queues them
+     * for the clients. The cursor is closed when all coordinates are read. If the cursor fails, the
+     * failure is recorded so that clients are not told that there are no coordinates left.
+     */
+    void startReadingChunks(CoordinateCursor coordinateCursor) {
+        Thread reader = new Thread(() -> readChunks(coordinateCursor), "coordinate-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    void readChunks(CoordinateCursor coordinateCursor) {
+        try (CoordinateCursor cursor = coordinateCursor) {
+            List<DNCWorkCoordinate> chunk;
+            while (! (chunk = cursor.nextPage(chunkSize)).isEmpty()) {
+                bufferedCoordinates.addAndGet(chunk.size());
+                readyChunks.put(chunk);
+            }
+            allCoordinatesRead = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            readFailure = e;
+            logger.error("Could not read coordinates from DB after " + (lastCheckpoint.get() + bufferedCoordinates.get())
+                    + " coordinates. The run is incomplete.", e);
+        } finally {
+            endChunks();
+        }
+    }
+
+    private void endChunks() {
+        try {
+            readyChunks.put(END_OF_COORDINATES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    List<DNCWorkCoordinate> nextChunk() throws InterruptedException {
+        return nextChunk(chunkSize);
+    }
+
+    /**
+     * Chunks of expired leases are handed out whole. Otherwise the ready chunks are split or
+     * joined to the requested size. Requests wait for the reader without holding the lock on the
+     * leftover coordinates, so a slow DB does not block requests that can be served from them.
+     * @return The next chunk of coordinates, or an empty list if there are no coordinates left to hand out.
+     */
+    List<DNCWorkCoordinate> nextChunk(int size) throws InterruptedException {
+        List<DNCWorkCoordinate> chunk = redispatchedChunks.poll();
+        if (chunk != null) {
+            return chunk;
+        }
+        while (true) {
+            synchronized (leftoverCoordinates) {
+                if (leftoverCoordinates.size() >= size || endOfCoordinatesTaken) {
+                    return takeLeftoverCoordinates(size);
+                }
+            }
+            List<DNCWorkCoordinate> readyChunk = readyChunks.poll(READY_CHUNK_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (readyChunk == END_OF_COORDINATES) {
+                endOfCoordinatesTaken = true;
+            } else if (readyChunk != null) {
+                synchronized (leftoverCoordinates) {
+                    leftoverCoordinates.addAll(readyChunk);
+                }
+            }
+        }
+    }
+
+    private List<DNCWorkCoordinate> takeLeftoverCoordinates(int size) {
+        List<DNCWorkCoordinate> chunk = new ArrayList<>(Math.min(size, leftoverCoordinates.size()));
+        while (chunk.size() < size && ! leftoverCoordinates.isEmpty()) {
+            chunk.add(leftoverCoordinates.poll());
+        }
+        bufferedCoordinates.addAndGet(- chunk.size());
+        return chunk;
+    }
+
+    /**
+     * @return Coordinates that clients reported as failed so far.
+     */
+    public List<DNCWorkCoordinate> getFailedCoordinates() {
+        return new ArrayList<>(failedCoordinates);
+    }
+
+    /**
+     * @return Number of coordinates served so far.
+     */
+    public long getCheckpoint() {
+        return lastCheckpoint.get();
+    }
+
     private boolean relevantRequest(Request request) {
         if (request == null) {
             return false;
@@ -91,7 +392,15 @@ public class CoordinatorService {
         this.chunkSize = chunkSize;
     }
 
-    public List<DNCWorkCoordinate> getChunkOfList(List<DNCWorkCoordinate> coordinateList, long start, int size) {
-        return coordinateList.stream().skip(start).limit(size).collect(Collectors.toList());
+    public void setLeaseTimeoutSeconds(int leaseTimeoutSeconds) {
+        this.leaseTimeoutSeconds = leaseTimeoutSeconds;
+    }
+
+    public void setLeaseTargetSeconds(int leaseTargetSeconds) {
+        this.leaseTargetSeconds = leaseTargetSeconds;
+    }
+
+    void setLeaseRegistry(LeaseRegistry leaseRegistry) {
+        this.leaseRegistry = leaseRegistry;
     }
 }
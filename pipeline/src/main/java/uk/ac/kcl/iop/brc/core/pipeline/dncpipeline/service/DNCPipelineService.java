@@ -22,16 +22,21 @@ import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 import uk.ac.kcl.iop.brc.core.pipeline.common.helper.JsonHelper;
+import uk.ac.kcl.iop.brc.core.pipeline.common.model.ConversionResult;
+import uk.ac.kcl.iop.brc.core.pipeline.common.model.DocumentContent;
 import uk.ac.kcl.iop.brc.core.pipeline.common.service.DocumentConversionService;
 import uk.ac.kcl.iop.brc.core.pipeline.common.service.FileTypeService;
-import uk.ac.kcl.iop.brc.core.pipeline.common.utils.StringTools;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.CoordinateCursor;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.CoordinatesDao;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.DNCWorkUnitDao;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.PatientDao;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.exception.WorkCoordinateNotFound;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.Patient;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service.PatientWorkScheduler.PatientGroup;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service.StagedPipeline.StageHandler;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service.WorkerPoolService.Stage;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service.anonymisation.AnonymisationService;
 
 import java.io.File;
@@ -40,13 +45,23 @@ import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Service
 public class DNCPipelineService {
 
     private static Logger logger = Logger.getLogger(DNCPipelineService.class);
 
+    /**
+     * Number of coordinates whose patients are loaded together before the coordinates are processed.
+     */
+    private static final int PATIENT_PREFETCH_SIZE = 1000;
+
     @Autowired
     private AnonymisationService anonymisationService;
 
@@ -68,12 +83,21 @@ public class DNCPipelineService {
     @Autowired
     private CoordinatesDao coordinatesDao;
 
+    @Autowired
+    private WorkerPoolService workerPoolService;
+
+    @Autowired
+    private ConvertedTextWriter convertedTextWriter;
+
     @Value("${ocrEnabled}")
     private String ocrEnabled;
 
     @Value("${pseudonymEnabled}")
     private String pseudonymEnabled;
 
+    @Value("${fetchBatchSize:50}")
+    private int fetchBatchSize = 50;
+
     private JsonHelper<DNCWorkCoordinate> jsonHelper = new JsonHelper(DNCWorkCoordinate[].class);
 
     private boolean noPseudonym = false;
@@ -84,17 +108,25 @@ public class DNCPipelineService {
 
     /**
      * Anonymise the DNC Work Coordinates (DWC) specified in a view/table in the source DB.
-     *
+     * Coordinates are streamed from the DB page by page, so processing starts with the first page.
      */
     public void startCreateModeWithDBView() {
         logger.info("Retrieving coordinates from DB.");
 
-        List<DNCWorkCoordinate> dncWorkCoordinates = coordinatesDao.getCoordinates();
-
-        dncWorkCoordinates.parallelStream().forEach(this::processSingleCoordinate);
+        try (CoordinateCursor cursor = coordinatesDao.openCoordinateCursor()) {
+            List<DNCWorkCoordinate> page;
+            while (! (page = cursor.nextPage(PATIENT_PREFETCH_SIZE)).isEmpty()) {
+                processCoordinatesInChunks(page);
+                logger.info("Processed " + cursor.getPosition() + " coordinates from DB.");
+                dncWorkUnitDao.logPoolUsage();
+            }
+        }
         logger.info("Finished all non-OCR. Processing the OCR queue now.");
         processOCRQueue();
         logger.info("Finished all.");
+        patientDao.logCacheStatistics();
+        fileTypeService.logTypeCounts();
+        dncWorkUnitDao.logPoolUsage();
         dumpFailedCoordinates();
     }
 
@@ -108,55 +140,290 @@ public class DNCPipelineService {
 
         List<DNCWorkCoordinate> workCoordinates = jsonHelper.loadListFromFile(new File(filePath));
 
-        workCoordinates.parallelStream().forEach(this::processSingleCoordinate);
+        processCoordinatesInChunks(workCoordinates);
         logger.info("Finished all non-OCR. Processing the OCR queue now.");
         processOCRQueue();
         logger.info("Finished all.");
+        patientDao.logCacheStatistics();
+        fileTypeService.logTypeCounts();
+        dncWorkUnitDao.logPoolUsage();
         dumpFailedCoordinates();
     }
 
-    public void processCoordinates(List<DNCWorkCoordinate> coordinates) {
-        coordinates.parallelStream().forEach(this::processSingleCoordinate);
+    /**
+     * Processes the coordinates in stages, after loading all their patients in bulk.
+     * @param coordinates Coordinates to be processed.
+     * @return Coordinates that could not be processed.
+     */
+    public List<DNCWorkCoordinate> processCoordinates(List<DNCWorkCoordinate> coordinates) {
+        return processCoordinates(coordinates, () -> false);
+    }
+
+    /**
+     * Processes the coordinates in stages, after loading all their patients in bulk, until stopped.
+     * Once stopped returns true, no more documents are fetched; the ones fetched already are finished.
+     * Calls must not overlap, as the failures of a call are taken from the failed coordinates of the run.
+     * @param coordinates Coordinates to be processed.
+     * @param stopped Tells whether the remaining coordinates should be left unprocessed.
+     * @return Coordinates that could not be processed.
+     */
+    public List<DNCWorkCoordinate> processCoordinates(List<DNCWorkCoordinate> coordinates, BooleanSupplier stopped) {
+        int failedBefore = failedCoordinates.size();
+        prefetchPatients(coordinates);
+        runPipeline(coordinates, this::convertDocument, stopped);
+        synchronized (failedCoordinates) {
+            return new ArrayList<>(failedCoordinates.subList(failedBefore, failedCoordinates.size()));
+        }
+    }
+
+    /**
+     * Processes the coordinates in chunks of about PATIENT_PREFETCH_SIZE. A chunk is extended
+     * until the end of its last patient, so that no patient is split over two chunks.
+     */
+    private void processCoordinatesInChunks(List<DNCWorkCoordinate> coordinates) {
+        coordinates = orderByPatient(coordinates);
+        int start = 0;
+        while (start < coordinates.size()) {
+            int end = Math.min(start + PATIENT_PREFETCH_SIZE, coordinates.size());
+            while (end < coordinates.size()
+                    && coordinates.get(end).getPatientId() == coordinates.get(end - 1).getPatientId()) {
+                end++;
+            }
+            processCoordinates(coordinates.subList(start, end));
+            start = end;
+        }
+    }
+
+    /**
+     * Runs the coordinates through the fetch, convert, pseudonymise and save stages, each with
+     * its own workers and connected by bounded queues, so that database reads and writes overlap
+     * with conversion and pseudonymisation. The fetch stage takes batches of about fetchBatchSize
+     * coordinates made of whole patient groups, largest first, and loads the patient of a group once.
+     * Returns when all coordinates are processed.
+     * @param coordinates Coordinates to be processed.
+     * @param converter Handler of the convert stage.
+     * @param stopped Tells whether the fetch stage should skip the remaining batches.
+     */
+    private void runPipeline(List<DNCWorkCoordinate> coordinates, StageHandler<DocumentJob, DocumentJob> converter,
+                             BooleanSupplier stopped) {
+        List<PatientGroup> groups = PatientWorkScheduler.largestFirst(PatientWorkScheduler.groupByPatient(coordinates));
+        List<List<PatientGroup>> batches = PatientWorkScheduler.batches(groups, fetchBatchSize);
+        try {
+            new StagedPipeline<List<PatientGroup>, List<PatientGroup>>(workerPoolService.getStageQueueCapacity())
+                    .then("fetch", workerPoolService.getExecutor(Stage.FETCH), workerPoolService.getThreadCount(Stage.FETCH),
+                            (List<PatientGroup> batch, Consumer<DocumentJob> output) -> {
+                                if (! stopped.getAsBoolean()) {
+                                    fetchDocuments(batch, output);
+                                }
+                            }, this::failBatch)
+                    .then("convert", workerPoolService.getExecutor(Stage.CONVERT), workerPoolService.getThreadCount(Stage.CONVERT), converter, this::fail)
+                    .then("pseudonymise", workerPoolService.getExecutor(Stage.PSEUDONYMISE), workerPoolService.getThreadCount(Stage.PSEUDONYMISE), this::pseudonymiseDocument, this::fail)
+                    .then("save", workerPoolService.getExecutor(Stage.SAVE), workerPoolService.getThreadCount(Stage.SAVE), this::saveDocument, this::fail)
+                    .run(batches);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while processing " + coordinates.size() + " coordinates.");
+        } finally {
+            convertedTextWriter.flush();
+        }
+    }
+
+    /**
+     * Puts the coordinates of the same patient next to each other, so that they are processed
+     * close together while the patient is still in the cache.
+     */
+    private List<DNCWorkCoordinate> orderByPatient(List<DNCWorkCoordinate> coordinates) {
+        List<DNCWorkCoordinate> ordered = new ArrayList<>(coordinates);
+        ordered.sort(Comparator.comparingLong(DNCWorkCoordinate::getPatientId));
+        return ordered;
     }
 
-    @Transactional("targetTX")
-    private void processTextCoordinate(DNCWorkCoordinate coordinate) {
+    /**
+     * Loads the patients of the coordinates into the patient cache with a few bulk queries,
+     * instead of one set of queries per patient from the worker threads.
+     */
+    private void prefetchPatients(List<DNCWorkCoordinate> coordinates) {
+        if (! pseudonymisationIsEnabled()) {
+            return;
+        }
+        List<Long> patientIds = coordinates.stream()
+                .map(DNCWorkCoordinate::getPatientId)
+                .distinct()
+                .collect(Collectors.toList());
         try {
-            logger.info("Anonymising text, coordinates: " + coordinate);
-            String text = dncWorkUnitDao.getTextFromCoordinate(coordinate);
+            patientDao.getPatients(patientIds);
+        } catch (Exception ex) {
+            logger.warn("Could not prefetch patients of " + coordinates.size() + " coordinates. " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Fetch stage. Reads the contents of all coordinates of the batch with a few bulk queries,
+     * then loads the patient of each group once.
+     */
+    private void fetchDocuments(List<PatientGroup> batch, Consumer<DocumentJob> output) {
+        Map<DNCWorkCoordinate, Object> contents = fetchContents(batch);
+        for (PatientGroup group : batch) {
+            Patient patient = null;
             if (pseudonymisationIsEnabled()) {
-                Patient patient = patientDao.getPatient(coordinate.getPatientId());
-                text = anonymisationService.pseudonymisePersonPlainText(patient, text);
+                try {
+                    patient = patientDao.getPatient(group.getPatientId());
+                } catch (Exception ex) {
+                    logger.error("Could not load patient " + group.getPatientId() + " of " + group.size() + " coordinates. " + ex.getMessage());
+                    failedCoordinates.addAll(group.getCoordinates());
+                    releaseContents(contents, group.getCoordinates());
+                    continue;
+                }
+            }
+            for (DNCWorkCoordinate coordinate : group.getCoordinates()) {
+                logger.info("Processing coordinate " + coordinate);
+                DocumentJob job = new DocumentJob(coordinate, patient);
+                try {
+                    setContent(job, contents);
+                } catch (Exception ex) {
+                    fail(job, ex);
+                    continue;
+                }
+                output.accept(job);
+            }
+        }
+    }
+
+    /**
+     * @return Contents of the coordinates of the batch, or null if they could not be read in bulk.
+     */
+    private Map<DNCWorkCoordinate, Object> fetchContents(List<PatientGroup> batch) {
+        List<DNCWorkCoordinate> coordinates = batch.stream()
+                .flatMap(group -> group.getCoordinates().stream())
+                .collect(Collectors.toList());
+        try {
+            return dncWorkUnitDao.getObjectsFromCoordinates(coordinates);
+        } catch (Exception ex) {
+            logger.warn("Could not fetch " + coordinates.size() + " coordinates in bulk. Fetching them one by one. " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private void releaseContents(Map<DNCWorkCoordinate, Object> contents, List<DNCWorkCoordinate> coordinates) {
+        if (contents == null) {
+            return;
+        }
+        coordinates.stream()
+                .map(contents::get)
+                .filter(content -> content instanceof DocumentContent)
+                .forEach(content -> ((DocumentContent) content).close());
+    }
+
+    private void setContent(DocumentJob job, Map<DNCWorkCoordinate, Object> contents) {
+        DNCWorkCoordinate coordinate = job.coordinate;
+        if (contents == null) {
+            if (coordinate.isBinary()) {
+                job.content = dncWorkUnitDao.getContentFromCoordinate(coordinate);
+            } else {
+                job.text = dncWorkUnitDao.getTextFromCoordinate(coordinate);
             }
-            saveText(coordinate, text);
+            return;
+        }
+        if (! contents.containsKey(coordinate)) {
+            throw new WorkCoordinateNotFound("Coordinate is invalid. No data found at " + coordinate);
+        }
+        if (coordinate.isBinary()) {
+            job.content = (DocumentContent) contents.get(coordinate);
+        } else {
+            job.text = (String) contents.get(coordinate);
+        }
+    }
+
+    /**
+     * Convert stage. Converts binary documents to text, and puts those without any text
+     * into the OCR queue if OCR is enabled. Text documents are passed on as they are.
+     */
+    private void convertDocument(DocumentJob job, Consumer<DocumentJob> output) {
+        if (! job.coordinate.isBinary()) {
+            output.accept(job);
+            return;
+        }
+        try {
+            job.conversion = documentConversionService.convert(job.content, conversionPreferenceIsHTML());
+            job.converted = true;
         } catch (Exception ex) {
-            logger.info("Could not process coordinate " + coordinate);
-            failedCoordinates.add(coordinate);
-            ex.printStackTrace();
+            fail(job, ex);
+            return;
         }
+        job.releaseContent();
+        if (job.conversion.hasNoContent() && ocrIsEnabled()) {
+            logger.info("Skipping OCR coordinate " + job.coordinate);
+            ocrQueue.add(job.coordinate);
+            return;
+        }
+        output.accept(job);
     }
 
-    @Transactional("targetTX")
-    private void processBinaryCoordinate(DNCWorkCoordinate coordinate) {
+    /**
+     * Convert stage of the OCR queue.
+     */
+    private void ocrDocument(DocumentJob job, Consumer<DocumentJob> output) {
+        logger.info("Processing OCR coordinate " + job.coordinate);
         try {
-            byte[] bytes = dncWorkUnitDao.getByteFromCoordinate(coordinate);
-            String text = convertBinary(bytes);
-            if (StringTools.noContentInHtml(text) && ocrIsEnabled()) {
-                logger.info("Skipping OCR coordinate " + coordinate);
-                ocrQueue.add(coordinate);
+            job.text = tryOCR(job.content);
+            job.converted = true;
+        } catch (Exception ex) {
+            fail(job, ex);
+            return;
+        }
+        job.releaseContent();
+        output.accept(job);
+    }
+
+    /**
+     * Pseudonymise stage. Converted documents are pseudonymised in the conversion format,
+     * text documents as plain text. HTML conversions are pseudonymised on the DOM built
+     * while parsing the document.
+     */
+    private void pseudonymiseDocument(DocumentJob job, Consumer<DocumentJob> output) {
+        if (pseudonymisationIsEnabled()) {
+            try {
+                if (job.conversion != null) {
+                    logger.info("Pseudonymising binary, coordinates: " + job.coordinate);
+                    job.text = pseudonymiseConversion(job.patient, job.conversion);
+                } else if (job.converted) {
+                    logger.info("Pseudonymising binary, coordinates: " + job.coordinate);
+                    job.text = pseudonymisePersonText(job.patient, job.text);
+                } else {
+                    logger.info("Anonymising text, coordinates: " + job.coordinate);
+                    job.text = anonymisationService.pseudonymisePersonPlainText(job.patient, job.text);
+                }
+            } catch (Exception ex) {
+                fail(job, ex);
                 return;
             }
-            if (pseudonymisationIsEnabled()) {
-                logger.info("Pseudonymising binary, coordinates: " + coordinate);
-                Patient patient = patientDao.getPatient(coordinate.getPatientId());
-                text = pseudonymisePersonText(patient, text);
-            }
-            saveText(coordinate, text);
-        } catch (Exception ex) {
-            logger.error("Could not process coordinate " + coordinate );
-            failedCoordinates.add(coordinate);
-            ex.printStackTrace();
+        } else if (job.conversion != null) {
+            job.text = job.conversion.getText();
         }
+        job.conversion = null;
+        output.accept(job);
+    }
+
+    /**
+     * Save stage. Texts are saved in batches, the remaining ones when the pipeline finishes.
+     */
+    private void saveDocument(DocumentJob job, Consumer<DocumentJob> output) {
+        convertedTextWriter.write(job.coordinate, job.text, ex -> fail(job, ex));
+    }
+
+    /**
+     * Reports all coordinates of a batch whose fetch failed unexpectedly, as it is not known
+     * which of them were passed on before the failure.
+     */
+    private void failBatch(List<PatientGroup> batch, RuntimeException ex) {
+        logger.error("Could not fetch a batch of " + batch.size() + " patients. " + ex.getMessage());
+        batch.forEach(group -> failedCoordinates.addAll(group.getCoordinates()));
+    }
+
+    private void fail(DocumentJob job, Exception ex) {
+        job.releaseContent();
+        logger.error("Could not process coordinate " + job.coordinate + ". " + ex.getMessage(), ex);
+        failedCoordinates.add(job.coordinate);
     }
 
     private boolean pseudonymisationIsEnabled() {
@@ -170,12 +437,12 @@ public class DNCPipelineService {
         return "true".equalsIgnoreCase(ocrEnabled) || "1".equals(ocrEnabled);
     }
 
-    private String tryOCR(byte[] bytes) throws Exception {
-        if (! fileTypeService.isPDF(bytes)) {
+    private String tryOCR(DocumentContent content) throws Exception {
+        if (! fileTypeService.isPDF(content)) {
             logger.info("Ignoring non-PDF file for OCR. OCR cannot be applied to Non-PDF Files.");
         }
 
-        return documentConversionService.getContentFromImagePDF(bytes);
+        return documentConversionService.getContentFromImagePDF(content);
     }
 
     private String pseudonymisePersonText(Patient patient, String text) {
@@ -187,50 +454,23 @@ public class DNCPipelineService {
         return text;
     }
 
-    private String convertBinary(byte[] bytes) {
-        if (conversionPreferenceIsHTML()) {
-            return documentConversionService.convertToXHTML(bytes);
+    private String pseudonymiseConversion(Patient patient, ConversionResult conversion) {
+        if (conversion.getDocument() != null) {
+            return anonymisationService.pseudonymisePersonHTML(patient, conversion.getDocument());
         }
-        return documentConversionService.convertToText(bytes);
+        return anonymisationService.pseudonymisePersonPlainText(patient, conversion.getText());
     }
 
     private boolean conversionPreferenceIsHTML() {
         return conversionFormat.equalsIgnoreCase("html") || conversionFormat.equalsIgnoreCase("xhtml");
     }
 
-    private void saveText(DNCWorkCoordinate coordinate, String text) {
-        dncWorkUnitDao.saveConvertedText(coordinate, text);
-    }
-
     public void setConversionFormat(String conversionFormat) {
         this.conversionFormat = conversionFormat;
     }
 
     private void processOCRQueue() {
-        ocrQueue.parallelStream().forEach(coordinate -> {
-            logger.info("Processing OCR coordinate " + coordinate);
-            byte[] bytes = dncWorkUnitDao.getByteFromCoordinate(coordinate);
-            try {
-                String text = tryOCR(bytes);
-                if (pseudonymisationIsEnabled()) {
-                    Patient patient = patientDao.getPatient(coordinate.getPatientId());
-                    text = pseudonymisePersonText(patient, text);
-                }
-                saveText(coordinate, text);
-            } catch (Exception e) {
-                failedCoordinates.add(coordinate);
-                logger.error(e.getMessage());
-            }
-        });
-    }
-
-    private void processSingleCoordinate(DNCWorkCoordinate coordinate) {
-        logger.info("Processing coordinate " + coordinate);
-        if (coordinate.isBinary()) {
-            processBinaryCoordinate(coordinate);
-        } else {
-            processTextCoordinate(coordinate);
-        }
+        runPipeline(new ArrayList<>(ocrQueue), this::ocrDocument, () -> false);
     }
 
     public void setNoPseudonym(boolean noPseudonym) {
@@ -253,4 +493,37 @@ public class DNCPipelineService {
             e.printStackTrace();
         }
     }
+
+    /**
+     * A document on its way through the pipeline stages.
+     */
+    private static class DocumentJob {
+
+        private final DNCWorkCoordinate coordinate;
+
+        private final Patient patient;
+
+        private DocumentContent content;
+
+        private String text;
+
+        private ConversionResult conversion;
+
+        private boolean converted = false;
+
+        private DocumentJob(DNCWorkCoordinate coordinate, Patient patient) {
+            this.coordinate = coordinate;
+            this.patient = patient;
+        }
+
+        /**
+         * Drops the binary content once it is converted, deleting its temporary file if it was spilled to disk.
+         */
+        private void releaseContent() {
+            if (content != null) {
+                content.close();
+                content = null;
+            }
+        }
+    }
 }
@@ -0,0 +1,172 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import org.apache.log4j.Logger;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps track of the chunks of coordinates handed out to clients. A lease stays active until
+ * the client acknowledges it, or until the client stops renewing it for longer than the timeout.
+ */
+public class LeaseRegistry {
+
+    private static Logger logger = Logger.getLogger(LeaseRegistry.class);
+
+    private final AtomicLong lastLeaseId = new AtomicLong();
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    private final long timeoutMillis;
+
+    private final LongSupplier clock;
+
+    private final ClientThroughput throughput = new ClientThroughput();
+
+    /**
+     * Time of the last acknowledgement of each client.
+     */
+    private final Map<String, Long> lastAcknowledgements = new ConcurrentHashMap<>();
+
+    /**
+     * @param timeoutMillis Time after which a lease that has not been renewed expires.
+     */
+    public LeaseRegistry(long timeoutMillis) {
+        this(timeoutMillis, System::currentTimeMillis);
+    }
+
+    LeaseRegistry(long timeoutMillis, LongSupplier clock) {
+        this.timeoutMillis = timeoutMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * @param chunk Coordinates handed out to the client.
+     * @param holder Name of the client.
+     * @return Id of the new lease.
+     */
+    public long lease(List<DNCWorkCoordinate> chunk, String holder) {
+        long id = lastLeaseId.incrementAndGet();
+        long now = clock.getAsLong();
+        leases.put(id, new Lease(chunk, holder, now, now + timeoutMillis));
+        return id;
+    }
+
+    /**
+     * Ends the lease, as its coordinates have been processed, and records the rate of its holder.
+     * A client works on its leases one after the other, so the time since its previous
+     * acknowledgement is taken as the processing time when the lease is older than that.
+     * @return false if there is no such lease, or if it has expired, as its coordinates are
+     * handed out again then.
+     */
+    public boolean acknowledge(long leaseId) {
+        long now = clock.getAsLong();
+        Lease lease = leases.get(leaseId);
+        if (lease == null || lease.expiresAt <= now || ! leases.remove(leaseId, lease)) {
+            return false;
+        }
+        Long lastAcknowledgement = lastAcknowledgements.put(lease.holder, now);
+        long start = lastAcknowledgement == null ? lease.leasedAt : Math.max(lastAcknowledgement, lease.leasedAt);
+        throughput.record(lease.holder, lease.chunk.size(), now - start);
+        return true;
+    }
+
+    /**
+     * Extends the lease by the timeout. An expired lease is not extended, even if it has not been
+     * removed by {@link #expire()} yet, so that its holder stops working on it.
+     * @return false if there is no such lease, or if it has expired.
+     */
+    public boolean renew(long leaseId) {
+        long now = clock.getAsLong();
+        Lease renewed = leases.computeIfPresent(leaseId, (id, lease) -> {
+            if (lease.expiresAt > now) {
+                lease.expiresAt = now + timeoutMillis;
+            }
+            return lease;
+        });
+        return renewed != null && renewed.expiresAt > now;
+    }
+
+    /**
+     * Removes the expired leases.
+     * @return Chunks of the expired leases, to be handed out again.
+     */
+    public List<List<DNCWorkCoordinate>> expire() {
+        long now = clock.getAsLong();
+        List<List<DNCWorkCoordinate>> expiredChunks = new ArrayList<>();
+        for (Map.Entry<Long, Lease> entry : leases.entrySet()) {
+            Lease lease = entry.getValue();
+            if (lease.expiresAt <= now && removeIfExpired(entry.getKey(), now)) {
+                logger.warn("Lease " + entry.getKey() + " of " + lease.holder + " expired. Its "
+                        + lease.chunk.size() + " coordinates will be handed out again.");
+                expiredChunks.add(lease.chunk);
+            }
+        }
+        return expiredChunks;
+    }
+
+    /**
+     * Removes the lease atomically with respect to {@link #renew(long)}, which could extend it otherwise.
+     */
+    private boolean removeIfExpired(long leaseId, long now) {
+        AtomicBoolean removed = new AtomicBoolean();
+        leases.computeIfPresent(leaseId, (id, lease) -> {
+            removed.set(lease.expiresAt <= now);
+            return removed.get() ? null : lease;
+        });
+        return removed.get();
+    }
+
+    public int getActiveLeaseCount() {
+        return leases.size();
+    }
+
+    public ClientThroughput getThroughput() {
+        return throughput;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    private static class Lease {
+
+        private final List<DNCWorkCoordinate> chunk;
+
+        private final String holder;
+
+        private final long leasedAt;
+
+        private volatile long expiresAt;
+
+        private Lease(List<DNCWorkCoordinate> chunk, String holder, long leasedAt, long expiresAt) {
+            this.chunk = chunk;
+            this.holder = holder;
+            this.leasedAt = leasedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
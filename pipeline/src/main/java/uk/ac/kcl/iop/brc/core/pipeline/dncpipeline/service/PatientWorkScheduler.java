@@ -0,0 +1,114 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits DNC work coordinates into per-patient groups, so that all documents of a patient
+ * are fetched by one worker with the patient loaded once.
+ */
+public class PatientWorkScheduler {
+
+    private PatientWorkScheduler() {
+    }
+
+    /**
+     * @param coordinates Coordinates to be grouped.
+     * @return One group per patient, in the order in which the patients first appear.
+     */
+    public static List<PatientGroup> groupByPatient(List<DNCWorkCoordinate> coordinates) {
+        Map<Long, PatientGroup> groups = new LinkedHashMap<>();
+        for (DNCWorkCoordinate coordinate : coordinates) {
+            groups.computeIfAbsent(coordinate.getPatientId(), PatientGroup::new)
+                    .getCoordinates().add(coordinate);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    /**
+     * Orders the groups by their number of documents, largest first. Workers taking the groups
+     * in this order from a shared queue end up with similar amounts of work, as the small groups
+     * at the end fill the gaps left by the large ones.
+     * @param groups Patient groups.
+     * @return Groups ordered by decreasing size. Groups of the same size keep their order.
+     */
+    public static List<PatientGroup> largestFirst(List<PatientGroup> groups) {
+        List<PatientGroup> ordered = new ArrayList<>(groups);
+        ordered.sort(Comparator.comparingInt(PatientGroup::size).reversed());
+        return ordered;
+    }
+
+    /**
+     * Splits the groups into batches of consecutive groups with at least the given number
+     * of coordinates, except for the last batch. Groups are never split.
+     * @param groups Patient groups.
+     * @param minCoordinates Number of coordinates after which a batch is closed.
+     * @return Batches of groups.
+     */
+    public static List<List<PatientGroup>> batches(List<PatientGroup> groups, int minCoordinates) {
+        List<List<PatientGroup>> batches = new ArrayList<>();
+        List<PatientGroup> batch = new ArrayList<>();
+        int coordinateCount = 0;
+        for (PatientGroup group : groups) {
+            batch.add(group);
+            coordinateCount += group.size();
+            if (coordinateCount >= minCoordinates) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                coordinateCount = 0;
+            }
+        }
+        if (! batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * Coordinates of a single patient.
+     */
+    public static class PatientGroup {
+
+        private final long patientId;
+
+        private final List<DNCWorkCoordinate> coordinates = new ArrayList<>();
+
+        public PatientGroup(long patientId) {
+            this.patientId = patientId;
+        }
+
+        public long getPatientId() {
+            return patientId;
+        }
+
+        public List<DNCWorkCoordinate> getCoordinates() {
+            return coordinates;
+        }
+
+        public int size() {
+            return coordinates.size();
+        }
+    }
+
+}
@@ -0,0 +1,324 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A chain of stages connected by bounded queues. Each stage has its own workers, which take
+ * items from the queue of the stage and put their results into the queue of the next stage.
+ * A full queue blocks the stage in front of it, so a slow stage slows down the ones before it
+ * instead of letting items pile up in memory.
+ *
+ * The end of the input is signalled by an end-of-stream marker. The last worker of a stage
+ * to see it passes it on to the next stage. A pipeline can be run only once.
+ *
+ * An exception thrown for an item is logged and the item is given to the failure handler of
+ * its stage, if any. An Error, such as an OutOfMemoryError from a parser, fails the pipeline:
+ * the remaining items of all stages are discarded, the stages still shut down in order, and
+ * {@link #run(Collection)} rethrows the Error. The remaining items are discarded in the same way
+ * when the thread running the pipeline is interrupted.
+ *
+ * @param <S> Type of the items given to the first stage.
+ * @param <T> Type of the items produced by the last stage.
+ */
+public class StagedPipeline<S, T> {
+
+    private static Logger logger = Logger.getLogger(StagedPipeline.class);
+
+    private static final Object END_OF_STREAM = new Object();
+
+    /**
+     * Processes a single item of a stage.
+     * @param <I> Type of the input items.
+     * @param <O> Type of the items given to the next stage.
+     */
+    public interface StageHandler<I, O> {
+
+        /**
+         * @param item Item to be processed.
+         * @param output Receives any number of items for the next stage.
+         */
+        void process(I item, Consumer<O> output);
+    }
+
+    private final int queueCapacity;
+
+    private final BlockingQueue<Object> sourceQueue;
+
+    private final List<StageWorkers<?, ?>> stages = new ArrayList<>();
+
+    /**
+     * First Error thrown by a stage, after which the remaining items are discarded.
+     */
+    private final AtomicReference<Error> failure = new AtomicReference<>();
+
+    /**
+     * Set when the thread running the pipeline is interrupted, after which the remaining items are discarded.
+     */
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+    private boolean started = false;
+
+    /**
+     * @param queueCapacity Capacity of the queue in front of each stage.
+     */
+    public StagedPipeline(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        this.sourceQueue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Appends a stage to the pipeline.
+     * @param name Name of the stage, used in logs.
+     * @param executor Executor that can run the given number of workers at the same time.
+     * @param workerCount Number of workers of the stage.
+     * @param handler Processes the items of the stage.
+     * @return This pipeline, now producing the items of the new stage.
+     */
+    public <R> StagedPipeline<S, R> then(String name, Executor executor, int workerCount, StageHandler<? super T, R> handler) {
+        return then(name, executor, workerCount, handler, null);
+    }
+
+    /**
+     * Appends a stage to the pipeline.
+     * @param name Name of the stage, used in logs.
+     * @param executor Executor that can run the given number of workers at the same time.
+     * @param workerCount Number of workers of the stage.
+     * @param handler Processes the items of the stage.
+     * @param onFailure Receives the items for which the handler threw an exception, or null.
+     * @return This pipeline, now producing the items of the new stage.
+     */
+    @SuppressWarnings("unchecked")
+    public <R> StagedPipeline<S, R> then(String name, Executor executor, int workerCount, StageHandler<? super T, R> handler,
+                                         BiConsumer<? super T, RuntimeException> onFailure) {
+        BlockingQueue<Object> input = stages.isEmpty() ? sourceQueue : stages.get(stages.size() - 1).createOutput(queueCapacity);
+        stages.add(new StageWorkers<>(name, executor, workerCount, input, handler, onFailure, failure, cancelled));
+        return (StagedPipeline<S, R>) this;
+    }
+
+    /**
+     * Feeds the items to the first stage and waits until all stages have processed them.
+     * Items produced by the last stage are discarded.
+     * @param items Items to be processed.
+     * @throws InterruptedException if interrupted while feeding or waiting. The stages then discard
+     * their remaining items and shut down without being waited for.
+     * @throws Error the first Error thrown by a stage, once all stages have shut down.
+     */
+    public void run(Collection<? extends S> items) throws InterruptedException {
+        if (stages.isEmpty() || started) {
+            throw new IllegalStateException("Pipeline has no stages or has already been run.");
+        }
+        started = true;
+        for (StageWorkers<?, ?> stage : stages) {
+            stage.start();
+        }
+        try {
+            for (S item : items) {
+                if (failure.get() != null) {
+                    break;
+                }
+                sourceQueue.put(item);
+            }
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            throw e;
+        } finally {
+            putEndOfStream();
+        }
+        try {
+            for (StageWorkers<?, ?> stage : stages) {
+                stage.await();
+            }
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            throw e;
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Queues the end-of-stream marker even if interrupted, so that the workers always shut down
+     * and give their threads back. The first stage keeps taking items, so the queue has room soon.
+     */
+    private void putEndOfStream() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                sourceQueue.put(END_OF_STREAM);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class StageWorkers<I, O> {
+
+        private final String name;
+
+        private final Executor executor;
+
+        private final int workerCount;
+
+        private final BlockingQueue<Object> input;
+
+        private final StageHandler<? super I, O> handler;
+
+        private final BiConsumer<? super I, RuntimeException> onFailure;
+
+        private BlockingQueue<Object> output;
+
+        private AtomicInteger runningWorkers;
+
+        private CountDownLatch finished;
+
+        private final AtomicReference<Error> failure;
+
+        private final AtomicBoolean cancelled;
+
+        private StageWorkers(String name, Executor executor, int workerCount, BlockingQueue<Object> input,
+                             StageHandler<? super I, O> handler, BiConsumer<? super I, RuntimeException> onFailure,
+                             AtomicReference<Error> failure, AtomicBoolean cancelled) {
+            if (workerCount < 1) {
+                throw new IllegalArgumentException("Stage " + name + " needs at least one worker.");
+            }
+            this.name = name;
+            this.executor = executor;
+            this.workerCount = workerCount;
+            this.input = input;
+            this.handler = handler;
+            this.onFailure = onFailure;
+            this.failure = failure;
+            this.cancelled = cancelled;
+        }
+
+        private BlockingQueue<Object> createOutput(int capacity) {
+            output = new ArrayBlockingQueue<>(capacity);
+            return output;
+        }
+
+        private void start() {
+            runningWorkers = new AtomicInteger(workerCount);
+            finished = new CountDownLatch(1);
+            for (int i = 0; i < workerCount; i++) {
+                executor.execute(this::work);
+            }
+        }
+
+        private void await() throws InterruptedException {
+            finished.await();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void work() {
+            boolean endOfStream = false;
+            try {
+                Object item;
+                while ((item = input.take()) != END_OF_STREAM) {
+                    if (failure.get() != null || cancelled.get()) {
+                        continue;
+                    }
+                    try {
+                        handler.process((I) item, this::emit);
+                    } catch (RuntimeException e) {
+                        logger.error("Stage " + name + " could not process " + item + ". " + e.getMessage(), e);
+                        reportFailure((I) item, e);
+                    } catch (Error e) {
+                        logger.error("Stage " + name + " failed on " + item + ". Discarding the remaining items.", e);
+                        failure.compareAndSet(null, e);
+                    }
+                }
+                endOfStream = true;
+            } catch (InterruptedException e) {
+                logger.error("Stage " + name + " was interrupted.");
+                Thread.currentThread().interrupt();
+            } finally {
+                finish(endOfStream);
+            }
+        }
+
+        private void reportFailure(I item, RuntimeException e) {
+            if (onFailure == null) {
+                return;
+            }
+            try {
+                onFailure.accept(item, e);
+            } catch (RuntimeException ex) {
+                logger.error("Stage " + name + " could not report the failure of " + item + ". " + ex.getMessage(), ex);
+            }
+        }
+
+        /**
+         * Passes the end-of-stream marker on to the other workers of the stage and, from the last worker,
+         * to the next stage. Runs however the worker ends, so that the pipeline never waits for a dead worker.
+         */
+        private void finish(boolean endOfStream) {
+            boolean interrupted = Thread.interrupted();
+            boolean lastWorker = runningWorkers.decrementAndGet() == 0;
+            try {
+                if (endOfStream && ! lastWorker) {
+                    input.put(END_OF_STREAM);
+                }
+                if (lastWorker && output != null) {
+                    output.put(END_OF_STREAM);
+                }
+            } catch (InterruptedException e) {
+                logger.error("Stage " + name + " was interrupted while shutting down.");
+                interrupted = true;
+            } finally {
+                if (lastWorker) {
+                    finished.countDown();
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void emit(O item) {
+            if (output == null) {
+                return;
+            }
+            try {
+                output.put(item);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Stage " + name + " was interrupted.", e);
+            }
+        }
+    }
+
+}
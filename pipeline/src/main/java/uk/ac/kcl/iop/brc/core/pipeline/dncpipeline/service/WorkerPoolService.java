@@ -0,0 +1,139 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Provides the threads of the pipeline stages. I/O bound stages (fetching documents from and
+ * saving them to the databases) can have many more threads than there are cores as their
+ * threads mostly wait for the database. CPU bound stages (conversion, OCR and pseudonymisation)
+ * are sized by the number of cores by default.
+ */
+@Service
+public class WorkerPoolService {
+
+    private static Logger logger = Logger.getLogger(WorkerPoolService.class);
+
+    public enum Stage {
+        FETCH(true), CONVERT(false), PSEUDONYMISE(false), SAVE(true);
+
+        private final boolean ioBound;
+
+        Stage(boolean ioBound) {
+            this.ioBound = ioBound;
+        }
+
+        public boolean isIOBound() {
+            return ioBound;
+        }
+    }
+
+    @Value("${fetchThreads:16}")
+    private int fetchThreads = 16;
+
+    @Value("${convertThreads:0}")
+    private int convertThreads = 0;
+
+    @Value("${pseudonymiseThreads:0}")
+    private int pseudonymiseThreads = 0;
+
+    @Value("${saveThreads:16}")
+    private int saveThreads = 16;
+
+    @Value("${stageQueueCapacity:64}")
+    private int stageQueueCapacity = 64;
+
+    @Value("${virtualThreads:false}")
+    private boolean virtualThreads = false;
+
+    private final Map<Stage, BoundedExecutor> executors = new EnumMap<>(Stage.class);
+
+    /**
+     * @param stage Pipeline stage.
+     * @return Executor with one thread for each worker of the stage.
+     */
+    public synchronized BoundedExecutor getExecutor(Stage stage) {
+        BoundedExecutor executor = executors.get(stage);
+        if (executor == null) {
+            int threads = getThreadCount(stage);
+            executor = new BoundedExecutor(stage.name().toLowerCase(), threads, 0, virtualThreads && stage.isIOBound());
+            executors.put(stage, executor);
+            logger.info("Started " + threads + " threads for stage " + stage + ".");
+        }
+        return executor;
+    }
+
+    /**
+     * @param stage Pipeline stage.
+     * @return Number of workers of the stage. CPU bound stages default to the number of available processors.
+     */
+    public int getThreadCount(Stage stage) {
+        switch (stage) {
+            case FETCH:
+                return fetchThreads;
+            case SAVE:
+                return saveThreads;
+            case CONVERT:
+                return orProcessorCount(convertThreads);
+            default:
+                return orProcessorCount(pseudonymiseThreads);
+        }
+    }
+
+    /**
+     * @return Capacity of the queues between the stages.
+     */
+    public int getStageQueueCapacity() {
+        return stageQueueCapacity;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        executors.values().forEach(BoundedExecutor::shutdown);
+        executors.clear();
+    }
+
+    private int orProcessorCount(int threads) {
+        if (threads > 0) {
+            return threads;
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public void setFetchThreads(int fetchThreads) {
+        this.fetchThreads = fetchThreads;
+    }
+
+    public void setConvertThreads(int convertThreads) {
+        this.convertThreads = convertThreads;
+    }
+
+    public void setStageQueueCapacity(int stageQueueCapacity) {
+        this.stageQueueCapacity = stageQueueCapacity;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+}
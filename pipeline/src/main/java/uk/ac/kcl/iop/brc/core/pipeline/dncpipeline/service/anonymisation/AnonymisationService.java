@@ -57,7 +57,14 @@ public class AnonymisationService {
     private AddressPseudonymiser addressPseudonymiser;
 
     public String pseudonymisePersonHTML(Patient patient, String text) {
-        Document document = Jsoup.parse(text);
+        return pseudonymisePersonHTML(patient, Jsoup.parse(text));
+    }
+
+    /**
+     * Pseudonymises the text nodes of an already parsed document in place.
+     * @return The pseudonymised document as HTML.
+     */
+    public String pseudonymisePersonHTML(Patient patient, Document document) {
         traverseAndAnonymise(document, patient);
         return document.toString();
     }
@@ -0,0 +1,337 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service.anonymisation;
+
+import uk.ac.kcl.iop.brc.core.pipeline.common.utils.MultiLiteralMatcher;
+import uk.ac.kcl.iop.brc.core.pipeline.common.utils.MultiPatternFuzzyMatcher;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.Patient;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Pseudonymisation rules of one patient, compiled once and applied to every document of that patient.
+ * Rules that do not depend on the document are kept as precompiled patterns. Rules produced from
+ * approximate matches on the document are completed per document from the recorded deferred matches.
+ * Consecutive rules that only match a literal, such as {@code (?i)\b\Q...\E\b}, are applied together
+ * in a single pass with a {@link MultiLiteralMatcher}. Approximate searches of all identifiers of the patient
+ * are done together with a {@link MultiPatternFuzzyMatcher}.
+ */
+public class CompiledRulePlan {
+
+    private static final String CASE_INSENSITIVE = "(?i)";
+
+    private static final String WORD_BOUNDARY = "\\b";
+
+    private static final String QUOTE_BEGIN = "\\Q";
+
+    private static final String QUOTE_END = "\\E";
+
+    private static final Pattern PLAIN_LITERAL = Pattern.compile("[\\p{Alnum} /:,-]+");
+
+    private final Patient patient;
+
+    private final List<RuleGroup> ruleGroups = new ArrayList<>();
+
+    private final List<DeferredStringTools.DeferredMatch> deferredMatches;
+
+    private final Map<String, Pattern> documentPatterns = new ConcurrentHashMap<>();
+
+    /**
+     * Indexes of the {@link DeferredStringTools.ApproximateMatch}es in {@link #deferredMatches},
+     * in the order of the searches of {@link #approximateMatcher}.
+     */
+    private final List<Integer> approximateMatchIndexes = new ArrayList<>();
+
+    private final MultiPatternFuzzyMatcher approximateMatcher;
+
+    /**
+     * @param patient The patient whose rules are compiled.
+     * @param pseudonymisationRules Rules from the template filled with {@link DeferredStringTools}.
+     * @param deferredMatches Deferred matches referenced by markers in {@code pseudonymisationRules}.
+     */
+    public CompiledRulePlan(Patient patient, List<PseudonymisationRule> pseudonymisationRules,
+                            List<DeferredStringTools.DeferredMatch> deferredMatches) {
+        this.patient = patient;
+        this.deferredMatches = deferredMatches;
+        approximateMatcher = createApproximateMatcher();
+        List<CompiledRule> literalRules = new ArrayList<>();
+        for (PseudonymisationRule rule : pseudonymisationRules) {
+            if (rule == null) {
+                continue;
+            }
+            CompiledRule compiledRule = new CompiledRule(rule);
+            if (compiledRule.isLiteral()) {
+                literalRules.add(compiledRule);
+                continue;
+            }
+            addLiteralGroup(literalRules);
+            literalRules = new ArrayList<>();
+            ruleGroups.add(new RegexRuleGroup(compiledRule));
+        }
+        addLiteralGroup(literalRules);
+    }
+
+    /**
+     * Applies the rules in the order they appear in the template.
+     * @param text Text to be pseudonymised.
+     * @return Pseudonymised text.
+     */
+    public String apply(String text) {
+        List<Collection<String>> matches = evaluateDeferredMatches(text);
+        for (RuleGroup ruleGroup : ruleGroups) {
+            text = ruleGroup.apply(text, matches);
+        }
+        return text;
+    }
+
+    /**
+     * @param patient A patient object.
+     * @return true if this plan was compiled from the given patient object.
+     */
+    public boolean isCompiledFor(Patient patient) {
+        return this.patient == patient;
+    }
+
+    /**
+     * @param regexp Regular expression of a rule.
+     * @param placeHolder Place holder of the rule.
+     * @return The literal that {@code regexp} is equivalent to, or null if the rule needs a regular expression.
+     */
+    static MultiLiteralMatcher.Literal toLiteral(String regexp, String placeHolder) {
+        if (! regexp.startsWith(CASE_INSENSITIVE) || placeHolder.contains("$") || placeHolder.contains("\\")) {
+            return null;
+        }
+        String body = regexp.substring(CASE_INSENSITIVE.length());
+        boolean wholeWord = false;
+        if (body.length() >= 2 * WORD_BOUNDARY.length() && body.startsWith(WORD_BOUNDARY) && body.endsWith(WORD_BOUNDARY)) {
+            wholeWord = true;
+            body = body.substring(WORD_BOUNDARY.length(), body.length() - WORD_BOUNDARY.length());
+        }
+        String literal;
+        if (body.length() >= QUOTE_BEGIN.length() + QUOTE_END.length() && body.startsWith(QUOTE_BEGIN) && body.endsWith(QUOTE_END)) {
+            literal = body.substring(QUOTE_BEGIN.length(), body.length() - QUOTE_END.length());
+            if (literal.contains(QUOTE_END)) {
+                return null;
+            }
+        } else if (PLAIN_LITERAL.matcher(body).matches()) {
+            literal = body;
+        } else {
+            return null;
+        }
+        if (literal.isEmpty()) {
+            return null;
+        }
+        return new MultiLiteralMatcher.Literal(literal, wholeWord, placeHolder);
+    }
+
+    private void addLiteralGroup(List<CompiledRule> literalRules) {
+        if (! literalRules.isEmpty()) {
+            ruleGroups.add(new LiteralRuleGroup(literalRules));
+        }
+    }
+
+    /**
+     * Deferred matches are all evaluated on the text given to the plan, as the template
+     * would have been filled with the text before any rule was applied.
+     */
+    private List<Collection<String>> evaluateDeferredMatches(String text) {
+        List<Collection<String>> matches = new ArrayList<>();
+        for (DeferredStringTools.DeferredMatch deferredMatch : deferredMatches) {
+            if (deferredMatch instanceof DeferredStringTools.ApproximateMatch) {
+                matches.add(null);
+                continue;
+            }
+            matches.add(deferredMatch.evaluate(text));
+        }
+        if (approximateMatchIndexes.isEmpty()) {
+            return matches;
+        }
+        List<Set<String>> approximateMatches = approximateMatcher.getApproximatelyMatchingStringLists(text);
+        for (int i = 0; i < approximateMatchIndexes.size(); i++) {
+            matches.set(approximateMatchIndexes.get(i), DeferredStringTools.unescape(approximateMatches.get(i)));
+        }
+        return matches;
+    }
+
+    private MultiPatternFuzzyMatcher createApproximateMatcher() {
+        List<MultiPatternFuzzyMatcher.Search> searches = new ArrayList<>();
+        for (int i = 0; i < deferredMatches.size(); i++) {
+            if (deferredMatches.get(i) instanceof DeferredStringTools.ApproximateMatch) {
+                DeferredStringTools.ApproximateMatch approximateMatch = (DeferredStringTools.ApproximateMatch) deferredMatches.get(i);
+                searches.add(new MultiPatternFuzzyMatcher.Search(approximateMatch.getSearch(), approximateMatch.getMaxDistance()));
+                approximateMatchIndexes.add(i);
+            }
+        }
+        return new MultiPatternFuzzyMatcher(searches);
+    }
+
+    private Pattern getDocumentPattern(String regexp) {
+        return documentPatterns.computeIfAbsent(regexp, Pattern::compile);
+    }
+
+    private interface RuleGroup {
+
+        String apply(String text, List<Collection<String>> matches);
+
+    }
+
+    private class RegexRuleGroup implements RuleGroup {
+
+        private final CompiledRule rule;
+
+        RegexRuleGroup(CompiledRule rule) {
+            this.rule = rule;
+        }
+
+        @Override
+        public String apply(String text, List<Collection<String>> matches) {
+            if (! rule.isDeferred()) {
+                return rule.getPattern().matcher(text).replaceAll(rule.getPlaceHolder());
+            }
+            for (String match : matches.get(rule.getDeferredMatchIndex())) {
+                text = getDocumentPattern(rule.getRegexpFor(match)).matcher(text).replaceAll(rule.getPlaceHolder());
+            }
+            return text;
+        }
+    }
+
+    /**
+     * Consecutive literal rules, replaced in one pass where the longest match wins.
+     * If the group has deferred rules the matcher is built per document, as its literals
+     * depend on the document.
+     */
+    private class LiteralRuleGroup implements RuleGroup {
+
+        private final List<CompiledRule> rules;
+
+        private final boolean deferred;
+
+        private final MultiLiteralMatcher staticMatcher;
+
+        LiteralRuleGroup(List<CompiledRule> rules) {
+            this.rules = rules;
+            deferred = rules.stream().anyMatch(CompiledRule::isDeferred);
+            staticMatcher = deferred ? null : new MultiLiteralMatcher(getLiterals(null, null, null));
+        }
+
+        @Override
+        public String apply(String text, List<Collection<String>> matches) {
+            if (! deferred) {
+                return staticMatcher.replaceAll(text);
+            }
+            List<CompiledRule> nonLiteralMatches = new ArrayList<>();
+            List<String> nonLiteralRegexps = new ArrayList<>();
+            List<MultiLiteralMatcher.Literal> literals = getLiterals(matches, nonLiteralRegexps, nonLiteralMatches);
+            if (! literals.isEmpty()) {
+                text = new MultiLiteralMatcher(literals).replaceAll(text);
+            }
+            for (int i = 0; i < nonLiteralRegexps.size(); i++) {
+                text = getDocumentPattern(nonLiteralRegexps.get(i)).matcher(text).replaceAll(nonLiteralMatches.get(i).getPlaceHolder());
+            }
+            return text;
+        }
+
+        /**
+         * Matches that do not turn into a literal, e.g. if they contain {@code \E}, are returned
+         * in {@code nonLiteralRegexps} to be applied as regular expressions.
+         */
+        private List<MultiLiteralMatcher.Literal> getLiterals(List<Collection<String>> matches, List<String> nonLiteralRegexps,
+                                                             List<CompiledRule> nonLiteralRules) {
+            List<MultiLiteralMatcher.Literal> literals = new ArrayList<>();
+            for (CompiledRule rule : rules) {
+                if (! rule.isDeferred()) {
+                    literals.add(rule.getLiteral());
+                    continue;
+                }
+                for (String match : matches.get(rule.getDeferredMatchIndex())) {
+                    String regexp = rule.getRegexpFor(match);
+                    MultiLiteralMatcher.Literal literal = toLiteral(regexp, rule.getPlaceHolder());
+                    if (literal != null) {
+                        literals.add(literal);
+                    } else {
+                        nonLiteralRegexps.add(regexp);
+                        nonLiteralRules.add(rule);
+                    }
+                }
+            }
+            return literals;
+        }
+    }
+
+    private static class CompiledRule {
+
+        private final String regexp;
+
+        private final String placeHolder;
+
+        private final int deferredMatchIndex;
+
+        private final Pattern pattern;
+
+        private final MultiLiteralMatcher.Literal literal;
+
+        CompiledRule(PseudonymisationRule rule) {
+            regexp = rule.getRegexp();
+            placeHolder = rule.getPlaceHolder();
+            deferredMatchIndex = DeferredStringTools.findDeferredMatchIndex(regexp);
+            literal = toLiteral(regexp, placeHolder);
+            pattern = isDeferred() || literal != null ? null : Pattern.compile(regexp);
+        }
+
+        boolean isDeferred() {
+            return deferredMatchIndex >= 0;
+        }
+
+        /**
+         * Deferred rules are literal if the marker is the whole literal, so that any match
+         * substituted in it is matched literally.
+         */
+        boolean isLiteral() {
+            if (literal == null) {
+                return false;
+            }
+            return ! isDeferred() || literal.getText().equals(DeferredStringTools.getMarker(deferredMatchIndex));
+        }
+
+        int getDeferredMatchIndex() {
+            return deferredMatchIndex;
+        }
+
+        String getRegexpFor(String match) {
+            return regexp.replace(DeferredStringTools.getMarker(deferredMatchIndex), match);
+        }
+
+        Pattern getPattern() {
+            return pattern;
+        }
+
+        MultiLiteralMatcher.Literal getLiteral() {
+            return literal;
+        }
+
+        String getPlaceHolder() {
+            return placeHolder;
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service.anonymisation;
+
+import uk.ac.kcl.iop.brc.core.pipeline.common.utils.MatchingWindow;
+import uk.ac.kcl.iop.brc.core.pipeline.common.utils.StringTools;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Stands in for {@link StringTools} while a rule template is filled once per patient.
+ * Calls that scan {@code $sourceText} are not evaluated. Instead, a marker is returned and the call
+ * is recorded, so that the rules produced from it can be completed for each document by {@link CompiledRulePlan}.
+ * All other calls are delegated to {@link StringTools}.
+ *
+ * Templates should therefore only access the source text through the StringTools methods below.
+ */
+public class DeferredStringTools {
+
+    /**
+     * Bound to $sourceText while the template is filled.
+     */
+    public static final String SOURCE_TEXT = "@@sourceText@@";
+
+    private static final String MARKER_PREFIX = "@@deferredMatch";
+
+    private static final String MARKER_SUFFIX = "@@";
+
+    private List<DeferredMatch> deferredMatches = new ArrayList<>();
+
+    public Set<String> getApproximatelyMatchingStringList(String sourceString, String search) {
+        if (! isSourceText(sourceString)) {
+            return StringTools.getApproximatelyMatchingStringList(sourceString, search);
+        }
+        return Collections.singleton(defer(new ApproximateMatch(search, StringTools.getMaxAllowedLevenshteinDistanceFor(search))));
+    }
+
+    public Set<String> getApproximatelyMatchingStringList(String sourceString, String search, int maxDistance) {
+        if (! isSourceText(sourceString)) {
+            return StringTools.getApproximatelyMatchingStringList(sourceString, search, maxDistance);
+        }
+        return Collections.singleton(defer(new ApproximateMatch(search, maxDistance)));
+    }
+
+    public List<MatchingWindow> getMatchingWindowsAboveThreshold(String text, String search, double threshold) {
+        if (! isSourceText(text)) {
+            return StringTools.getMatchingWindowsAboveThreshold(text, search, threshold);
+        }
+        String marker = defer(sourceText -> StringTools.getMatchingWindowsAboveThreshold(sourceText, search, threshold)
+                .stream()
+                .map(window -> unescape(window.getMatchingText()))
+                .collect(Collectors.toList()));
+        MatchingWindow window = new MatchingWindow();
+        window.setMatchingText(marker);
+        return Collections.singletonList(window);
+    }
+
+    public List<String> getRegexMatchesWithMinLength(String text, String regex, int minLength) {
+        if (! isSourceText(text)) {
+            return StringTools.getRegexMatchesWithMinLength(text, regex, minLength);
+        }
+        return Collections.singletonList(defer(sourceText -> StringTools.getRegexMatchesWithMinLength(sourceText, regex, minLength)));
+    }
+
+    public int getLevenshteinDistance(String str1, String str2) {
+        return StringTools.getLevenshteinDistance(str1, str2);
+    }
+
+    public String getCompletingString(String string, int begin, int end) {
+        return StringTools.getCompletingString(string, begin, end);
+    }
+
+    public Set<String> splitIntoWordsWithLengthHigherThan(String string, int minLength) {
+        return StringTools.splitIntoWordsWithLengthHigherThan(string, minLength);
+    }
+
+    public Set<String> splitIntoWordsWithLengthHigherThan(String string, int minLength, String... ignoreWords) {
+        return StringTools.splitIntoWordsWithLengthHigherThan(string, minLength, ignoreWords);
+    }
+
+    public boolean noContentInHtml(String text) {
+        return StringTools.noContentInHtml(text);
+    }
+
+    public List<DeferredMatch> getDeferredMatches() {
+        return deferredMatches;
+    }
+
+    /**
+     * @param string A string produced while filling the template, e.g. a rule's regular expression.
+     * @return The index of the deferred match whose marker is in {@code string}, or -1 if there is none.
+     */
+    public static int findDeferredMatchIndex(String string) {
+        int begin = string.indexOf(MARKER_PREFIX);
+        if (begin < 0) {
+            return -1;
+        }
+        begin += MARKER_PREFIX.length();
+        int end = string.indexOf(MARKER_SUFFIX, begin);
+        if (end < 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(string.substring(begin, end));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    public static String getMarker(int index) {
+        return MARKER_PREFIX + index + MARKER_SUFFIX;
+    }
+
+    private String defer(DeferredMatch deferredMatch) {
+        deferredMatches.add(deferredMatch);
+        return getMarker(deferredMatches.size() - 1);
+    }
+
+    private boolean isSourceText(String text) {
+        return SOURCE_TEXT.equals(text);
+    }
+
+    /**
+     * StringTools escapes double quotes so that matches can be embedded in jSON rules.
+     * Deferred matches are substituted after the rules are parsed, so they are unescaped here.
+     */
+    private static String unescape(String match) {
+        return match.replace("\\\"", "\"");
+    }
+
+    static List<String> unescape(Collection<String> matches) {
+        return matches.stream().map(DeferredStringTools::unescape).collect(Collectors.toList());
+    }
+
+    /**
+     * A StringTools call on the source text whose evaluation is deferred until a document is pseudonymised.
+     */
+    public interface DeferredMatch {
+
+        /**
+         * @param sourceText The text of the document being pseudonymised.
+         * @return The matches the original StringTools call would return for {@code sourceText}.
+         */
+        Collection<String> evaluate(String sourceText);
+
+    }
+
+    /**
+     * A deferred {@link StringTools#getApproximatelyMatchingStringList(String, String, int)} call.
+     * {@link CompiledRulePlan} evaluates these together in one pass over the document.
+     */
+    public static class ApproximateMatch implements DeferredMatch {
+
+        private final String search;
+
+        private final int maxDistance;
+
+        public ApproximateMatch(String search, int maxDistance) {
+            this.search = search;
+            this.maxDistance = maxDistance;
+        }
+
+        @Override
+        public Collection<String> evaluate(String sourceText) {
+            return unescape(StringTools.getApproximatelyMatchingStringList(sourceText, search, maxDistance));
+        }
+
+        public String getSearch() {
+            return search;
+        }
+
+        public int getMaxDistance() {
+            return maxDistance;
+        }
+    }
+
+}
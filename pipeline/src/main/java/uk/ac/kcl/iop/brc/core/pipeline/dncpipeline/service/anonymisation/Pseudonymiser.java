@@ -21,19 +21,36 @@ import uk.ac.kcl.iop.brc.core.pipeline.common.helper.JsonHelper;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.Patient;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 
 public abstract class Pseudonymiser {
 
     private static Logger logger = Logger.getLogger(Pseudonymiser.class);
 
+    private static final int MAX_CACHED_RULE_PLANS = 1000;
+
     @Autowired
     private TemplateFiller templateFiller;
 
+    private final Map<Long, CompiledRulePlan> rulePlans = Collections.synchronizedMap(
+            new LinkedHashMap<Long, CompiledRulePlan>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, CompiledRulePlan> eldest) {
+                    return size() > MAX_CACHED_RULE_PLANS;
+                }
+            });
+
+    /**
+     * Rule plans being compiled, so that documents of the same patient pseudonymised at the same time
+     * on different workers wait for one compilation instead of each compiling the plan.
+     */
+    private final ConcurrentMap<Long, FutureTask<CompiledRulePlan>> compilations = new ConcurrentHashMap<>();
+
     public abstract String getJsonRuleFilePath();
 
     public abstract boolean canIgnore(Patient patient);
@@ -43,9 +60,79 @@ public abstract class Pseudonymiser {
             return text;
         }
 
+        return getRulePlan(patient).apply(text);
+    }
+
+    /**
+     * Returns the compiled rules of the patient, compiling them on first use.
+     * Plans are cached per patient id, and are only reused for the same patient object.
+     * A plan is compiled once even if several workers ask for it at the same time.
+     *
+     * @param patient
+     * @return Compiled pseudonymisation rules of the patient.
+     */
+    public CompiledRulePlan getRulePlan(Patient patient) {
+        CompiledRulePlan plan = getCachedRulePlan(patient);
+        if (plan != null) {
+            return plan;
+        }
+        FutureTask<CompiledRulePlan> compilation = new FutureTask<>(() -> compileAndCacheRulePlan(patient));
+        FutureTask<CompiledRulePlan> running = compilations.putIfAbsent(patient.getId(), compilation);
+        if (running == null) {
+            running = compilation;
+            try {
+                compilation.run();
+            } finally {
+                compilations.remove(patient.getId(), compilation);
+            }
+        }
+        plan = waitForRulePlan(running, patient);
+        if (plan.isCompiledFor(patient)) {
+            return plan;
+        }
+        return compileAndCacheRulePlan(patient);
+    }
+
+    private CompiledRulePlan getCachedRulePlan(Patient patient) {
+        CompiledRulePlan plan = rulePlans.get(patient.getId());
+        if (plan != null && plan.isCompiledFor(patient)) {
+            return plan;
+        }
+        return null;
+    }
+
+    private CompiledRulePlan compileAndCacheRulePlan(Patient patient) {
+        CompiledRulePlan plan = getCachedRulePlan(patient);
+        if (plan == null) {
+            plan = compileRulePlan(patient);
+            rulePlans.put(patient.getId(), plan);
+        }
+        return plan;
+    }
+
+    private CompiledRulePlan waitForRulePlan(FutureTask<CompiledRulePlan> compilation, Patient patient) {
+        try {
+            return compilation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return compileRulePlan(patient);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not compile rules of patient " + patient.getId(), e.getCause());
+        }
+    }
+
+    private CompiledRulePlan compileRulePlan(Patient patient) {
+        DeferredStringTools deferredStringTools = new DeferredStringTools();
         Map<String, Object> map = new HashMap<>();
         map.put("patient", patient);
-        map.put("sourceText", text);
+        map.put("sourceText", DeferredStringTools.SOURCE_TEXT);
+        map.put("StringTools", deferredStringTools);
         String jsonRules = templateFiller.getFilledTemplate(getJsonRuleFilePath(), map);
 
         JsonHelper<PseudonymisationRule> jsonHelper = new JsonHelper<>(PseudonymisationRule[].class);
@@ -58,14 +145,11 @@ public abstract class Pseudonymiser {
             ex.printStackTrace();
         }
 
-        for (PseudonymisationRule rule : pseudonymisationRules) {
-            if (rule == null) {
-                continue;
-            }
-            text = text.replaceAll(rule.getRegexp(), rule.getPlaceHolder());
-        }
+        return new CompiledRulePlan(patient, pseudonymisationRules, deferredStringTools.getDeferredMatches());
+    }
 
-        return text;
+    public void setTemplateFiller(TemplateFiller templateFiller) {
+        this.templateFiller = templateFiller;
     }
 
 }
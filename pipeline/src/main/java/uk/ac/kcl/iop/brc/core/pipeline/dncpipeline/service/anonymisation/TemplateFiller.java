@@ -55,9 +55,9 @@ public class TemplateFiller {
     }
 
     private void addCommonToolsToMap(Map<String, Object> objectMap) {
-        objectMap.put("StringTools", StringTools.class);
-        objectMap.put("TimeUtil", TimeUtil.class);
-        objectMap.put("StringUtils", StringUtils.class);
+        objectMap.putIfAbsent("StringTools", StringTools.class);
+        objectMap.putIfAbsent("TimeUtil", TimeUtil.class);
+        objectMap.putIfAbsent("StringUtils", StringUtils.class);
     }
 
     public void setVelocityEngine(VelocityEngine velocityEngine) {
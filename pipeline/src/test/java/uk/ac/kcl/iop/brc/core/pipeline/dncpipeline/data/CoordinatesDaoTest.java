@@ -7,13 +7,16 @@ package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data;
 
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import uk.ac.kcl.iop.brc.core.pipeline.common.data.BaseDao;
 import uk.ac.kcl.iop.brc.core.pipeline.common.testutils.IntegrationTest;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
 
 import java.util.List;
 
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 
 public class CoordinatesDaoTest extends IntegrationTest {
@@ -32,5 +35,46 @@ public class CoordinatesDaoTest extends IntegrationTest {
 
         dao.executeSQLQueryForSource("drop table testCoordinateView");
     }
-    
+
+    @Test
+    public void shouldStreamCoordinatesFromViewInPages() {
+        dao.executeSQLQueryForSource("create table testCoordinateView(patientId int, sourceTable varchar(100), sourceColumn varchar(100), idInSourceTable int, pkColumnName varchar(100), type varchar(100), updateTime varchar(100))");
+        for (int i = 1; i <= 5; i++) {
+            dao.executeSQLQueryForSource("insert into testCoordinateView values(" + i + ", 'patientDocuments', 'binaryData', " + (10 + i) + ", 'id', 'binary', '2015-10-10')");
+        }
+        dao.setCoordinateFetchSize(2);
+        int openSessions = BaseDao.getOpenSessionCount();
+
+        try (CoordinateCursor cursor = dao.openCoordinateCursor()) {
+            assertThat(BaseDao.getOpenSessionCount(), equalTo(openSessions + 1));
+            List<DNCWorkCoordinate> firstPage = cursor.nextPage(3);
+            List<DNCWorkCoordinate> secondPage = cursor.nextPage(3);
+
+            assertThat(firstPage.size(), equalTo(3));
+            assertThat(firstPage.get(0).getSourceTable(), equalTo("patientDocuments"));
+            assertThat(secondPage.size(), equalTo(2));
+            assertThat(cursor.nextPage(3).isEmpty(), equalTo(true));
+            assertThat(cursor.getPosition(), equalTo(5L));
+        }
+        assertThat(BaseDao.getOpenSessionCount(), equalTo(openSessions));
+
+        dao.executeSQLQueryForSource("drop table testCoordinateView");
+    }
+
+    @Test
+    public void shouldRejectCoordinateWithoutPatientId() {
+        dao.executeSQLQueryForSource("create table testCoordinateView(patientId int, sourceTable varchar(100), sourceColumn varchar(100), idInSourceTable int, pkColumnName varchar(100), type varchar(100), updateTime varchar(100))");
+        dao.executeSQLQueryForSource("insert into testCoordinateView values(null, 'patientDocuments', 'binaryData', 13, 'id', 'binary', '2015-10-10')");
+        int openSessions = BaseDao.getOpenSessionCount();
+
+        try (CoordinateCursor cursor = dao.openCoordinateCursor()) {
+            cursor.hasNext();
+            fail("A coordinate without patient id should not be read.");
+        } catch (IllegalStateException ex) {
+            assertThat(ex.getCause().getMessage(), containsString("patientId"));
+        } finally {
+            dao.executeSQLQueryForSource("drop table testCoordinateView");
+        }
+        assertThat(BaseDao.getOpenSessionCount(), equalTo(openSessions));
+    }
 }
@@ -16,7 +16,10 @@
 
 package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data;
 
+import uk.ac.kcl.iop.brc.core.pipeline.common.data.BaseDao;
+import uk.ac.kcl.iop.brc.core.pipeline.common.model.DocumentContent;
 import uk.ac.kcl.iop.brc.core.pipeline.common.testutils.IntegrationTest;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.ConvertedText;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
 import org.junit.After;
 import org.junit.Before;
@@ -24,9 +27,17 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -58,6 +69,106 @@ public class DNCWorkUnitDaoTest extends IntegrationTest {
         assertThat(textFromCoordinate, equalTo("text from coordinate"));
     }
 
+    @Test
+    public void shouldGetBinaryContentFromCoordinate() throws IOException {
+        DNCWorkCoordinate coordinate = new DNCWorkCoordinate().idInSourceTable(1L).pkColumnName("ID")
+                .sourceTable("TestTable1").sourceColumn("BinData").type("binary");
+        dao.executeSQLQueryForSource("insert into TestTable1 values(1, X'0102FF')");
+
+        try (DocumentContent content = dao.getContentFromCoordinate(coordinate)) {
+            assertThat(content.getLength(), equalTo(3L));
+            assertThat(content.getHead(3), equalTo(new byte[] {1, 2, (byte) 0xFF}));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectCoordinateWithInvalidTableName() {
+        DNCWorkCoordinate coordinate = new DNCWorkCoordinate().idInSourceTable(1L).pkColumnName("ID")
+                .sourceTable("TestTable1; drop table TestTable1").sourceColumn("BinData");
+
+        dao.getTextFromCoordinate(coordinate);
+    }
+
+    @Test
+    public void shouldRunJdbcWorkOnConnectionsOfThePooledDataSources() {
+        dao.executeSQLQueryForSource("insert into TestTable1 values(1, X'01')");
+        int openSessions = BaseDao.getOpenSessionCount();
+
+        Integer count = dao.inSourceConnection(connection -> {
+            assertThat(BaseDao.getOpenSessionCount(), equalTo(openSessions + 1));
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("select count(*) from TestTable1")) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        });
+        Boolean targetOpen = dao.inTargetConnection(connection -> ! connection.isClosed());
+
+        assertThat(count, equalTo(1));
+        assertTrue(targetOpen);
+        assertThat(BaseDao.getOpenSessionCount(), equalTo(openSessions));
+        assertThat(dao.getPoolUsage(), not(containsString("unknown")));
+    }
+
+    @Test
+    public void shouldGetTextsFromCoordinatesInBulk() {
+        dao.executeSQLQueryForSource("alter table TestTable1 add textColumn varchar(100)");
+        dao.executeSQLQueryForSource("insert into TestTable1 values(1, null, 'first text')");
+        dao.executeSQLQueryForSource("insert into TestTable1 values(2, null, 'second text')");
+        DNCWorkCoordinate first = new DNCWorkCoordinate().idInSourceTable(1L).pkColumnName("ID")
+                .sourceTable("TestTable1").sourceColumn("textColumn");
+        DNCWorkCoordinate second = new DNCWorkCoordinate().idInSourceTable(2L).pkColumnName("ID")
+                .sourceTable("TestTable1").sourceColumn("textColumn");
+        DNCWorkCoordinate missing = new DNCWorkCoordinate().idInSourceTable(3L).pkColumnName("ID")
+                .sourceTable("TestTable1").sourceColumn("textColumn");
+
+        Map<DNCWorkCoordinate, Object> contents = dao.getObjectsFromCoordinates(Arrays.asList(first, second, missing));
+
+        assertThat(contents.size(), equalTo(2));
+        assertThat(contents.get(first), equalTo("first text"));
+        assertThat(contents.get(second), equalTo("second text"));
+    }
+
+    @Test
+    public void shouldSpillBinaryContentsFetchedInBulkOnceMemoryBudgetIsUsed() {
+        dao.executeSQLQueryForSource("insert into TestTable1 values(1, X'010203')");
+        dao.executeSQLQueryForSource("insert into TestTable1 values(2, X'040506')");
+        DNCWorkCoordinate first = new DNCWorkCoordinate().idInSourceTable(1L).pkColumnName("ID")
+                .sourceTable("TestTable1").sourceColumn("BinData").type("binary");
+        DNCWorkCoordinate second = new DNCWorkCoordinate().idInSourceTable(2L).pkColumnName("ID")
+                .sourceTable("TestTable1").sourceColumn("BinData").type("binary");
+        dao.setBulkFetchMemoryBytes(3);
+
+        Map<DNCWorkCoordinate, Object> contents = dao.getObjectsFromCoordinates(Arrays.asList(first, second));
+        dao.setBulkFetchMemoryBytes(67108864);
+
+        long inMemory = contents.values().stream().filter(content -> ((DocumentContent) content).isInMemory()).count();
+        assertThat(contents.size(), equalTo(2));
+        assertThat(inMemory, equalTo(1L));
+        contents.values().forEach(content -> ((DocumentContent) content).close());
+    }
+
+    @Test
+    public void shouldKeepContentOfSharedRowUntilAllItsCoordinatesCloseIt() throws IOException {
+        dao.executeSQLQueryForSource("insert into TestTable1 values(1, X'010203')");
+        DNCWorkCoordinate first = new DNCWorkCoordinate().idInSourceTable(1L).pkColumnName("ID")
+                .sourceTable("TestTable1").sourceColumn("BinData").type("binary");
+        DNCWorkCoordinate second = new DNCWorkCoordinate().idInSourceTable(1L).pkColumnName("ID")
+                .sourceTable("TestTable1").sourceColumn("BinData").type("binary");
+        dao.setBulkFetchMemoryBytes(0);
+
+        Map<DNCWorkCoordinate, Object> contents = dao.getObjectsFromCoordinates(Arrays.asList(first, second));
+        dao.setBulkFetchMemoryBytes(67108864);
+
+        DocumentContent firstContent = (DocumentContent) contents.get(first);
+        DocumentContent secondContent = (DocumentContent) contents.get(second);
+        assertThat(firstContent.isInMemory(), equalTo(false));
+        firstContent.close();
+        assertThat(secondContent.getHead(3), equalTo(new byte[] {1, 2, 3}));
+        secondContent.close();
+        assertThat(secondContent.getFile().exists(), equalTo(false));
+    }
+
     @Test
     public void shouldSaveAnonymisedTextToTargetDB() {
         dao.executeSQLQueryForTarget("create table SaveTable(src_table varchar(100), src_col varchar(100), doc_ID int, processedText varchar(100), updatetime varchar(100))");
@@ -72,6 +183,25 @@ public class DNCWorkUnitDaoTest extends IntegrationTest {
         assertThat(text, equalTo("anonymised text"));
     }
 
+    @Test
+    public void shouldSaveAnonymisedTextsToTargetDBInBatch() {
+        dao.executeSQLQueryForTarget("drop table SaveTable if exists");
+        dao.executeSQLQueryForTarget("create table SaveTable(src_table varchar(100), src_col varchar(100), doc_ID int, processedText varchar(100), updatetime varchar(100))");
+        List<ConvertedText> texts = new ArrayList<>();
+        for (long id = 1; id <= 3; id++) {
+            DNCWorkCoordinate coordinate = new DNCWorkCoordinate().sourceTable("SaveTable")
+                    .sourceColumn("someBinaryColumn").idInSourceTable(id);
+            texts.add(new ConvertedText(coordinate, "anonymised text " + id));
+        }
+
+        dao.saveConvertedTexts(texts);
+        List list = dao.getSQLResultFromTarget("select processedText from SaveTable order by doc_ID");
+
+        assertThat(list.size(), equalTo(3));
+        assertThat(list.get(2), equalTo("anonymised text 3"));
+        dao.executeSQLQueryForTarget("drop table SaveTable");
+    }
+
     @Test
     @Ignore
     public void testSqlServerText() {
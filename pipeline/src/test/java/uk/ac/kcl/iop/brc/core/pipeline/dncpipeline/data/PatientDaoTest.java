@@ -18,6 +18,7 @@ package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data;
 
 import uk.ac.kcl.iop.brc.core.pipeline.common.testutils.IntegrationTest;
 import uk.ac.kcl.iop.brc.core.pipeline.common.utils.TimeUtil;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.exception.PatientNotFound;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.Patient;
 import org.junit.After;
 import org.junit.Before;
@@ -26,11 +27,15 @@ import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.PatientCarer;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class PatientDaoTest extends IntegrationTest {
 
@@ -95,6 +100,57 @@ public class PatientDaoTest extends IntegrationTest {
         assertThat(carers.get(1).getLastName(), equalTo("Kartoglu"));
     }
 
+    @Test
+    public void shouldFetchPatientsInBulk() {
+        patientDao.executeSQLQueryForSource("insert into tblPatient values(11, '123123', '1990-05-09')");
+        patientDao.executeSQLQueryForSource("insert into tblPatient values(12, '444444', '1980-01-02')");
+        patientDao.executeSQLQueryForSource("insert into dateOfBirths values(11, '1990-05-09')");
+        patientDao.executeSQLQueryForSource("insert into nhsNumbers values(12, '444444')");
+        patientDao.executeSQLQueryForSource("insert into tblPatientNames values('michael', 'gregorski', 11)");
+        patientDao.executeSQLQueryForSource("insert into tblPatientNames values('richard', 'jackson', 12)");
+        patientDao.executeSQLQueryForSource("insert into tblPatientAddresses values('address1', 'cb4 2za', 11)");
+        patientDao.executeSQLQueryForSource("insert into tblPatientPhoneNumbers values('0778', 12)");
+        patientDao.executeSQLQueryForSource("insert into tblPatientCarers values('Ismail', 'Kartoglu', 12)");
+
+        Map<Long, Patient> patients = patientDao.getPatients(Arrays.asList(11L, 12L, 13L));
+
+        assertThat(patients.size(), equalTo(2));
+        Patient first = patients.get(11L);
+        Patient second = patients.get(12L);
+        assertThat(first.getForeNames().contains("michael"), equalTo(true));
+        assertThat(first.getAddresses().get(0).getPostCode(), equalTo("cb4 2za"));
+        assertThat(TimeUtil.getFormattedDate(first.getDateOfBirths().get(0), "dd/MM/yyyy"), equalTo("09/05/1990"));
+        assertThat(first.getPhoneNumbers().isEmpty(), equalTo(true));
+        assertThat(second.getSurnames().contains("jackson"), equalTo(true));
+        assertThat(second.getNhsNumbers().contains("444444"), equalTo(true));
+        assertThat(second.getPhoneNumbers().contains("0778"), equalTo(true));
+        assertThat(second.getCarers().get(0).getLastName(), equalTo("Kartoglu"));
+    }
+
+    @Test
+    public void shouldCachePatientsFetchedInBulk() {
+        patientDao.executeSQLQueryForSource("insert into tblPatient values(21, '123123', '1990-05-09')");
+        patientDao.executeSQLQueryForSource("insert into tblPatientNames values('michael', 'gregorski', 21)");
+
+        Patient patient = patientDao.getPatients(Arrays.asList(21L)).get(21L);
+
+        assertThat(patientDao.getPatient(21L), sameInstance(patient));
+    }
+
+    @Test
+    public void shouldNotCacheUnknownPatient() {
+        try {
+            patientDao.getPatient(31L);
+            fail("An unknown patient should not be returned.");
+        } catch (PatientNotFound e) {
+            patientDao.executeSQLQueryForSource("insert into tblPatient values(31, '123123', '1990-05-09')");
+        }
+
+        Patient patient = patientDao.getPatient(31L);
+
+        assertThat(patient.getId(), equalTo(31L));
+    }
+
     @Test
     public void shouldNotTerminateWhenCarerTableIsMissing() {
         patientDao.executeSQLQueryForSource("drop table tblPatientCarers");
@@ -136,4 +136,15 @@ public class PatientTest {
         assertThat(separatedSurnames.contains("The"), equalTo(false));
     }
 
+    @Test
+    public void shouldWeighMoreWithMoreIdentifiers() {
+        Patient patient = new Patient();
+        long emptySize = patient.getApproximateSize();
+
+        patient.addForeName("Ismail");
+        patient.addCarer(new PatientCarer("Richard", "Jackson"));
+
+        assertTrue(patient.getApproximateSize() > emptySize);
+    }
+
 }
@@ -0,0 +1,71 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class BoundedExecutorTest {
+
+    @Test
+    public void shouldBlockSubmitterWhenQueueIsFull() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor("test", 1, 1, false);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> await(release));
+        executor.execute(() -> await(release));
+
+        AtomicBoolean submitted = new AtomicBoolean(false);
+        Thread submitter = new Thread(() -> {
+            executor.execute(() -> {});
+            submitted.set(true);
+        });
+        submitter.start();
+        submitter.join(200);
+        assertThat(submitted.get(), equalTo(false));
+
+        release.countDown();
+        submitter.join(5000);
+        assertThat(submitted.get(), equalTo(true));
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldFallBackToPlatformThreadsWithoutVirtualThreadSupport() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor("test", 2, 0, true);
+        CountDownLatch done = new CountDownLatch(1);
+
+        executor.execute(done::countDown);
+
+        assertThat(done.await(5, TimeUnit.SECONDS), equalTo(true));
+        executor.shutdown();
+    }
+
+    private void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.DNCWorkUnitDao;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ConvertedTextWriterTest {
+
+    @InjectMocks
+    private ConvertedTextWriter writer;
+
+    @Mock
+    private DNCWorkUnitDao dncWorkUnitDao;
+
+    private List<DNCWorkCoordinate> failedCoordinates = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        writer.setBatchSize(2);
+        writer.setFlushIntervalMillis(0);
+    }
+
+    @After
+    public void tearDown() {
+        writer.shutdown();
+    }
+
+    @Test
+    public void shouldSaveTextsInBatches() {
+        write(1L);
+        verify(dncWorkUnitDao, never()).saveConvertedTexts(anyList());
+
+        write(2L);
+        verify(dncWorkUnitDao, times(1)).saveConvertedTexts(anyList());
+
+        write(3L);
+        writer.flush();
+        verify(dncWorkUnitDao, times(2)).saveConvertedTexts(anyList());
+        verify(dncWorkUnitDao, never()).saveConvertedText(any(DNCWorkCoordinate.class), anyString());
+    }
+
+    @Test
+    public void shouldSaveOneByOneWhenBatchFails() {
+        doThrow(new RuntimeException("Batch failed")).when(dncWorkUnitDao).saveConvertedTexts(anyList());
+        DNCWorkCoordinate failing = new DNCWorkCoordinate().idInSourceTable(2L);
+        doThrow(new RuntimeException("Row failed")).when(dncWorkUnitDao).saveConvertedText(failing, "text");
+        write(1L);
+
+        writer.write(failing, "text", ex -> failedCoordinates.add(failing));
+
+        verify(dncWorkUnitDao, times(2)).saveConvertedText(any(DNCWorkCoordinate.class), anyString());
+        assertThat(failedCoordinates.size(), equalTo(1));
+        assertThat(failedCoordinates.get(0), equalTo(failing));
+    }
+
+    @Test
+    public void shouldWaitForBatchesSavedByOtherThreadsWhenFlushing() throws InterruptedException {
+        CountDownLatch saving = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            saving.countDown();
+            release.await();
+            return null;
+        }).when(dncWorkUnitDao).saveConvertedTexts(anyList());
+        writer.setBatchSize(1);
+        Thread writing = new Thread(() -> write(1L));
+        writing.start();
+        saving.await();
+
+        CountDownLatch flushed = new CountDownLatch(1);
+        Thread flushing = new Thread(() -> {
+            writer.flush();
+            flushed.countDown();
+        });
+        flushing.start();
+
+        assertFalse(flushed.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(flushed.await(5, TimeUnit.SECONDS));
+        writing.join();
+    }
+
+    @Test
+    public void shouldNotSaveEmptyBatch() {
+        writer.flush();
+
+        verifyZeroInteractions(dncWorkUnitDao);
+    }
+
+    private void write(long id) {
+        DNCWorkCoordinate coordinate = new DNCWorkCoordinate().idInSourceTable(id);
+        writer.write(coordinate, "text", ex -> failedCoordinates.add(coordinate));
+    }
+
+}
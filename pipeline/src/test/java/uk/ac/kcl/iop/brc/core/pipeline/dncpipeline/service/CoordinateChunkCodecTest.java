@@ -0,0 +1,68 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import com.google.gson.Gson;
+import org.junit.Test;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class CoordinateChunkCodecTest {
+
+    private CoordinateChunkCodec codec = new CoordinateChunkCodec();
+
+    @Test
+    public void shouldDecodeEncodedCoordinates() throws IOException {
+        DNCWorkCoordinate coordinate = new DNCWorkCoordinate().patientId(12).sourceTable("tblBinaryDocs")
+                .sourceColumn("BinaryDoc").pkColumnName("CN_Doc_ID").idInSourceTable(345L).type("text");
+        coordinate.setUpdateTime("2015-01-01");
+        coordinate.setMarkedAsOCR(true);
+        List<DNCWorkCoordinate> coordinates = new ArrayList<>();
+        coordinates.add(coordinate);
+        coordinates.add(new DNCWorkCoordinate().patientId(13));
+
+        List<DNCWorkCoordinate> decoded = codec.decode(new ByteArrayInputStream(codec.encode(coordinates)));
+
+        assertThat(decoded.size(), equalTo(2));
+        assertThat(decoded.get(0).toJson(), equalTo(coordinate.toJson()));
+        assertThat(decoded.get(1).getPatientId(), equalTo(13L));
+        assertThat(decoded.get(1).getSourceTable(), nullValue());
+    }
+
+    @Test
+    public void shouldBeSmallerThanJsonForLargeChunks() throws IOException {
+        List<DNCWorkCoordinate> coordinates = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            coordinates.add(new DNCWorkCoordinate().patientId(i / 10).sourceTable("tblBinaryDocs")
+                    .sourceColumn("BinaryDoc").pkColumnName("CN_Doc_ID").idInSourceTable((long) i));
+        }
+
+        byte[] encoded = codec.encode(coordinates);
+
+        assertTrue(encoded.length * 4 < new Gson().toJson(coordinates).length());
+    }
+
+}
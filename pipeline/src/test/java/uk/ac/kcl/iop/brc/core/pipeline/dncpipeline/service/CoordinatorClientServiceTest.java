@@ -0,0 +1,47 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class CoordinatorClientServiceTest {
+
+    @Test
+    public void shouldSizeChunkToTakeTargetDuration() {
+        int chunkSize = CoordinatorClientService.nextChunkSize(0, 200, TimeUnit.SECONDS.toNanos(10), 60);
+
+        assertThat(chunkSize, equalTo(1200));
+    }
+
+    @Test
+    public void shouldSmoothChunkSizeWithPreviousOne() {
+        int chunkSize = CoordinatorClientService.nextChunkSize(1200, 200, TimeUnit.SECONDS.toNanos(20), 60);
+
+        assertThat(chunkSize, equalTo(900));
+    }
+
+    @Test
+    public void shouldKeepChunkSizeWhenNotAdapting() {
+        assertThat(CoordinatorClientService.nextChunkSize(0, 200, TimeUnit.SECONDS.toNanos(10), 0), equalTo(0));
+    }
+
+}
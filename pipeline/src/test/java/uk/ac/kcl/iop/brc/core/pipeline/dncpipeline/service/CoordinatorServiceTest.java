@@ -1,108 +1,162 @@
 package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
 
-import org.apache.commons.collections.CollectionUtils;
+import com.google.gson.Gson;
 import org.junit.Test;
+import spark.Request;
+import spark.Response;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.CoordinateCursor;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class CoordinatorServiceTest {
 
     @Test
-    public void shouldGetChunkOfList() {
+    public void shouldServeEachChunkOnceToConcurrentClients() throws InterruptedException {
         CoordinatorService service = new CoordinatorService();
+        CoordinateCursor cursor = mock(CoordinateCursor.class);
+        List<DNCWorkCoordinate> chunk = Arrays.asList(new DNCWorkCoordinate(), new DNCWorkCoordinate());
+        when(cursor.nextPage(anyInt())).thenReturn(chunk, chunk, chunk, chunk, chunk, new ArrayList<>());
+        service.startReadingChunks(cursor);
+
+        AtomicInteger servedCoordinates = new AtomicInteger();
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread client = new Thread(() -> {
+                try {
+                    List<DNCWorkCoordinate> workLoad;
+                    while (! (workLoad = service.nextChunk()).isEmpty()) {
+                        servedCoordinates.addAndGet(workLoad.size());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            clients.add(client);
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join(5000);
+        }
+
+        assertThat(servedCoordinates.get(), equalTo(10));
+        verify(cursor).close();
+    }
 
-        List<DNCWorkCoordinate> coordinateList = new ArrayList<>();
-        DNCWorkCoordinate coordinate1 = new DNCWorkCoordinate();
-        coordinate1.setPatientId(1);
-        DNCWorkCoordinate coordinate2 = new DNCWorkCoordinate();
-        coordinate2.setPatientId(12);
-        DNCWorkCoordinate coordinate3 = new DNCWorkCoordinate();
-        coordinate3.setPatientId(13);
-        DNCWorkCoordinate coordinate4 = new DNCWorkCoordinate();
-        coordinate4.setPatientId(14);
-        DNCWorkCoordinate coordinate5 = new DNCWorkCoordinate();
-        coordinate5.setPatientId(15);
-        DNCWorkCoordinate coordinate6 = new DNCWorkCoordinate();
-        coordinate6.setPatientId(16);
-
-        coordinateList.add(coordinate1);
-        coordinateList.add(coordinate2);
-        coordinateList.add(coordinate3);
-        coordinateList.add(coordinate4);
-        coordinateList.add(coordinate5);
-        coordinateList.add(coordinate6);
-
-        List<DNCWorkCoordinate> list = service.getChunkOfList(coordinateList, 1, 3);
-
-        assertThat(list.get(0).getPatientId(), equalTo(12L));
-        assertThat(list.get(1).getPatientId(), equalTo(13L));
-        assertThat(list.get(2).getPatientId(), equalTo(14L));
+    @Test
+    public void shouldHandOutChunkOfExpiredLeaseAgain() throws InterruptedException {
+        CoordinatorService service = new CoordinatorService();
+        CoordinateCursor cursor = mock(CoordinateCursor.class);
+        List<DNCWorkCoordinate> chunk = Arrays.asList(new DNCWorkCoordinate(), new DNCWorkCoordinate());
+        when(cursor.nextPage(anyInt())).thenReturn(chunk, new ArrayList<>());
+        service.startReadingChunks(cursor);
+        AtomicLong now = new AtomicLong();
+        LeaseRegistry leaseRegistry = new LeaseRegistry(1000, now::get);
+        service.setLeaseRegistry(leaseRegistry);
+
+        List<DNCWorkCoordinate> leasedChunk = service.nextChunk();
+        leaseRegistry.lease(leasedChunk, "client");
+        now.set(1000);
+        service.redispatchExpiredLeases();
+
+        assertThat(service.nextChunk(), equalTo(chunk));
+        assertThat(service.nextChunk().isEmpty(), equalTo(true));
     }
 
     @Test
-    public void shouldGetTheRestIfChunkIsTooBig() {
+    public void shouldSplitAndJoinReadyChunksToRequestedSize() throws InterruptedException {
         CoordinatorService service = new CoordinatorService();
+        CoordinateCursor cursor = mock(CoordinateCursor.class);
+        List<DNCWorkCoordinate> chunk = Arrays.asList(new DNCWorkCoordinate(), new DNCWorkCoordinate(), new DNCWorkCoordinate());
+        when(cursor.nextPage(anyInt())).thenReturn(chunk, chunk, new ArrayList<>());
+        service.startReadingChunks(cursor);
+
+        assertThat(service.nextChunk(2).size(), equalTo(2));
+        assertThat(service.nextChunk(3).size(), equalTo(3));
+        assertThat(service.nextChunk(3).size(), equalTo(1));
+        assertThat(service.nextChunk(3).isEmpty(), equalTo(true));
+    }
 
-        List<DNCWorkCoordinate> coordinateList = new ArrayList<>();
-        DNCWorkCoordinate coordinate1 = new DNCWorkCoordinate();
-        coordinate1.setPatientId(1);
-        DNCWorkCoordinate coordinate2 = new DNCWorkCoordinate();
-        coordinate2.setPatientId(12);
-        DNCWorkCoordinate coordinate3 = new DNCWorkCoordinate();
-        coordinate3.setPatientId(13);
-        DNCWorkCoordinate coordinate4 = new DNCWorkCoordinate();
-        coordinate4.setPatientId(14);
-        DNCWorkCoordinate coordinate5 = new DNCWorkCoordinate();
-        coordinate5.setPatientId(15);
-        DNCWorkCoordinate coordinate6 = new DNCWorkCoordinate();
-        coordinate6.setPatientId(16);
-
-        coordinateList.add(coordinate1);
-        coordinateList.add(coordinate2);
-        coordinateList.add(coordinate3);
-        coordinateList.add(coordinate4);
-        coordinateList.add(coordinate5);
-        coordinateList.add(coordinate6);
-
-        List<DNCWorkCoordinate> list = service.getChunkOfList(coordinateList, 4, 4);
-
-        assertThat(list.size(), equalTo(2));
-        assertThat(list.get(0).getPatientId(), equalTo(15L));
-        assertThat(list.get(1).getPatientId(), equalTo(16L));
+    @Test
+    public void shouldAnswerWithErrorInsteadOfEndWhenCoordinatesCannotBeRead() throws Exception {
+        CoordinatorService service = new CoordinatorService();
+        service.setLeaseRegistry(new LeaseRegistry(600000));
+        CoordinateCursor cursor = mock(CoordinateCursor.class);
+        when(cursor.nextPage(anyInt())).thenReturn(coordinates(2)).thenThrow(new RuntimeException("Connection reset"));
+        service.readChunks(cursor);
+        Request request = mock(Request.class);
+        when(request.headers("DNCRequest")).thenReturn("true");
+        when(request.headers("CognitionName")).thenReturn("client");
+        Response response = mock(Response.class);
+
+        assertThat(service.nextChunk().size(), equalTo(2));
+        assertThat(service.handleRequest(request, response), equalTo(CoordinatorService.COORDINATES_UNAVAILABLE));
+        verify(response).status(500);
+        verify(cursor).close();
     }
 
     @Test
-    public void shouldReturnEmptyListIfRequestedStartPositionIsBeyondTheSizeOfTheList() {
+    public void shouldRecordFailedCoordinatesReportedWithAcknowledgement() {
         CoordinatorService service = new CoordinatorService();
+        LeaseRegistry leaseRegistry = new LeaseRegistry(600000);
+        service.setLeaseRegistry(leaseRegistry);
+        DNCWorkCoordinate failed = new DNCWorkCoordinate();
+        failed.setPatientId(7);
+        long leaseId = leaseRegistry.lease(Arrays.asList(new DNCWorkCoordinate(), failed), "client");
+        Request request = mock(Request.class);
+        when(request.headers(CoordinatorService.LEASE_ID_HEADER)).thenReturn(String.valueOf(leaseId));
+        when(request.body()).thenReturn(new Gson().toJson(Arrays.asList(failed)));
+
+        assertThat(service.handleAcknowledgement(request), equalTo(""));
+        assertThat(service.getFailedCoordinates().size(), equalTo(1));
+        assertThat(service.getFailedCoordinates().get(0).getPatientId(), equalTo(7L));
+        assertThat(service.handleAcknowledgement(request), equalTo(CoordinatorService.UNKNOWN_LEASE));
+    }
+
+    @Test
+    public void shouldSizeLeaseToTargetDurationAtRateOfClient() {
+        CoordinatorService service = new CoordinatorService();
+        AtomicLong now = new AtomicLong();
+        LeaseRegistry leaseRegistry = new LeaseRegistry(600000, now::get);
+        service.setLeaseRegistry(leaseRegistry);
+        service.setLeaseTargetSeconds(60);
+        long leaseId = leaseRegistry.lease(coordinates(100), "fast");
+        now.set(10000);
+        leaseRegistry.acknowledge(leaseId);
+
+        assertThat(service.getLeaseSize("fast", 0), equalTo(600));
+        assertThat(service.getLeaseSize("fast", 300), equalTo(300));
+        assertThat(service.getLeaseSize("new", 0), equalTo(200));
+    }
+
+    @Test
+    public void shouldShrinkLeasesOnceAllCoordinatesAreRead() {
+        CoordinatorService service = new CoordinatorService();
+        service.setLeaseRegistry(new LeaseRegistry(600000));
+        CoordinateCursor cursor = mock(CoordinateCursor.class);
+        when(cursor.nextPage(anyInt())).thenReturn(coordinates(100), coordinates(100), new ArrayList<>());
+
+        service.readChunks(cursor);
+
+        assertThat(service.getLeaseSize("client", 0), equalTo(100));
+    }
 
-        List<DNCWorkCoordinate> coordinateList = new ArrayList<>();
-        DNCWorkCoordinate coordinate1 = new DNCWorkCoordinate();
-        coordinate1.setPatientId(1);
-        DNCWorkCoordinate coordinate2 = new DNCWorkCoordinate();
-        coordinate2.setPatientId(12);
-        DNCWorkCoordinate coordinate3 = new DNCWorkCoordinate();
-        coordinate3.setPatientId(13);
-        DNCWorkCoordinate coordinate4 = new DNCWorkCoordinate();
-        coordinate4.setPatientId(14);
-        DNCWorkCoordinate coordinate5 = new DNCWorkCoordinate();
-        coordinate5.setPatientId(15);
-        DNCWorkCoordinate coordinate6 = new DNCWorkCoordinate();
-        coordinate6.setPatientId(16);
-
-        coordinateList.add(coordinate1);
-        coordinateList.add(coordinate2);
-        coordinateList.add(coordinate3);
-        coordinateList.add(coordinate4);
-        coordinateList.add(coordinate5);
-        coordinateList.add(coordinate6);
-
-        List<DNCWorkCoordinate> list = service.getChunkOfList(coordinateList, 7, 4);
-
-        assertThat(CollectionUtils.isEmpty(list), equalTo(true));
+    private List<DNCWorkCoordinate> coordinates(int count) {
+        List<DNCWorkCoordinate> coordinates = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            coordinates.add(new DNCWorkCoordinate());
+        }
+        return coordinates;
     }
-}
\ No newline at end of file
+}
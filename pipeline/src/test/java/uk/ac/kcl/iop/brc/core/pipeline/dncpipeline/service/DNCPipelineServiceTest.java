@@ -16,9 +16,14 @@
 
 package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
 
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
 import org.junit.Before;
 import uk.ac.kcl.iop.brc.core.pipeline.common.helper.JsonHelper;
+import uk.ac.kcl.iop.brc.core.pipeline.common.model.ConversionResult;
+import uk.ac.kcl.iop.brc.core.pipeline.common.model.DocumentContent;
 import uk.ac.kcl.iop.brc.core.pipeline.common.service.DocumentConversionService;
+import uk.ac.kcl.iop.brc.core.pipeline.common.service.FileTypeService;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.DNCWorkUnitDao;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.data.PatientDao;
 import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
@@ -28,13 +33,22 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyList;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -58,6 +72,15 @@ public class DNCPipelineServiceTest {
     @Mock
     private DocumentConversionService documentConversionService;
 
+    @Mock
+    private FileTypeService fileTypeService;
+
+    @Spy
+    private WorkerPoolService workerPoolService = new WorkerPoolService();
+
+    @Mock
+    private ConvertedTextWriter convertedTextWriter;
+
     @Test
     public void shouldCallTextPipelineFromFileCorrectly() {
         service.setConversionFormat("text");
@@ -69,18 +92,17 @@ public class DNCPipelineServiceTest {
         DNCWorkCoordinates.add(cwc);
         Patient patient = new Patient();
         when(mockJsonHelper.loadListFromFile(any(File.class))).thenReturn(DNCWorkCoordinates);
-        when(DNCWorkUnitDao.getTextFromCoordinate(any(DNCWorkCoordinate.class))).thenReturn("val");
+        when(DNCWorkUnitDao.getObjectsFromCoordinates(anyList())).thenAnswer(contentOfEach("val"));
         when(patientDao.getPatient(1L)).thenReturn(patient);
         when(anonymisationService.pseudonymisePersonPlainText(patient, "val")).thenReturn("anonymised");
 
         service.startCreateModeWithFile("mockFile");
 
-        verify(DNCWorkUnitDao).getTextFromCoordinate(any(DNCWorkCoordinate.class));
+        verify(DNCWorkUnitDao).getObjectsFromCoordinates(Arrays.asList(cwc));
         verify(patientDao).getPatient(1L);
         verify(anonymisationService).pseudonymisePersonPlainText(patient, "val");
-        verify(DNCWorkUnitDao).saveConvertedText(cwc, "anonymised");
-        verify(documentConversionService, times(0)).convertToText(any(byte[].class));
-        verify(documentConversionService, times(0)).convertToXHTML(any(byte[].class));
+        verify(convertedTextWriter).write(eq(cwc), eq("anonymised"), any());
+        verify(documentConversionService, times(0)).convert(any(DocumentContent.class), anyBoolean());
     }
 
     @Test
@@ -94,18 +116,18 @@ public class DNCPipelineServiceTest {
         DNCWorkCoordinates.add(cwc);
         Patient patient = new Patient();
         when(mockJsonHelper.loadListFromFile(any(File.class))).thenReturn(DNCWorkCoordinates);
-        when(DNCWorkUnitDao.getByteFromCoordinate(any(DNCWorkCoordinate.class))).thenReturn(new byte[1]);
+        when(DNCWorkUnitDao.getObjectsFromCoordinates(anyList())).thenAnswer(contentOfEach(DocumentContent.of(new byte[1])));
         when(patientDao.getPatient(1L)).thenReturn(patient);
         when(anonymisationService.pseudonymisePersonPlainText(patient, "val")).thenReturn("anonymised");
-        when(documentConversionService.convertToText(any(byte[].class))).thenReturn("val");
+        when(documentConversionService.convert(any(DocumentContent.class), eq(false))).thenReturn(ConversionResult.ofText("val", 3));
 
         service.startCreateModeWithFile("mockFile");
 
-        verify(DNCWorkUnitDao).getByteFromCoordinate(any(DNCWorkCoordinate.class));
+        verify(DNCWorkUnitDao).getObjectsFromCoordinates(Arrays.asList(cwc));
         verify(patientDao).getPatient(1L);
         verify(anonymisationService).pseudonymisePersonPlainText(patient, "val");
-        verify(DNCWorkUnitDao).saveConvertedText(cwc, "anonymised");
-        verify(documentConversionService, times(1)).convertToText(any(byte[].class));
+        verify(convertedTextWriter).write(eq(cwc), eq("anonymised"), any());
+        verify(documentConversionService, times(1)).convert(any(DocumentContent.class), eq(false));
     }
 
     @Test
@@ -119,18 +141,120 @@ public class DNCPipelineServiceTest {
         DNCWorkCoordinates.add(cwc);
         Patient patient = new Patient();
         when(mockJsonHelper.loadListFromFile(any(File.class))).thenReturn(DNCWorkCoordinates);
-        when(DNCWorkUnitDao.getByteFromCoordinate(any(DNCWorkCoordinate.class))).thenReturn(new byte[1]);
+        when(DNCWorkUnitDao.getObjectsFromCoordinates(anyList())).thenAnswer(contentOfEach(DocumentContent.of(new byte[1])));
         when(patientDao.getPatient(1L)).thenReturn(patient);
-        when(anonymisationService.pseudonymisePersonHTML(patient, "val")).thenReturn("anonymised");
-        when(documentConversionService.convertToXHTML(any(byte[].class))).thenReturn("val");
+        Document document = Jsoup.parse("val");
+        when(anonymisationService.pseudonymisePersonHTML(patient, document)).thenReturn("anonymised");
+        when(documentConversionService.convert(any(DocumentContent.class), eq(true))).thenReturn(ConversionResult.ofDocument(document, 3));
 
         service.startCreateModeWithFile("mockFile");
 
-        verify(DNCWorkUnitDao).getByteFromCoordinate(any(DNCWorkCoordinate.class));
+        verify(DNCWorkUnitDao).getObjectsFromCoordinates(Arrays.asList(cwc));
         verify(patientDao).getPatient(1L);
-        verify(anonymisationService).pseudonymisePersonHTML(patient, "val");
-        verify(DNCWorkUnitDao).saveConvertedText(cwc, "anonymised");
-        verify(documentConversionService, times(1)).convertToXHTML(any(byte[].class));
+        verify(anonymisationService).pseudonymisePersonHTML(patient, document);
+        verify(convertedTextWriter).write(eq(cwc), eq("anonymised"), any());
+        verify(documentConversionService, times(1)).convert(any(DocumentContent.class), eq(true));
+    }
+
+    @Test
+    public void shouldPrefetchPatientsOfCoordinatesOnce() {
+        service.setConversionFormat("text");
+
+        List<DNCWorkCoordinate> DNCWorkCoordinates = new ArrayList<>();
+        for (long patientId : new long[] {1L, 2L, 1L}) {
+            DNCWorkCoordinate cwc = new DNCWorkCoordinate();
+            cwc.setPatientId(patientId);
+            cwc.setType("text");
+            DNCWorkCoordinates.add(cwc);
+        }
+        when(DNCWorkUnitDao.getObjectsFromCoordinates(anyList())).thenAnswer(contentOfEach("val"));
+        when(patientDao.getPatient(any(Long.class))).thenReturn(new Patient());
+
+        service.processCoordinates(DNCWorkCoordinates);
+
+        verify(patientDao).getPatients(Arrays.asList(1L, 2L));
+    }
+
+    @Test
+    public void shouldLoadPatientOnceForAllOfItsCoordinates() {
+        service.setConversionFormat("text");
+
+        List<DNCWorkCoordinate> DNCWorkCoordinates = new ArrayList<>();
+        for (long patientId : new long[] {1L, 2L, 1L, 1L}) {
+            DNCWorkCoordinate cwc = new DNCWorkCoordinate();
+            cwc.setPatientId(patientId);
+            cwc.setType("text");
+            DNCWorkCoordinates.add(cwc);
+        }
+        when(DNCWorkUnitDao.getObjectsFromCoordinates(anyList())).thenAnswer(contentOfEach("val"));
+        when(patientDao.getPatient(any(Long.class))).thenReturn(new Patient());
+
+        service.processCoordinates(DNCWorkCoordinates);
+
+        verify(patientDao, times(1)).getPatient(1L);
+        verify(patientDao, times(1)).getPatient(2L);
+        verify(convertedTextWriter, times(4)).write(any(DNCWorkCoordinate.class), any(String.class), any());
+    }
+
+    @Test
+    public void shouldFetchOneByOneWhenBulkFetchFails() {
+        service.setConversionFormat("text");
+
+        DNCWorkCoordinate cwc = new DNCWorkCoordinate();
+        cwc.setPatientId(1L);
+        cwc.setType("text");
+        when(DNCWorkUnitDao.getObjectsFromCoordinates(anyList())).thenThrow(new RuntimeException("Bulk fetch failed"));
+        when(DNCWorkUnitDao.getTextFromCoordinate(cwc)).thenReturn("val");
+        when(patientDao.getPatient(1L)).thenReturn(new Patient());
+
+        service.processCoordinates(Arrays.asList(cwc));
+
+        verify(DNCWorkUnitDao).getTextFromCoordinate(cwc);
+        verify(convertedTextWriter).write(eq(cwc), any(String.class), any());
+    }
+
+    @Test
+    public void shouldReturnCoordinatesThatFailed() {
+        service.setConversionFormat("text");
+
+        List<DNCWorkCoordinate> DNCWorkCoordinates = new ArrayList<>();
+        for (long patientId : new long[] {1L, 2L}) {
+            DNCWorkCoordinate cwc = new DNCWorkCoordinate();
+            cwc.setPatientId(patientId);
+            cwc.setType("text");
+            DNCWorkCoordinates.add(cwc);
+        }
+        when(DNCWorkUnitDao.getObjectsFromCoordinates(anyList())).thenAnswer(contentOfEach("val"));
+        when(patientDao.getPatient(1L)).thenReturn(new Patient());
+        when(patientDao.getPatient(2L)).thenThrow(new RuntimeException("Patient not found"));
+
+        List<DNCWorkCoordinate> failed = service.processCoordinates(DNCWorkCoordinates);
+
+        assertThat(failed, equalTo(Arrays.asList(DNCWorkCoordinates.get(1))));
+    }
+
+    @Test
+    public void shouldNotFetchDocumentsOnceStopped() {
+        service.setConversionFormat("text");
+
+        DNCWorkCoordinate cwc = new DNCWorkCoordinate();
+        cwc.setPatientId(1L);
+        cwc.setType("text");
+
+        service.processCoordinates(Arrays.asList(cwc), () -> true);
+
+        verify(DNCWorkUnitDao, never()).getObjectsFromCoordinates(anyList());
+        verify(convertedTextWriter, never()).write(any(DNCWorkCoordinate.class), any(String.class), any());
+    }
+
+    private Answer<Map<DNCWorkCoordinate, Object>> contentOfEach(Object content) {
+        return invocation -> {
+            Map<DNCWorkCoordinate, Object> contents = new HashMap<>();
+            for (Object coordinate : (List) invocation.getArguments()[0]) {
+                contents.put((DNCWorkCoordinate) coordinate, content);
+            }
+            return contents;
+        };
     }
 
 }
@@ -0,0 +1,107 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class LeaseRegistryTest {
+
+    private AtomicLong now;
+
+    private LeaseRegistry leaseRegistry;
+
+    private List<DNCWorkCoordinate> chunk = Arrays.asList(new DNCWorkCoordinate(), new DNCWorkCoordinate());
+
+    @Before
+    public void init() {
+        now = new AtomicLong();
+        leaseRegistry = new LeaseRegistry(1000, now::get);
+    }
+
+    @Test
+    public void shouldEndLeaseWhenAcknowledged() {
+        long leaseId = leaseRegistry.lease(chunk, "client");
+
+        assertThat(leaseRegistry.acknowledge(leaseId), equalTo(true));
+        assertThat(leaseRegistry.acknowledge(leaseId), equalTo(false));
+        assertThat(leaseRegistry.getActiveLeaseCount(), equalTo(0));
+    }
+
+    @Test
+    public void shouldExpireLeaseThatIsNotRenewed() {
+        long leaseId = leaseRegistry.lease(chunk, "client");
+        now.set(999);
+        assertThat(leaseRegistry.expire().isEmpty(), equalTo(true));
+
+        now.set(1000);
+        List<List<DNCWorkCoordinate>> expiredChunks = leaseRegistry.expire();
+
+        assertThat(expiredChunks.size(), equalTo(1));
+        assertThat(expiredChunks.get(0), equalTo(chunk));
+        assertThat(leaseRegistry.renew(leaseId), equalTo(false));
+        assertThat(leaseRegistry.acknowledge(leaseId), equalTo(false));
+    }
+
+    @Test
+    public void shouldRejectRenewalAndAcknowledgementOfLeaseOnceItHasExpired() {
+        long leaseId = leaseRegistry.lease(chunk, "client");
+        now.set(1000);
+
+        assertThat(leaseRegistry.renew(leaseId), equalTo(false));
+        assertThat(leaseRegistry.acknowledge(leaseId), equalTo(false));
+        assertThat(leaseRegistry.expire().size(), equalTo(1));
+    }
+
+    @Test
+    public void shouldKeepRenewedLease() {
+        long leaseId = leaseRegistry.lease(chunk, "client");
+        now.set(800);
+        assertThat(leaseRegistry.renew(leaseId), equalTo(true));
+
+        now.set(1500);
+
+        assertThat(leaseRegistry.expire().isEmpty(), equalTo(true));
+        assertThat(leaseRegistry.getActiveLeaseCount(), equalTo(1));
+    }
+
+    @Test
+    public void shouldMeasureRateOfClientFromAcknowledgements() {
+        leaseRegistry = new LeaseRegistry(10000, now::get);
+        long firstLease = leaseRegistry.lease(chunk, "client");
+        now.set(500);
+        long secondLease = leaseRegistry.lease(chunk, "client");
+        now.set(1000);
+        leaseRegistry.acknowledge(firstLease);
+        assertThat(leaseRegistry.getThroughput().getRate("client"), equalTo(2.0));
+
+        now.set(1500);
+        leaseRegistry.acknowledge(secondLease);
+
+        assertThat(leaseRegistry.getThroughput().getRate("client"), equalTo(3.0));
+        assertThat(leaseRegistry.getThroughput().getClientCount(), equalTo(1));
+    }
+
+}
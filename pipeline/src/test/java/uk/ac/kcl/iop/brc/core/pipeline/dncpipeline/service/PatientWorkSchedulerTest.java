@@ -0,0 +1,76 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import org.junit.Test;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.DNCWorkCoordinate;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service.PatientWorkScheduler.PatientGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class PatientWorkSchedulerTest {
+
+    @Test
+    public void shouldGroupCoordinatesByPatient() {
+        List<DNCWorkCoordinate> coordinates = coordinatesOf(2L, 1L, 2L, 3L, 1L, 2L);
+
+        List<PatientGroup> groups = PatientWorkScheduler.groupByPatient(coordinates);
+
+        assertThat(groups.size(), equalTo(3));
+        assertThat(groups.get(0).getPatientId(), equalTo(2L));
+        assertThat(groups.get(0).size(), equalTo(3));
+        assertThat(groups.get(1).getPatientId(), equalTo(1L));
+        assertThat(groups.get(1).getCoordinates().get(1), equalTo(coordinates.get(4)));
+        assertThat(groups.get(2).size(), equalTo(1));
+    }
+
+    @Test
+    public void shouldOrderGroupsLargestFirst() {
+        List<PatientGroup> groups = PatientWorkScheduler.groupByPatient(coordinatesOf(1L, 2L, 2L, 3L, 2L, 3L));
+
+        List<PatientGroup> ordered = PatientWorkScheduler.largestFirst(groups);
+
+        assertThat(ordered.get(0).getPatientId(), equalTo(2L));
+        assertThat(ordered.get(1).getPatientId(), equalTo(3L));
+        assertThat(ordered.get(2).getPatientId(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldBatchWholeGroups() {
+        List<PatientGroup> groups = PatientWorkScheduler.groupByPatient(coordinatesOf(1L, 1L, 1L, 2L, 3L, 3L, 4L));
+
+        List<List<PatientGroup>> batches = PatientWorkScheduler.batches(groups, 3);
+
+        assertThat(batches.size(), equalTo(3));
+        assertThat(batches.get(0).size(), equalTo(1));
+        assertThat(batches.get(1).size(), equalTo(2));
+        assertThat(batches.get(2).get(0).getPatientId(), equalTo(4L));
+    }
+
+    private List<DNCWorkCoordinate> coordinatesOf(long... patientIds) {
+        List<DNCWorkCoordinate> coordinates = new ArrayList<>();
+        for (int i = 0; i < patientIds.length; i++) {
+            coordinates.add(new DNCWorkCoordinate().patientId(patientIds[i]).idInSourceTable((long) i));
+        }
+        return coordinates;
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class StagedPipelineTest {
+
+    private BoundedExecutor executor = new BoundedExecutor("test", 8, 0, false);
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldPassItemsThroughAllStages() throws InterruptedException {
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+
+        new StagedPipeline<Integer, Integer>(2)
+                .then("double", executor, 2, (Integer item, Consumer<Integer> output) -> output.accept(item * 2))
+                .then("format", executor, 3, (Integer item, Consumer<String> output) -> output.accept("#" + item))
+                .then("collect", executor, 1, (String item, Consumer<Void> output) -> results.add(Integer.valueOf(item.substring(1))))
+                .run(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+
+        Collections.sort(results);
+        assertThat(results, equalTo(Arrays.asList(2, 4, 6, 8, 10, 12, 14, 16, 18, 20)));
+    }
+
+    @Test
+    public void shouldFanOutAndDropItems() throws InterruptedException {
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+
+        new StagedPipeline<Integer, Integer>(1)
+                .then("repeat", executor, 2, (Integer item, Consumer<Integer> output) -> {
+                    for (int i = 0; i < item; i++) {
+                        output.accept(item);
+                    }
+                })
+                .then("collect", executor, 2, (Integer item, Consumer<Void> output) -> results.add(item))
+                .run(Arrays.asList(0, 1, 2, 3));
+
+        assertThat(results.size(), equalTo(6));
+    }
+
+    @Test
+    public void shouldKeepGoingAfterFailedItem() throws InterruptedException {
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+
+        new StagedPipeline<Integer, Integer>(1)
+                .then("check", executor, 1, (Integer item, Consumer<Integer> output) -> {
+                    if (item == 2) {
+                        throw new IllegalStateException("Broken item");
+                    }
+                    output.accept(item);
+                })
+                .then("collect", executor, 1, (Integer item, Consumer<Void> output) -> results.add(item))
+                .run(Arrays.asList(1, 2, 3));
+
+        assertThat(results, equalTo(Arrays.asList(1, 3)));
+    }
+
+    @Test
+    public void shouldGiveFailedItemsToFailureHandlerOfStage() throws InterruptedException {
+        List<Integer> failed = Collections.synchronizedList(new ArrayList<>());
+
+        new StagedPipeline<Integer, Integer>(1)
+                .then("check", executor, 2, (Integer item, Consumer<Integer> output) -> {
+                    if (item % 2 == 0) {
+                        throw new IllegalStateException("Broken item");
+                    }
+                }, (item, e) -> failed.add(item))
+                .run(Arrays.asList(1, 2, 3, 4));
+
+        Collections.sort(failed);
+        assertThat(failed, equalTo(Arrays.asList(2, 4)));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldShutDownStagesWhenInterruptedWhileFeeding() throws InterruptedException {
+        CountDownLatch processing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        BoundedExecutor stageExecutor = new BoundedExecutor("interrupted", 1, 0, false);
+        StagedPipeline<Integer, Void> pipeline = new StagedPipeline<Integer, Integer>(1)
+                .then("slow", stageExecutor, 1, (Integer item, Consumer<Void> output) -> {
+                    processing.countDown();
+                    awaitQuietly(release);
+                    results.add(item);
+                });
+        Thread feeder = Thread.currentThread();
+        new Thread(() -> {
+            awaitQuietly(processing);
+            feeder.interrupt();
+            release.countDown();
+        }).start();
+
+        try {
+            pipeline.run(Arrays.asList(1, 2, 3, 4, 5));
+            fail("The interruption should be rethrown.");
+        } catch (InterruptedException e) {
+            assertThat(results.size() < 5, equalTo(true));
+        }
+
+        CountDownLatch ran = new CountDownLatch(1);
+        stageExecutor.execute(ran::countDown);
+        assertThat(ran.await(5, TimeUnit.SECONDS), equalTo(true));
+        stageExecutor.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void shouldFailInsteadOfHangingWhenStageThrowsError() throws InterruptedException {
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        StagedPipeline<Integer, Void> pipeline = new StagedPipeline<Integer, Integer>(1)
+                .then("parse", executor, 1, (Integer item, Consumer<Integer> output) -> {
+                    if (item == 2) {
+                        throw new StackOverflowError("Deeply nested document");
+                    }
+                    output.accept(item);
+                })
+                .then("collect", executor, 2, (Integer item, Consumer<Void> output) -> results.add(item));
+
+        try {
+            pipeline.run(Arrays.asList(1, 2, 3, 4, 5));
+            fail("The Error of the stage should be rethrown.");
+        } catch (StackOverflowError e) {
+            assertThat(e.getMessage(), equalTo("Deeply nested document"));
+        }
+        assertThat(results.stream().allMatch(item -> item < 2), equalTo(true));
+    }
+
+    private void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
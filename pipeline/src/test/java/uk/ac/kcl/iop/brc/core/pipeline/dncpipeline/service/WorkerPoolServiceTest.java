@@ -0,0 +1,57 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service;
+
+import org.junit.After;
+import org.junit.Test;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service.WorkerPoolService.Stage;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class WorkerPoolServiceTest {
+
+    private WorkerPoolService workerPoolService = new WorkerPoolService();
+
+    @After
+    public void tearDown() {
+        workerPoolService.shutdown();
+    }
+
+    @Test
+    public void shouldDefaultCPUBoundStagesToProcessorCount() {
+        workerPoolService.setConvertThreads(0);
+
+        assertThat(workerPoolService.getThreadCount(Stage.CONVERT), equalTo(Runtime.getRuntime().availableProcessors()));
+    }
+
+    @Test
+    public void shouldUseConfiguredThreadCount() {
+        workerPoolService.setFetchThreads(3);
+        workerPoolService.setConvertThreads(2);
+
+        assertThat(workerPoolService.getThreadCount(Stage.FETCH), equalTo(3));
+        assertThat(workerPoolService.getThreadCount(Stage.CONVERT), equalTo(2));
+    }
+
+    @Test
+    public void shouldReuseExecutorOfStage() {
+        assertThat(workerPoolService.getExecutor(Stage.SAVE), sameInstance(workerPoolService.getExecutor(Stage.SAVE)));
+    }
+
+}
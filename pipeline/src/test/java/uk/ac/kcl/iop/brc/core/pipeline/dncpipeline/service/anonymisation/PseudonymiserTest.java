@@ -0,0 +1,169 @@
+/*
+        Copyright (c) 2015 King's College London
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.service.anonymisation;
+
+import org.apache.velocity.app.VelocityEngine;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.kcl.iop.brc.core.pipeline.common.utils.TimeUtil;
+import uk.ac.kcl.iop.brc.core.pipeline.dncpipeline.model.Patient;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class PseudonymiserTest {
+
+    private TemplateFiller templateFiller;
+
+    @Before
+    public void initTemplateFiller() {
+        templateFiller = new TemplateFiller();
+        VelocityEngine velocityEngine = new VelocityEngine();
+        velocityEngine.addProperty("resource.loader", "class");
+        velocityEngine.addProperty("class.resource.loader.class", "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
+        templateFiller.setVelocityEngine(velocityEngine);
+        templateFiller.init();
+    }
+
+    @Test
+    public void shouldReuseRulePlanOfTheSamePatient() {
+        NamePseudonymiser pseudonymiser = new NamePseudonymiser();
+        pseudonymiser.setTemplateFiller(templateFiller);
+        Patient patient = new Patient();
+        patient.setId(1);
+        patient.addForeName("Ismail");
+
+        CompiledRulePlan plan = pseudonymiser.getRulePlan(patient);
+
+        assertThat(pseudonymiser.getRulePlan(patient), sameInstance(plan));
+    }
+
+    @Test
+    public void shouldCompileRulePlanOnceForConcurrentDocumentsOfTheSamePatient() throws Exception {
+        AtomicInteger compilations = new AtomicInteger();
+        TemplateFiller slowTemplateFiller = new TemplateFiller() {
+            @Override
+            public String getFilledTemplate(String path, Map<String, Object> objectMap) {
+                compilations.incrementAndGet();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return templateFiller.getFilledTemplate(path, objectMap);
+            }
+        };
+        NamePseudonymiser pseudonymiser = new NamePseudonymiser();
+        pseudonymiser.setTemplateFiller(slowTemplateFiller);
+        Patient patient = new Patient();
+        patient.setId(1);
+        patient.addForeName("Ismail");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<CompiledRulePlan>> plans = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                plans.add(executor.submit(() -> pseudonymiser.getRulePlan(patient)));
+            }
+            for (Future<CompiledRulePlan> plan : plans) {
+                assertThat(plan.get(), sameInstance(plans.get(0).get()));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(compilations.get(), equalTo(1));
+    }
+
+    @Test
+    public void shouldNotReuseRulePlanOfAnotherPatientObjectWithTheSameId() {
+        NamePseudonymiser pseudonymiser = new NamePseudonymiser();
+        pseudonymiser.setTemplateFiller(templateFiller);
+        Patient patient = new Patient();
+        patient.addForeName("Ismail");
+        Patient otherPatient = new Patient();
+        otherPatient.addForeName("Richard");
+
+        CompiledRulePlan plan = pseudonymiser.getRulePlan(patient);
+
+        assertThat(pseudonymiser.getRulePlan(otherPatient), not(sameInstance(plan)));
+        assertThat(pseudonymiser.pseudonymise(otherPatient, "Ismail and Richard"), equalTo("Ismail and XXXXX"));
+    }
+
+    @Test
+    public void shouldFindApproximateMatchesInEachDocument() {
+        NamePseudonymiser pseudonymiser = new NamePseudonymiser();
+        pseudonymiser.setTemplateFiller(templateFiller);
+        Patient patient = new Patient();
+        patient.addForeName("Ismail");
+        patient.addSurname("Kartoglu");
+
+        String firstDocument = pseudonymiser.pseudonymise(patient, "Seen today: Ismal, Kartoglou.");
+        String secondDocument = pseudonymiser.pseudonymise(patient, "Seen today: Ismai, Kartogl.");
+
+        assertThat(firstDocument, equalTo("Seen today: XXXXX, XXXXX."));
+        assertThat(secondDocument, equalTo("Seen today: XXXXX, XXXXX."));
+    }
+
+    @Test
+    public void shouldApplyRulesThatDoNotDependOnTheDocument() throws ParseException {
+        DateOfBirthPseudonymiser pseudonymiser = new DateOfBirthPseudonymiser();
+        pseudonymiser.setTemplateFiller(templateFiller);
+        Patient patient = new Patient();
+        patient.addDateOfBirth(TimeUtil.getDateFromString("09/05/1990", "dd/MM/yyyy"));
+
+        String text = pseudonymiser.pseudonymise(patient, "Born on 09/05/1990.");
+
+        assertThat(text, equalTo("Born on DDDDD."));
+    }
+
+    @Test
+    public void shouldReplaceLongestNameFirst() {
+        NamePseudonymiser pseudonymiser = new NamePseudonymiser();
+        pseudonymiser.setTemplateFiller(templateFiller);
+        Patient patient = new Patient();
+        patient.addForeName("Mary");
+        patient.addForeName("Mary Ann");
+        patient.addSurname("Smith");
+
+        String text = pseudonymiser.pseudonymise(patient, "Mary Ann Smith, not Marybeth.");
+
+        assertThat(text, equalTo("XXXXX XXXXX, not Marybeth."));
+    }
+
+    @Test
+    public void shouldBuildLiteralsOnlyFromPlainRules() {
+        assertThat(CompiledRulePlan.toLiteral("(?i)\\b\\QIsmail\\E\\b", "XXXXX").isWholeWord(), equalTo(true));
+        assertThat(CompiledRulePlan.toLiteral("(?i)\\Q1234567890\\E", "HHHHH").getText(), equalTo("1234567890"));
+        assertThat(CompiledRulePlan.toLiteral("(?i)09/05/1990", "DDDDD").getText(), equalTo("09/05/1990"));
+        assertThat(CompiledRulePlan.toLiteral("(?i)09.05.1990", "DDDDD"), equalTo(null));
+        assertThat(CompiledRulePlan.toLiteral("\\QIsmail\\E", "XXXXX"), equalTo(null));
+        assertThat(CompiledRulePlan.toLiteral("(?i)\\b\\Q\\E\\b", "XXXXX"), equalTo(null));
+    }
+
+}